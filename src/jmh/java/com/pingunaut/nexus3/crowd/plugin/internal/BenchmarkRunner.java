@@ -0,0 +1,48 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs all benchmarks once per thread count and writes the results as json to
+ * {@code target/jmh/results-<threads>-threads.json}.
+ * <p>
+ * System properties: {@code jmh.include} (regex, default all), {@code jmh.threads}
+ * (comma separated, default 1,4,16), {@code jmh.iterations} (default 5) and
+ * {@code jmh.forks} (default 1).
+ */
+public class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        File resultDir = new File(System.getProperty("jmh.resultdir", "target/jmh"));
+        if (!resultDir.isDirectory() && !resultDir.mkdirs()) {
+            throw new IllegalStateException("Can't create " + resultDir);
+        }
+        int iterations = Integer.getInteger("jmh.iterations", 5);
+        for (String threads : System.getProperty("jmh.threads", "1,4,16").split(",")) {
+            Options options = new OptionsBuilder()
+                    .include(System.getProperty("jmh.include", BenchmarkRunner.class.getPackage().getName() + ".*Benchmark"))
+                    .threads(Integer.parseInt(threads.trim()))
+                    .forks(Integer.getInteger("jmh.forks", 1))
+                    .warmupIterations(iterations)
+                    .warmupTime(TimeValue.seconds(1))
+                    .measurementIterations(iterations)
+                    .measurementTime(TimeValue.seconds(1))
+                    .timeUnit(TimeUnit.MILLISECONDS)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(resultDir, "results-" + threads.trim() + "-threads.json").getPath())
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
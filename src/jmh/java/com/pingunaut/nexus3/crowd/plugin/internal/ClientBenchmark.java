@@ -0,0 +1,78 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import org.apache.shiro.authc.UsernamePasswordToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Authentication and group lookups of {@link CachingNexusCrowdClient} against an in-process crowd.
+ * With {@code cache=none} every call goes to crowd, otherwise the caches are warm and
+ * cached credentials are hashed as configured by {@code cache.authentication.hash}.
+ */
+@State(Scope.Benchmark)
+public class ClientBenchmark {
+
+    private static final int USERS = 1000;
+
+    @Param({"none", "pbkdf2", "hmac"})
+    public String cache;
+
+    private CrowdStubServer crowd;
+    private boolean cached;
+    private CacheProvider cacheProvider;
+    private CachingNexusCrowdClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        cached = !"none".equals(cache);
+        crowd = new CrowdStubServer().withUsers(USERS);
+        Properties p = crowd.properties();
+        p.setProperty("cache.authentication", String.valueOf(cached));
+        p.setProperty("cache.authentication.hash", cache);
+        p.setProperty("connection.pool.max.total", "200");
+        CrowdProperties props = new CrowdProperties(p);
+        cacheProvider = new CacheProvider(props);
+        client = new CachingNexusCrowdClient(props, cacheProvider);
+        if (cached) {
+            for (int i = 0; i < USERS; i++) {
+                client.authenticate(token(i));
+                client.findRolesByUser(CrowdStubServer.username(i));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.shutdown();
+        cacheProvider.close();
+        crowd.close();
+    }
+
+    @Benchmark
+    public boolean authenticate() {
+        return client.authenticate(token(ThreadLocalRandom.current().nextInt(USERS)));
+    }
+
+    @Benchmark
+    public Set<String> findRolesByUser() {
+        String username = CrowdStubServer.username(ThreadLocalRandom.current().nextInt(USERS));
+        if (!cached) {
+            client.invalidateRolesByUser(username);
+        }
+        return client.findRolesByUser(username);
+    }
+
+    private static UsernamePasswordToken token(int i) {
+        return new UsernamePasswordToken(CrowdStubServer.username(i), CrowdStubServer.PASSWORD);
+    }
+}
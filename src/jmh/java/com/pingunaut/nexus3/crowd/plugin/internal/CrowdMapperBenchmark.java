@@ -0,0 +1,49 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.pingunaut.nexus3.crowd.plugin.internal.entity.mapper.CrowdMapper;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sonatype.nexus.security.role.Role;
+import org.sonatype.nexus.security.user.User;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Mapping of full 1000 entry search pages.
+ */
+@State(Scope.Benchmark)
+public class CrowdMapperBenchmark {
+
+    private byte[] usersPage;
+    private byte[] groupsPage;
+
+    @Setup
+    public void setUp() {
+        usersPage = CrowdStubServer.usersPage(0, 1000).getBytes(StandardCharsets.UTF_8);
+        groupsPage = CrowdStubServer.groupsPage(0, 1000).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Set<User> toUsers() {
+        return CrowdMapper.toUsers(response(usersPage));
+    }
+
+    @Benchmark
+    public Set<Role> toRoles() {
+        return CrowdMapper.toRoles(response(groupsPage));
+    }
+
+    private static HttpResponse response(byte[] body) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+        return response;
+    }
+}
@@ -0,0 +1,37 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.URI;
+
+/**
+ * What recording metrics adds to every crowd request and cache lookup.
+ */
+@State(Scope.Benchmark)
+public class CrowdMetricsBenchmark {
+
+    private CrowdMetrics metrics;
+    private Counter hits;
+
+    @Setup
+    public void setUp() {
+        metrics = new CrowdMetrics(new MetricRegistry());
+        hits = metrics.cacheHits(CacheProvider.GROUPS);
+    }
+
+    @Benchmark
+    public long timeRequest() {
+        return metrics.requests(CachingNexusCrowdClient.endpoint(
+                URI.create("http://crowd/rest/usermanagement/1/user/group/nested?username=u1"))).time().stop();
+    }
+
+    @Benchmark
+    public void countCacheHit() {
+        hits.inc();
+    }
+}
@@ -0,0 +1,71 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.codahale.metrics.MetricRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.sonatype.nexus.security.user.User;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Lookups in a {@link CrowdMirror} of 50k users and 10k groups. The heap used by the
+ * mirror is printed once it is loaded.
+ */
+@State(Scope.Benchmark)
+public class CrowdMirrorBenchmark {
+
+    private static final int USERS = 50000;
+    private static final int GROUPS = 10000;
+
+    private CrowdStubServer crowd;
+    private CachingNexusCrowdClient client;
+    private CrowdMirror mirror;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        crowd = new CrowdStubServer().withUsers(USERS).withGroups(GROUPS).withGroupsPerUser(5);
+        Properties p = crowd.properties();
+        p.setProperty("mirror.enabled", "true");
+        CrowdProperties props = new CrowdProperties(p);
+        CrowdMetrics metrics = new CrowdMetrics(new MetricRegistry());
+        client = new CachingNexusCrowdClient(props, new CacheProvider(props, metrics), metrics);
+        mirror = new CrowdMirror(client, props, metrics);
+
+        long before = usedHeap();
+        mirror.sync();
+        long after = usedHeap();
+        System.out.printf("%nmirror of %d users, %d groups, %d memberships uses %.1f MB%n", mirror.findAllUsernames().size(),
+                mirror.findRoles().size(), USERS * 5, (after - before) / 1024.0 / 1024.0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.shutdown();
+        crowd.close();
+    }
+
+    @Benchmark
+    public Set<String> findRolesByUser() {
+        return mirror.findRolesByUser(CrowdStubServer.username(ThreadLocalRandom.current().nextInt(USERS)));
+    }
+
+    @Benchmark
+    public User findUserByUsername() {
+        return mirror.findUserByUsername(CrowdStubServer.username(ThreadLocalRandom.current().nextInt(USERS)));
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
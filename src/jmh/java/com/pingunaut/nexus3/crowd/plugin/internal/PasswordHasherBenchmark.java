@@ -0,0 +1,37 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Verification of cached credentials, {@code iterations=0} is the hmac mode.
+ */
+@State(Scope.Benchmark)
+public class PasswordHasherBenchmark {
+
+    @Param({"1024", "100", "0"})
+    public int iterations;
+
+    private final char[] password = "password123".toCharArray();
+    private byte[] salt;
+    private byte[] hash;
+
+    @Setup
+    public void setUp() {
+        salt = PasswordHasher.getNextSalt();
+        hash = PasswordHasher.hash(password, salt, iterations);
+    }
+
+    @Benchmark
+    public byte[] hash() {
+        return PasswordHasher.hash(password, salt, iterations);
+    }
+
+    @Benchmark
+    public boolean isPasswordCorrect() {
+        return PasswordHasher.isPasswordCorrect(password, salt, iterations, hash);
+    }
+}
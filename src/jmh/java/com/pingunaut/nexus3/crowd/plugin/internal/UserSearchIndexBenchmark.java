@@ -0,0 +1,50 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sonatype.nexus.security.user.User;
+import org.sonatype.nexus.security.user.UserStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Prefix searches as typed in the user search of the UI, in an index of 50k users.
+ */
+@State(Scope.Benchmark)
+public class UserSearchIndexBenchmark {
+
+    private static final int USERS = 50000;
+
+    private UserSearchIndex.Snapshot index;
+
+    @Setup
+    public void setUp() {
+        List<User> users = new ArrayList<>(USERS);
+        for (int i = 0; i < USERS; i++) {
+            User u = new User();
+            u.setUserId(CrowdStubServer.username(i));
+            u.setFirstName("First" + i);
+            u.setLastName("Last" + i);
+            u.setEmailAddress(CrowdStubServer.username(i) + "@example.com");
+            u.setStatus(UserStatus.active);
+            users.add(u);
+        }
+        index = new UserSearchIndex.Snapshot(users, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public Set<User> searchShortPrefix() {
+        // the first keystrokes match thousands of users, the result is capped
+        return index.search("user" + ThreadLocalRandom.current().nextInt(10), "", 100);
+    }
+
+    @Benchmark
+    public Set<User> searchLongPrefix() {
+        return index.search("first" + ThreadLocalRandom.current().nextInt(USERS), "", 100);
+    }
+}
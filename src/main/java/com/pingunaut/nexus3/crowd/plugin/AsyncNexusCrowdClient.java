@@ -0,0 +1,122 @@
+package com.pingunaut.nexus3.crowd.plugin;
+
+import org.apache.shiro.authc.UsernamePasswordToken;
+import org.sonatype.nexus.security.role.Role;
+import org.sonatype.nexus.security.user.User;
+import org.sonatype.nexus.security.user.UserSearchCriteria;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking variant of {@link NexusCrowdClient}. No thread waits while a request
+ * to crowd is in flight. If crowd can't be asked, the returned futures complete
+ * exceptionally with a {@link CrowdException}. Dependent stages should be short,
+ * they may run on the threads of the http client.
+ */
+public interface AsyncNexusCrowdClient {
+
+	/**
+	 * Authenticate.
+	 *
+	 * @param token
+	 *            the token
+	 * @return true, if the credentials are valid
+	 */
+	CompletableFuture<Boolean> authenticateAsync(UsernamePasswordToken token);
+
+	/**
+	 * Find user by username.
+	 *
+	 * @param username
+	 *            the username
+	 * @return the user or null if crowd does not know it
+	 */
+	CompletableFuture<User> findUserByUsernameAsync(String username);
+
+	/**
+	 * Find all usernames.
+	 *
+	 * @return the usernames
+	 */
+	CompletableFuture<Set<String>> findAllUsernamesAsync();
+
+	/**
+	 * Find users.
+	 *
+	 * @return the users
+	 */
+	CompletableFuture<Set<User>> findUsersAsync();
+
+	/**
+	 * Find user by criteria.
+	 *
+	 * @param criteria
+	 *            the criteria
+	 * @return the users
+	 */
+	CompletableFuture<Set<User>> findUserByCriteriaAsync(UserSearchCriteria criteria);
+
+	/**
+	 * Find roles.
+	 *
+	 * @return the roles
+	 */
+	CompletableFuture<Set<Role>> findRolesAsync();
+
+	/**
+	 * Find role by role id.
+	 *
+	 * @param roleId
+	 *            the role id
+	 * @return the role or null if crowd does not know it
+	 */
+	CompletableFuture<Role> findRoleByRoleIdAsync(String roleId);
+
+	/**
+	 * Find roles by user.
+	 *
+	 * @param username
+	 *            the username
+	 * @return the roles
+	 */
+	CompletableFuture<Set<String>> findRolesByUserAsync(String username);
+
+	/**
+	 * Find roles of many users with a constant number of requests.
+	 *
+	 * @param usernames
+	 *            the usernames
+	 * @return the roles per username
+	 */
+	CompletableFuture<Map<String, Set<String>>> findRolesByUsersAsync(Set<String> usernames);
+
+	/**
+	 * Create a crowd SSO session for an already authenticated user.
+	 *
+	 * @param username
+	 *            the username
+	 * @return the session token or null if crowd refused
+	 */
+	CompletableFuture<String> createSessionAsync(String username);
+
+	/**
+	 * Validate a crowd SSO session token.
+	 *
+	 * @param token
+	 *            the session token
+	 * @return the user of the session or null if the token is not valid
+	 */
+	CompletableFuture<String> validateSessionAsync(String token);
+
+	/**
+	 * End a crowd SSO session.
+	 *
+	 * @param token
+	 *            the session token
+	 * @return completes when crowd ended the session
+	 */
+	CompletableFuture<Void> invalidateSessionAsync(String token);
+
+}
@@ -1,116 +1,259 @@
-/*
- * Copyright (c) 2010 Sonatype, Inc. All rights reserved.
- *
- * This program is licensed to you under the Apache License Version 2.0,
- * and you may not use this file except in compliance with the Apache License Version 2.0.
- * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
- *
- * Unless required by applicable law or agreed to in writing,
- * software distributed under the Apache License Version 2.0 is distributed on an
- * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
- */
-package com.pingunaut.nexus3.crowd.plugin;
-
-import com.pingunaut.nexus3.crowd.plugin.internal.CachingNexusCrowdClient;
-import org.apache.shiro.authc.*;
-import org.apache.shiro.authc.pam.UnsupportedTokenException;
-import org.apache.shiro.authz.AuthorizationInfo;
-import org.apache.shiro.authz.SimpleAuthorizationInfo;
-import org.apache.shiro.realm.AuthorizingRealm;
-import org.apache.shiro.subject.PrincipalCollection;
-import org.eclipse.sisu.Description;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import javax.inject.Inject;
-import javax.inject.Named;
-import javax.inject.Singleton;
-
-/**
- * The Class CrowdAuthenticatingRealm.
- */
-@Singleton
-@Named(CrowdAuthenticatingRealm.NAME)
-@Description("Crowd Authentication Realm")
-public class CrowdAuthenticatingRealm extends AuthorizingRealm {
-
-	private static final Logger LOGGER = LoggerFactory.getLogger(CrowdAuthenticatingRealm.class);
-	public static final String NAME = "com.pingunaut.nexus3.crowd.plugin.CrowdAuthenticatingRealm";
-	private CachingNexusCrowdClient client;
-
-	/**
-	 * Instantiates a new crowd authenticating realm.
-	 *
-	 * @param client
-	 *            the client
-	 */
-	@Inject
-	public CrowdAuthenticatingRealm(final CachingNexusCrowdClient client) {
-		this.client = client;
-		setName(NAME);
-	}
-
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.apache.shiro.realm.AuthorizingRealm#onInit()
-	 */
-	@Override
-	protected void onInit() {
-		super.onInit();
-		LOGGER.info("Crowd Realm initialized...");
-	}
-
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see
-	 * org.apache.shiro.realm.AuthorizingRealm#doGetAuthorizationInfo(org.apache
-	 * .shiro.subject.PrincipalCollection)
-	 */
-	@Override
-	protected AuthorizationInfo doGetAuthorizationInfo(PrincipalCollection principals) {
-		String username = (String) principals.getPrimaryPrincipal();
-		LOGGER.info("doGetAuthorizationInfo for " + username);
-		return new SimpleAuthorizationInfo(client.findRolesByUser(username));
-	}
-
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see
-	 * org.apache.shiro.realm.AuthenticatingRealm#doGetAuthenticationInfo(org.
-	 * apache.shiro.authc.AuthenticationToken)
-	 */
-	@Override
-	protected AuthenticationInfo doGetAuthenticationInfo(AuthenticationToken token) throws AuthenticationException {
-		if (!(token instanceof UsernamePasswordToken)) {
-			throw new UnsupportedTokenException(String.format("Token of type %s  is not supported. A %s is required.",
-					token.getClass().getName(), UsernamePasswordToken.class.getName()));
-		}
-
-		UsernamePasswordToken t = (UsernamePasswordToken) token;
-		LOGGER.info("doGetAuthenticationInfo for " + t.getUsername());
-		boolean authenticated = client.authenticate(t);
-		LOGGER.info("crowd authenticated: " + authenticated);
-
-		if (authenticated) {
-			return createSimpleAuthInfo(t);
-		} else {
-			return null;
-		}
-	}
-
-	/**
-	 * Creates the simple auth info.
-	 *
-	 * @param token
-	 *            the token
-	 * @return the simple authentication info
-	 */
-	private SimpleAuthenticationInfo createSimpleAuthInfo(UsernamePasswordToken token) {
-		return new SimpleAuthenticationInfo(token.getPrincipal(), token.getCredentials(), NAME);
-	}
-
-}
+/*
+ * Copyright (c) 2010 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.pingunaut.nexus3.crowd.plugin;
+
+import com.pingunaut.nexus3.crowd.plugin.internal.CachingNexusCrowdClient;
+import com.pingunaut.nexus3.crowd.plugin.internal.CrowdChangeListener;
+import com.pingunaut.nexus3.crowd.plugin.internal.CrowdMirror;
+import com.pingunaut.nexus3.crowd.plugin.internal.CrowdProperties;
+import com.pingunaut.nexus3.crowd.plugin.internal.CrowdUserFilter;
+import org.apache.shiro.authc.*;
+import org.apache.shiro.authc.pam.UnsupportedTokenException;
+import org.apache.shiro.authz.AuthorizationException;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.SimpleAuthorizationInfo;
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.realm.AuthorizingRealm;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.eclipse.sisu.Description;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Class CrowdAuthenticatingRealm.
+ *
+ * Authorization info is cached in the Shiro cache of Nexus for cache.authorization.ttl
+ * seconds and dropped as soon as the credentials or memberships of the user change.
+ */
+@Singleton
+@Named(CrowdAuthenticatingRealm.NAME)
+@Description("Crowd Authentication Realm")
+public class CrowdAuthenticatingRealm extends AuthorizingRealm implements CrowdChangeListener {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CrowdAuthenticatingRealm.class);
+	public static final String NAME = "com.pingunaut.nexus3.crowd.plugin.CrowdAuthenticatingRealm";
+	private static final int AUTHORIZATION_TTL_SECONDS = 60;
+	private CachingNexusCrowdClient client;
+	private CrowdMirror mirror;
+	private CrowdUserFilter userFilter;
+	private long authorizationTtlMillis;
+
+	/**
+	 * Instantiates a new crowd authenticating realm.
+	 *
+	 * @param client
+	 *            the client
+	 * @param mirror
+	 *            the mirror, group memberships are read from it when it is ready
+	 * @param props
+	 *            the configuration, cache.authorization.ttl=0 disables the authorization cache
+	 * @param userFilter
+	 *            the filter of crowd users, logins of other users are not sent to crowd
+	 */
+	@Inject
+	public CrowdAuthenticatingRealm(final CachingNexusCrowdClient client, final CrowdMirror mirror,
+			final CrowdProperties props, final CrowdUserFilter userFilter) {
+		this.client = client;
+		this.mirror = mirror;
+		this.userFilter = userFilter;
+		this.authorizationTtlMillis = TimeUnit.SECONDS
+				.toMillis(props.getCacheTtl("authorization", AUTHORIZATION_TTL_SECONDS));
+		setName(NAME);
+		setAuthorizationCachingEnabled(authorizationTtlMillis > 0);
+		client.addChangeListener(this);
+		mirror.addChangeListener(this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.apache.shiro.realm.AuthorizingRealm#onInit()
+	 */
+	@Override
+	protected void onInit() {
+		super.onInit();
+		LOGGER.info("Crowd Realm initialized...");
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.apache.shiro.realm.AuthorizingRealm#doGetAuthorizationInfo(org.apache
+	 * .shiro.subject.PrincipalCollection)
+	 */
+	@Override
+	protected AuthorizationInfo doGetAuthorizationInfo(PrincipalCollection principals) {
+		String username = (String) principals.getPrimaryPrincipal();
+		LOGGER.debug("doGetAuthorizationInfo for {}", username);
+		return new CachedAuthorizationInfo(
+				mirror.isReady() ? mirror.findRolesByUser(username) : findRolesByUser(username),
+				System.currentTimeMillis() + authorizationTtlMillis);
+	}
+
+	/**
+	 * Fails instead of returning no roles if crowd can't be reached, so the
+	 * failure isn't cached as if the user had lost all roles.
+	 *
+	 * @param username
+	 *            the username
+	 * @return the roles of the user
+	 * @throws AuthorizationException
+	 *             if the roles can't be loaded from crowd
+	 */
+	private Set<String> findRolesByUser(String username) {
+		try {
+			return client.findRolesByUserAsync(username).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AuthorizationException("interrupted while loading the roles of " + username, e);
+		} catch (ExecutionException e) {
+			throw new AuthorizationException("roles of " + username + " can't be loaded from crowd", e.getCause());
+		}
+	}
+
+	/**
+	 * The Nexus cache manager decides how long entries are kept at most, entries
+	 * older than cache.authorization.ttl are loaded again.
+	 */
+	@Override
+	protected AuthorizationInfo getAuthorizationInfo(PrincipalCollection principals) {
+		AuthorizationInfo info = super.getAuthorizationInfo(principals);
+		if (isAuthorizationCachingEnabled() && info instanceof CachedAuthorizationInfo
+				&& ((CachedAuthorizationInfo) info).validUntil <= System.currentTimeMillis()) {
+			clearCachedAuthorizationInfo(principals);
+			info = super.getAuthorizationInfo(principals);
+		}
+		return info;
+	}
+
+	/**
+	 * Cache by username only, so entries can be dropped when crowd reports changes.
+	 */
+	@Override
+	protected Object getAuthorizationCacheKey(PrincipalCollection principals) {
+		return principals.getPrimaryPrincipal();
+	}
+
+	@Override
+	public void userChanged(String username) {
+		Cache<Object, AuthorizationInfo> cache = getAuthorizationCache();
+		if (cache != null) {
+			LOGGER.debug("dropping cached authorization info of {}", username);
+			cache.remove(username);
+		}
+	}
+
+	@Override
+	public void directoryChanged() {
+		Cache<Object, AuthorizationInfo> cache = getAuthorizationCache();
+		if (cache != null) {
+			LOGGER.debug("dropping all cached authorization info");
+			cache.clear();
+		}
+	}
+
+	@Override
+	public boolean supports(AuthenticationToken token) {
+		return token instanceof UsernamePasswordToken || token instanceof CrowdSessionToken;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.apache.shiro.realm.AuthenticatingRealm#doGetAuthenticationInfo(org.
+	 * apache.shiro.authc.AuthenticationToken)
+	 */
+	@Override
+	protected AuthenticationInfo doGetAuthenticationInfo(AuthenticationToken token) throws AuthenticationException {
+		if (token instanceof CrowdSessionToken) {
+			return doGetSessionAuthenticationInfo((CrowdSessionToken) token);
+		}
+		if (!(token instanceof UsernamePasswordToken)) {
+			throw new UnsupportedTokenException(String.format("Token of type %s  is not supported. A %s is required.",
+					token.getClass().getName(), UsernamePasswordToken.class.getName()));
+		}
+
+		UsernamePasswordToken t = (UsernamePasswordToken) token;
+		LOGGER.debug("doGetAuthenticationInfo for {}", t.getUsername());
+		if (userFilter.isAbsent(t.getUsername())) {
+			// e.g. a local user, another realm is responsible
+			LOGGER.debug("{} is not a crowd user", t.getUsername());
+			return null;
+		}
+		boolean authenticated = client.authenticate(t);
+		LOGGER.debug("crowd authenticated: {}", authenticated);
+
+		if (authenticated) {
+			return createSimpleAuthInfo(t);
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Accepts a crowd SSO session instead of a password. Sessions are validated
+	 * with crowd and then cached for a short time, no password is checked.
+	 *
+	 * @param token
+	 *            the session token
+	 * @return the authentication info of the session's user or null if the session is not valid
+	 */
+	private AuthenticationInfo doGetSessionAuthenticationInfo(CrowdSessionToken token) {
+		String username = client.validateSession(token.getToken());
+		LOGGER.debug("crowd session of user: {}", username);
+		if (username == null) {
+			return null;
+		}
+		// tells password logins apart, e.g. only they may create new sessions
+		SimplePrincipalCollection principals = new SimplePrincipalCollection(username, NAME);
+		principals.add(CrowdSessionToken.AuthenticatedBy.SESSION, NAME);
+		return new SimpleAuthenticationInfo(principals, token.getCredentials());
+	}
+
+	/**
+	 * Creates the simple auth info.
+	 *
+	 * @param token
+	 *            the token
+	 * @return the simple authentication info
+	 */
+	private SimpleAuthenticationInfo createSimpleAuthInfo(UsernamePasswordToken token) {
+		return new SimpleAuthenticationInfo(token.getPrincipal(), token.getCredentials(), NAME);
+	}
+
+	/**
+	 * Authorization info that knows when it was loaded from crowd.
+	 */
+	private static class CachedAuthorizationInfo extends SimpleAuthorizationInfo {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long validUntil;
+
+		CachedAuthorizationInfo(Set<String> roles, long validUntil) {
+			super(roles);
+			this.validUntil = validUntil;
+		}
+	}
+
+}
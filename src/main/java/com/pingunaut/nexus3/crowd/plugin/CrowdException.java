@@ -0,0 +1,18 @@
+package com.pingunaut.nexus3.crowd.plugin;
+
+/**
+ * Signals that crowd could not be asked, e.g. because it is not reachable, answered
+ * with a server error or sent a response that could not be mapped.
+ */
+public class CrowdException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CrowdException(String message) {
+		super(message);
+	}
+
+	public CrowdException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,60 @@
+package com.pingunaut.nexus3.crowd.plugin;
+
+import com.pingunaut.nexus3.crowd.plugin.internal.PasswordHasher;
+import org.apache.shiro.authc.HostAuthenticationToken;
+
+/**
+ * A crowd SSO session token presented instead of a password, e.g. as the crowd
+ * SSO cookie. It is validated by {@link CrowdAuthenticatingRealm}.
+ */
+public class CrowdSessionToken implements HostAuthenticationToken {
+
+	private static final long serialVersionUID = 2L;
+
+	/**
+	 * Added to the principals of users who authenticated with a session token
+	 * instead of a password.
+	 */
+	public enum AuthenticatedBy {
+		SESSION
+	}
+
+	private final String token;
+	private final String digest;
+	private final String host;
+
+	public CrowdSessionToken(String token, String host) {
+		this.token = token;
+		this.digest = PasswordHasher.digest(token.toCharArray());
+		this.host = host;
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * The user is only known after crowd validated the token. Shiro and nexus use the
+	 * principal as cache key and in events, so it is a digest instead of the token.
+	 */
+	@Override
+	public Object getPrincipal() {
+		return digest;
+	}
+
+	@Override
+	public Object getCredentials() {
+		return token;
+	}
+
+	@Override
+	public String getHost() {
+		return host;
+	}
+
+	@Override
+	public String toString() {
+		// never log the token itself
+		return getClass().getSimpleName() + " (" + host + ")";
+	}
+}
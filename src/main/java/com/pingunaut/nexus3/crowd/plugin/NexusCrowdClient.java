@@ -5,11 +5,13 @@ import org.sonatype.nexus.security.role.Role;
 import org.sonatype.nexus.security.user.User;
 import org.sonatype.nexus.security.user.UserSearchCriteria;
 
+import java.util.Map;
 import java.util.Set;
 
 /**
  * The Interface NexusCrowdClient provides all methods to be used to retrieve
- * user and role information from crowd.
+ * user and role information from crowd. The methods block until crowd answered,
+ * see {@link AsyncNexusCrowdClient} for their non-blocking counterparts.
  */
 public interface NexusCrowdClient {
 
@@ -79,4 +81,39 @@ public interface NexusCrowdClient {
 	 */
 	Set<String> findRolesByUser(String username);
 
+	/**
+	 * Find roles of many users with a constant number of requests.
+	 *
+	 * @param usernames
+	 *            the usernames
+	 * @return the roles per username
+	 */
+	Map<String, Set<String>> findRolesByUsers(Set<String> usernames);
+
+	/**
+	 * Create a crowd SSO session for an already authenticated user.
+	 *
+	 * @param username
+	 *            the username
+	 * @return the session token or null if crowd refused
+	 */
+	String createSession(String username);
+
+	/**
+	 * Validate a crowd SSO session token.
+	 *
+	 * @param token
+	 *            the session token
+	 * @return the user of the session or null if the token is not valid
+	 */
+	String validateSession(String token);
+
+	/**
+	 * End a crowd SSO session.
+	 *
+	 * @param token
+	 *            the session token
+	 */
+	void invalidateSession(String token);
+
 }
@@ -0,0 +1,202 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.codahale.metrics.Meter;
+import com.pingunaut.nexus3.crowd.plugin.CrowdException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Limits the requests of one kind (e.g. logins) that are sent to crowd at the same time.
+ * Requests above the limit wait in a bounded queue, without blocking a thread, and fail
+ * if they waited longer than the queue timeout or the queue is full. Each kind of request
+ * has its own bulkhead, so e.g. listing all users in the UI can't take all connections
+ * logins need.
+ * <p>
+ * With a target latency, the limit adapts to crowd (AIMD): it shrinks by a quarter whenever
+ * a request takes longer than the target and grows back by one per limit fast requests,
+ * at most up to the configured limit.
+ */
+public class Bulkhead {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Bulkhead.class);
+
+    private final String name;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long queueTimeoutMillis;
+    private final long targetLatencyMillis;
+    private final ScheduledExecutorService timer;
+    private final LongSupplier clock;
+    private final Meter rejected;
+
+    private final Deque<Pending<?>> queue = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+
+    /**
+     * @param name                name of the kind of requests, for logging
+     * @param limit               requests sent at the same time, 0 for no limit
+     * @param maxQueue            requests waiting at most
+     * @param queueTimeoutMillis  ms a request waits at most
+     * @param targetLatencyMillis ms a request may take before the limit shrinks, 0 for a fixed limit
+     * @param timer               runs the queue timeouts
+     * @param clock               current time in ms
+     * @param rejected            marked for requests failed because the queue was full or they waited too long
+     */
+    public Bulkhead(String name, int limit, int maxQueue, long queueTimeoutMillis, long targetLatencyMillis,
+                    ScheduledExecutorService timer, LongSupplier clock, Meter rejected) {
+        this.name = name;
+        this.maxLimit = Math.max(0, limit);
+        this.maxQueue = Math.max(0, maxQueue);
+        this.queueTimeoutMillis = Math.max(1, queueTimeoutMillis);
+        this.targetLatencyMillis = Math.max(0, targetLatencyMillis);
+        this.timer = timer;
+        this.clock = clock;
+        this.rejected = rejected;
+        this.limit = maxLimit;
+    }
+
+    /**
+     * Send a request now or as soon as the limit allows.
+     *
+     * @param request sends the request, called at most once
+     * @return the result of the request, or a future failed with a {@link CrowdException}
+     * if the queue is full or the request waited too long. Cancelling it while the request
+     * waits means it is never sent, cancelling it once it is sent cancels the request's future.
+     */
+    public <T> CompletableFuture<T> execute(Supplier<CompletableFuture<T>> request) {
+        if (maxLimit == 0) {
+            return request.get();
+        }
+        Pending<T> pending = new Pending<>(request);
+        synchronized (this) {
+            if (inFlight < (int) limit) {
+                inFlight++;
+            } else if (queue.size() < maxQueue) {
+                queue.addLast(pending);
+                timer.schedule(() -> expire(pending), queueTimeoutMillis, TimeUnit.MILLISECONDS);
+                pending.result.whenComplete((result, e) -> {
+                    if (pending.result.isCancelled()) {
+                        dequeue(pending);
+                    }
+                });
+                return pending.result;
+            } else {
+                rejected.mark();
+                LOGGER.debug("{} requests to crowd: queue full, rejecting", name);
+                pending.result.completeExceptionally(new CrowdException(
+                        String.format("too many %s requests to crowd, %d are waiting already", name, maxQueue)));
+                return pending.result;
+            }
+        }
+        start(pending);
+        return pending.result;
+    }
+
+    private <T> void start(Pending<T> pending) {
+        long started = clock.getAsLong();
+        CompletableFuture<T> sent;
+        try {
+            sent = pending.request.get();
+        } catch (RuntimeException e) {
+            sent = new CompletableFuture<>();
+            sent.completeExceptionally(e);
+        }
+        CompletableFuture<T> request = sent;
+        pending.result.whenComplete((result, e) -> {
+            if (pending.result.isCancelled()) {
+                request.cancel(false);
+            }
+        });
+        sent.whenComplete((result, e) -> {
+            release(clock.getAsLong() - started);
+            if (e != null) {
+                pending.result.completeExceptionally(e);
+            } else {
+                pending.result.complete(result);
+            }
+        });
+    }
+
+    private synchronized void dequeue(Pending<?> pending) {
+        queue.remove(pending);
+    }
+
+    private void expire(Pending<?> pending) {
+        synchronized (this) {
+            if (!queue.remove(pending)) {
+                return;
+            }
+        }
+        rejected.mark();
+        LOGGER.debug("{} request to crowd waited {} ms, giving up", name, queueTimeoutMillis);
+        pending.result.completeExceptionally(new CrowdException(
+                String.format("%s request to crowd waited more than %d ms", name, queueTimeoutMillis)));
+    }
+
+    private void release(long latencyMillis) {
+        Pending<?> next;
+        synchronized (this) {
+            adapt(latencyMillis);
+            inFlight--;
+            next = inFlight < (int) limit ? queue.pollFirst() : null;
+            if (next != null) {
+                inFlight++;
+            }
+        }
+        if (next != null) {
+            start(next);
+        }
+    }
+
+    private void adapt(long latencyMillis) {
+        if (targetLatencyMillis == 0) {
+            return;
+        }
+        if (latencyMillis > targetLatencyMillis) {
+            double reduced = Math.max(1, limit * 0.75);
+            if ((int) reduced < (int) limit) {
+                LOGGER.debug("{} requests to crowd take {} ms, limit lowered to {}", name, latencyMillis, (int) reduced);
+            }
+            limit = reduced;
+        } else {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    /**
+     * @return requests sent at the same time at most, 0 for no limit
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return requests waiting for the limit
+     */
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    private static final class Pending<T> {
+
+        final Supplier<CompletableFuture<T>> request;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Pending(Supplier<CompletableFuture<T>> request) {
+            this.request = request;
+        }
+    }
+}
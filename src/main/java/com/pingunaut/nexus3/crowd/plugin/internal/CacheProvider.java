@@ -1,91 +1,499 @@
 package com.pingunaut.nexus3.crowd.plugin.internal;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.pingunaut.nexus3.crowd.plugin.internal.entity.CachedGroups;
+import com.pingunaut.nexus3.crowd.plugin.internal.entity.CachedSession;
 import com.pingunaut.nexus3.crowd.plugin.internal.entity.CachedToken;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
 import org.ehcache.Cache;
 import org.ehcache.CacheManager;
 import org.ehcache.ValueSupplier;
 import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.CacheEventListenerConfigurationBuilder;
 import org.ehcache.config.builders.CacheManagerBuilder;
 import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.ehcache.config.units.EntryUnit;
+import org.ehcache.config.units.MemoryUnit;
+import org.ehcache.event.EventType;
 import org.ehcache.expiry.Duration;
 import org.ehcache.expiry.Expiry;
+import org.ehcache.impl.copy.SerializingCopier;
+import org.ehcache.impl.serialization.PlainJavaSerializer;
+import org.ehcache.spi.serialization.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonatype.nexus.security.role.Role;
+import org.sonatype.nexus.security.user.User;
 
+import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
 
+/**
+ * Provides separate caches for credentials, SSO sessions, group memberships, users and roles,
+ * so one hot key space can't evict another. Sizes and lifetimes of every cache
+ * are configured in crowd.properties as cache.&lt;name&gt;.entries, .offheap (MB),
+ * .ttl and .tti (seconds). Hits, misses and evictions of every cache are counted
+ * in {@link CrowdMetrics}.
+ * <p>
+ * With cache.persistent=true, group memberships, users and roles are also kept on disk
+ * (cache.&lt;name&gt;.disk MB) and survive restarts, so a restarted nexus doesn't start with
+ * a login storm against crowd. Credentials and sessions are only written to disk if
+ * their disk size is configured explicitly.
+ */
 @Singleton
 @Named("CrowdCacheProvider")
 public class CacheProvider {
 
-    private static final String TOKEN_CACHE_NAME = "crowd_plugin_tokens";
-    private static final String RESPONSES_CACHE_NAME = "crowd_plugin_responses";
-    private static final String GROUPS_KEY_PREFIX = "groups_";
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheProvider.class);
+
+    static final String TOKENS = "tokens";
+    static final String GROUPS = "groups";
+    static final String USERS = "users";
+    static final String ROLES = "roles";
+    static final String SESSIONS = "sessions";
+
+    private static final String CACHE_NAME_PREFIX = "crowd_plugin_";
 
     // cache lifetime 15m
     private static final int TTL_SECONDS = 3600 / 4;
 
+    // lifetime of empty group sets (e.g. unknown users) 1m
+    private static final int NEGATIVE_TTL_SECONDS = 60;
+
+    // validated SSO sessions are checked with crowd again after 1m
+    private static final int SESSION_TTL_SECONDS = 60;
+
+    // disk tier of persistent caches that don't hold secrets
+    private static final int DISK_MB = 32;
+
+    private final CrowdProperties props;
+    private final CrowdMetrics metrics;
+
     private Cache<String, CachedToken> tokenCache;
-    private Cache<String, Set> responseCache;
+    private Cache<String, CachedGroups> groupsCache;
+    private Cache<String, CachedUser> userCache;
+    private Cache<String, CachedRole> roleCache;
+    private Cache<String, CachedSession> sessionCache;
+
+    private final Counter tokenHits;
+    private final Counter tokenMisses;
+    private final Counter groupsHits;
+    private final Counter groupsMisses;
+    private final Counter userHits;
+    private final Counter userMisses;
+    private final Counter roleHits;
+    private final Counter roleMisses;
+    private final Counter sessionHits;
+    private final Counter sessionMisses;
+
+    private final long sessionTtlMillis;
+
+    private final long groupsTtlMillis;
+    private final long groupsNegativeTtlMillis;
+    private final long groupsRefreshAheadMillis;
+    private final long groupsStaleGraceMillis;
+
+    private final LongSupplier clock;
+
+    private final List<CrowdChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private final GroupSetInterner groupSets = new GroupSetInterner();
 
     private CacheManager manager;
 
-    public CacheProvider() {
-        manager = CacheManagerBuilder.newCacheManagerBuilder().build();
+    public CacheProvider(CrowdProperties props) {
+        this(props, new CrowdMetrics(new MetricRegistry()));
+    }
+
+    @Inject
+    public CacheProvider(CrowdProperties props, CrowdMetrics metrics) {
+        this(props, metrics, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock current time in ms, for expiring entries
+     */
+    CacheProvider(CrowdProperties props, CrowdMetrics metrics, LongSupplier clock) {
+        this.props = props;
+        this.metrics = metrics;
+        this.clock = clock;
+        tokenHits = metrics.cacheHits(TOKENS);
+        tokenMisses = metrics.cacheMisses(TOKENS);
+        groupsHits = metrics.cacheHits(GROUPS);
+        groupsMisses = metrics.cacheMisses(GROUPS);
+        userHits = metrics.cacheHits(USERS);
+        userMisses = metrics.cacheMisses(USERS);
+        roleHits = metrics.cacheHits(ROLES);
+        roleMisses = metrics.cacheMisses(ROLES);
+        sessionHits = metrics.cacheHits(SESSIONS);
+        sessionMisses = metrics.cacheMisses(SESSIONS);
+        sessionTtlMillis = TimeUnit.SECONDS.toMillis(props.getCacheTtl(SESSIONS, SESSION_TTL_SECONDS));
+        groupsTtlMillis = TimeUnit.SECONDS.toMillis(props.getCacheTtl(GROUPS, TTL_SECONDS));
+        groupsNegativeTtlMillis = TimeUnit.SECONDS.toMillis(props.getCacheNegativeTtl(GROUPS, NEGATIVE_TTL_SECONDS));
+        int refreshAheadPercent = props.getCacheRefreshAhead(GROUPS);
+        groupsRefreshAheadMillis = refreshAheadPercent > 0 && refreshAheadPercent < 100
+                ? groupsTtlMillis * refreshAheadPercent / 100 : groupsTtlMillis;
+        groupsStaleGraceMillis = TimeUnit.SECONDS.toMillis(Math.max(0, props.getCacheStaleGrace(GROUPS)));
+        if (props.isCachePersistent()) {
+            initPersistent();
+        } else {
+            init(false);
+        }
+    }
+
+    /**
+     * Open the persistent caches. If they can't be read (e.g. damaged by a crash), start over
+     * with empty ones, and if that fails too, keep the caches in memory only.
+     */
+    private void initPersistent() {
+        Path dir = props.getCachePersistentDirectory();
+        try {
+            init(true);
+            return;
+        } catch (RuntimeException e) {
+            LOGGER.warn("Persistent crowd caches in {} can't be opened, starting with empty caches: {}", dir, e.getMessage());
+            closeQuietly();
+        }
+        try {
+            MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+            init(true);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Persistent crowd caches in {} can't be created, caching in memory only", dir, e);
+            closeQuietly();
+            init(false);
+        }
+    }
+
+    private void init(boolean persistent) {
+        CacheManagerBuilder<CacheManager> builder = CacheManagerBuilder.newCacheManagerBuilder();
+        manager = persistent
+                ? builder.with(CacheManagerBuilder.persistence(props.getCachePersistentDirectory().toString())).build()
+                : builder.build();
         manager.init();
 
-        tokenCache = createTokenCache();
-        responseCache = createResponseCache();
+        tokenCache = createTokenCache(persistent);
+        groupsCache = createGroupsCache(persistent);
+        userCache = createUserCache(persistent);
+        roleCache = createRoleCache(persistent);
+        sessionCache = createSessionCache(persistent);
     }
 
+    private void closeQuietly() {
+        try {
+            manager.close();
+        } catch (RuntimeException e) {
+            LOGGER.debug("closing crowd caches failed", e);
+        }
+    }
+
+    /**
+     * Caches the credentials of a user. Replacing existing ones with another hash means the
+     * password changed, which is passed on to the {@link CrowdChangeListener}s.
+     */
     public void putToken(String username, CachedToken crowdToken) {
+        CachedToken replaced = tokenCache.get(username);
         tokenCache.put(username, crowdToken);
+        if (replaced != null && !Arrays.equals(replaced.hash, crowdToken.hash)) {
+            userChanged(username);
+        }
+    }
+
+    /**
+     * @param listener notified when cached credentials or memberships of a user change
+     */
+    public void addChangeListener(CrowdChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    private Cache<String, CachedToken> createTokenCache(boolean persistent) {
+        long ttl = TimeUnit.SECONDS.toMillis(props.getCacheTtl(TOKENS, TTL_SECONDS));
+        // credential hashes are only written to disk if asked for explicitly
+        return createCache(TOKENS, CachedToken.class, 1000, persistent ? props.getCacheDisk(TOKENS, 0) : 0,
+                value -> value.createdAt + ttl);
     }
 
-    private Cache<String, Set> createResponseCache() {
-        return manager.createCache(RESPONSES_CACHE_NAME, createCacheConfig(String.class, Set.class));
+    private Cache<String, CachedGroups> createGroupsCache(boolean persistent) {
+        // entries are kept until their stale grace period ends, freshness is decided on read
+        return createCache(GROUPS, CachedGroups.class, 10000, persistent ? props.getCacheDisk(GROUPS, DISK_MB) : 0,
+                value -> value.staleUntil);
     }
 
+    private Cache<String, CachedUser> createUserCache(boolean persistent) {
+        long ttl = TimeUnit.SECONDS.toMillis(props.getCacheTtl(USERS, TTL_SECONDS));
+        return createCache(USERS, CachedUser.class, 10000, persistent ? props.getCacheDisk(USERS, DISK_MB) : 0,
+                value -> value.createdAt + ttl);
+    }
+
+    private Cache<String, CachedRole> createRoleCache(boolean persistent) {
+        long ttl = TimeUnit.SECONDS.toMillis(props.getCacheTtl(ROLES, TTL_SECONDS));
+        return createCache(ROLES, CachedRole.class, 5000, persistent ? props.getCacheDisk(ROLES, DISK_MB) : 0,
+                value -> value.createdAt + ttl);
+    }
 
-    private Cache<String, CachedToken> createTokenCache() {
-        return manager.createCache(TOKEN_CACHE_NAME, createCacheConfig(String.class, CachedToken.class));
+    private Cache<String, CachedSession> createSessionCache(boolean persistent) {
+        return createCache(SESSIONS, CachedSession.class, 10000, persistent ? props.getCacheDisk(SESSIONS, 0) : 0,
+                value -> value.validUntil);
     }
 
     public Optional<CachedToken> getToken(String username) {
-        CachedToken element = tokenCache.get(username);
-        return Optional.ofNullable(element);
+        return count(tokenCache.get(username), tokenHits, tokenMisses);
+    }
+
+    /**
+     * @return the current time in ms, as used to expire entries
+     */
+    long currentTimeMillis() {
+        return clock.getAsLong();
     }
 
-    @SuppressWarnings("unchecked")
     public Optional<Set<String>> getGroups(String username) {
-        Set<String> element = responseCache.get(GROUPS_KEY_PREFIX + username);
+        return getGroupsEntry(username)
+                .filter(entry -> !entry.isExpired(clock.getAsLong()))
+                .map(entry -> entry.groups);
+    }
+
+    /**
+     * Get the cached group memberships of a user, including entries that are
+     * due for refresh or already expired but still within their stale grace period.
+     *
+     * @param username the username
+     * @return the cache entry
+     */
+    public Optional<CachedGroups> getGroupsEntry(String username) {
+        CachedGroups element = groupsCache.get(username);
+        if (element == null || element.isExpired(clock.getAsLong())) {
+            groupsMisses.inc();
+        } else {
+            groupsHits.inc();
+        }
         return Optional.ofNullable(element);
     }
 
+    /**
+     * Caches the group memberships of a user. Empty sets are kept for a
+     * shorter time than non-empty ones, so new users are picked up quickly.
+     *
+     * @param username the username
+     * @param groups   the groups as returned by crowd, must not be null, equal sets are stored only once
+     */
     public void putGroups(String username, Set<String> groups) {
-        responseCache.put(GROUPS_KEY_PREFIX + username, groups);
-    }
-
-    private <K, V> CacheConfigurationBuilder<K, V> createCacheConfig(Class<K> keyClass, Class<V> valueClass) {
-        return CacheConfigurationBuilder.newCacheConfigurationBuilder(keyClass, valueClass, ResourcePoolsBuilder
-                .heap(100))
-                .withExpiry(new Expiry<K, V>() {
-                    @Override
-                    public Duration getExpiryForCreation(K key, V value) {
-                        return Duration.of(TTL_SECONDS, TimeUnit.SECONDS);
-                    }
-
-                    @Override
-                    public Duration getExpiryForAccess(K key, ValueSupplier<? extends V> value) {
-                        return null;  // Keeping the existing expiry
-                    }
-
-                    @Override
-                    public Duration getExpiryForUpdate(K key, ValueSupplier<? extends V> oldValue, V newValue) {
-                        return null;  // Keeping the existing expiry
-                    }
-                });
+        long now = clock.getAsLong();
+        CachedGroups entry;
+        groups = groupSets.intern(groups);
+        if (groups.isEmpty()) {
+            entry = new CachedGroups(groups, now + groupsNegativeTtlMillis, now + groupsNegativeTtlMillis,
+                    now + groupsNegativeTtlMillis);
+        } else {
+            entry = new CachedGroups(groups, now + groupsRefreshAheadMillis, now + groupsTtlMillis,
+                    now + groupsTtlMillis + groupsStaleGraceMillis);
+        }
+        CachedGroups previous = groupsCache.get(username);
+        groupsCache.put(username, entry);
+        if (previous != null && !previous.groups.equals(groups)) {
+            userChanged(username);
+        }
+    }
+
+    public void invalidateGroups(String username) {
+        groupsCache.remove(username);
+        userChanged(username);
+    }
+
+    public long getGroupsHitCount() {
+        return groupsHits.getCount();
+    }
+
+    public long getGroupsMissCount() {
+        return groupsMisses.getCount();
+    }
+
+    public Optional<User> getUser(String username) {
+        CachedUser element = userCache.get(username);
+        return count(element != null ? element.user : null, userHits, userMisses);
+    }
+
+    public void putUser(String username, User user) {
+        userCache.put(username, new CachedUser(user, clock.getAsLong()));
+    }
+
+    public Optional<Role> getRole(String roleId) {
+        CachedRole element = roleCache.get(roleId);
+        return count(element != null ? element.role : null, roleHits, roleMisses);
+    }
+
+    public void putRole(String roleId, Role role) {
+        roleCache.put(roleId, new CachedRole(role, clock.getAsLong()));
+    }
+
+    /**
+     * @param key a digest of the session token, the token itself is never kept
+     * @return the session if it was validated recently
+     */
+    public Optional<CachedSession> getSession(String key) {
+        CachedSession session = sessionCache.get(key);
+        if (session != null && session.isExpired(clock.getAsLong())) {
+            session = null;
+        }
+        return count(session, sessionHits, sessionMisses);
+    }
+
+    /**
+     * Caches a validated session for cache.sessions.ttl, but not beyond its expiry in crowd.
+     *
+     * @param key        a digest of the session token
+     * @param username   the user of the session
+     * @param expiryDate when crowd expires the session, 0 if unknown
+     */
+    public void putSession(String key, String username, long expiryDate) {
+        long validUntil = clock.getAsLong() + sessionTtlMillis;
+        if (expiryDate > 0) {
+            validUntil = Math.min(validUntil, expiryDate);
+        }
+        sessionCache.put(key, new CachedSession(username, validUntil));
+    }
+
+    public void invalidateSession(String key) {
+        sessionCache.remove(key);
+    }
+
+    /**
+     * Drop everything cached for a user.
+     *
+     * @param username the username
+     */
+    public void invalidateUser(String username) {
+        tokenCache.remove(username);
+        groupsCache.remove(username);
+        userCache.remove(username);
+        userChanged(username);
+    }
+
+    public void close() {
+        manager.close();
+    }
+
+    private void userChanged(String username) {
+        listeners.forEach(listener -> listener.userChanged(username));
+    }
+
+    private static <V> Optional<V> count(V element, Counter hits, Counter misses) {
+        (element == null ? misses : hits).inc();
+        return Optional.ofNullable(element);
+    }
+
+    private <V> Cache<String, V> createCache(String name, Class<V> valueClass, int defaultEntries, int diskMb,
+                                             ToLongFunction<V> expiresAt) {
+        int entries = Math.max(1, props.getCacheEntries(name, defaultEntries));
+        int offHeapMb = props.getCacheOffHeap(name);
+        long ttiSeconds = props.getCacheTti(name);
+        if (diskMb > 0 && diskMb <= offHeapMb) {
+            // ehcache requires every tier to be larger than the one above
+            LOGGER.warn("cache.{}.disk must be larger than cache.{}.offheap, using {} MB", name, name, offHeapMb * 2);
+            diskMb = offHeapMb * 2;
+        }
+        LOGGER.info("Creating {} cache with {} entries, {} MB off-heap, {} MB on disk", name, entries, offHeapMb, diskMb);
+
+        ResourcePoolsBuilder pools = ResourcePoolsBuilder.newResourcePoolsBuilder().heap(entries, EntryUnit.ENTRIES);
+        if (offHeapMb > 0) {
+            pools = pools.offheap(offHeapMb, MemoryUnit.MB);
+        }
+        if (diskMb > 0) {
+            pools = pools.disk(diskMb, MemoryUnit.MB, true);
+        }
+        Counter evictions = metrics.cacheEvictions(name);
+        CacheConfigurationBuilder<String, V> config = CacheConfigurationBuilder
+                .newCacheConfigurationBuilder(String.class, valueClass, pools)
+                .withExpiry(createExpiry(expiresAt, ttiSeconds))
+                .add(CacheEventListenerConfigurationBuilder
+                        .newEventListenerConfiguration(event -> evictions.inc(), EventType.EVICTED)
+                        .unordered().asynchronous());
+        Serializer<V> serializer = null;
+        if (!Serializable.class.isAssignableFrom(valueClass)) {
+            // nexus security objects are mutable, so the cache hands out copies
+            serializer = new GsonSerializer<>(valueClass);
+            config = config.withValueCopier(new SerializingCopier<>(serializer));
+        }
+        if (diskMb > 0) {
+            if (serializer == null) {
+                serializer = new PlainJavaSerializer<>(CacheProvider.class.getClassLoader());
+            }
+            serializer = new ChecksumSerializer<>(serializer);
+        }
+        if (serializer != null) {
+            config = config.withValueSerializer(serializer);
+        }
+        return manager.createCache(CACHE_NAME_PREFIX + name, config);
+    }
+
+    /**
+     * @param expiresAt  when an entry expires, in ms since the epoch
+     * @param ttiSeconds entries not read for this long expire earlier, 0 to keep them until they expire
+     */
+    private <K, V> Expiry<K, V> createExpiry(ToLongFunction<V> expiresAt, long ttiSeconds) {
+        long ttiMillis = TimeUnit.SECONDS.toMillis(ttiSeconds);
+        return new Expiry<K, V>() {
+            @Override
+            public Duration getExpiryForCreation(K key, V value) {
+                return lifetime(value);
+            }
+
+            @Override
+            public Duration getExpiryForAccess(K key, ValueSupplier<? extends V> value) {
+                // without time to idle, keep the existing expiry
+                return ttiMillis > 0 ? lifetime(value.value()) : null;
+            }
+
+            @Override
+            public Duration getExpiryForUpdate(K key, ValueSupplier<? extends V> oldValue, V newValue) {
+                return lifetime(newValue);
+            }
+
+            // time to idle only shortens the lifetime, reading an entry never keeps it beyond its ttl
+            private Duration lifetime(V value) {
+                long remaining = Math.max(0, expiresAt.applyAsLong(value) - clock.getAsLong());
+                return Duration.of(ttiMillis > 0 ? Math.min(ttiMillis, remaining) : remaining, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+
+    /**
+     * Cached user, with the time it was cached as the ttl can't be kept in {@link User}.
+     */
+    private static final class CachedUser {
+
+        final User user;
+        final long createdAt;
+
+        CachedUser(User user, long createdAt) {
+            this.user = user;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * Cached role, with the time it was cached as the ttl can't be kept in {@link Role}.
+     */
+    private static final class CachedRole {
+
+        final Role role;
+        final long createdAt;
+
+        CachedRole(Role role, long createdAt) {
+            this.role = role;
+            this.createdAt = createdAt;
+        }
     }
 }
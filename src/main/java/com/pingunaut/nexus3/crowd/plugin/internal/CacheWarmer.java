@@ -0,0 +1,113 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Fills the caches in the background when the plugin starts (warmup.enabled=true), so the
+ * first requests after a restart don't all go to crowd: opens warmup.connections pooled
+ * connections, loads all groups into the role catalog (or the role cache if the catalog is
+ * disabled) and the details and memberships of the warmup.users (e.g. service accounts of build servers). Passwords can't be checked
+ * ahead of time, the first login of every user still goes to crowd.
+ * Progress is logged and available as the warmup.progress and warmup.duration metrics.
+ */
+@Singleton
+@Named
+public class CacheWarmer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheWarmer.class);
+
+    private final CachingNexusCrowdClient client;
+    private final CacheProvider cache;
+    private final RoleCatalog roleCatalog;
+    private final boolean roleCatalogEnabled;
+    private final boolean enabled;
+    private final List<String> users;
+    private final int connections;
+    private final AtomicInteger done = new AtomicInteger();
+    private final int steps;
+
+    private volatile long duration = -1;
+
+    @Inject
+    public CacheWarmer(CachingNexusCrowdClient client, CacheProvider cache, RoleCatalog roleCatalog,
+                       CrowdProperties props, CrowdMetrics metrics) {
+        this.client = client;
+        this.cache = cache;
+        this.roleCatalog = roleCatalog;
+        this.roleCatalogEnabled = props.isRoleCatalogEnabled();
+        this.enabled = props.isWarmUpEnabled();
+        this.users = props.getWarmUpUsers();
+        this.connections = Math.max(0, Math.min(props.getWarmUpConnections(), props.getMaxConnectionsPerRoute()));
+        // connections, roles and every user
+        this.steps = 2 + users.size();
+        if (enabled) {
+            metrics.gauge("warmup.progress", () -> done.get() * 100 / steps);
+            metrics.gauge("warmup.duration", () -> duration);
+        }
+    }
+
+    /**
+     * Start warming up without waiting for it, failures are logged and don't stop the other steps.
+     *
+     * @return completes when the warm-up is done
+     */
+    public CompletableFuture<Void> start() {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long start = System.currentTimeMillis();
+        LOGGER.info("Warming up crowd caches: {} connections, all groups and {} users", connections, users.size());
+        List<CompletableFuture<?>> tasks = new ArrayList<>();
+        tasks.add(step("connections", () -> client.primeConnectionsAsync(connections)));
+        tasks.add(step("groups", this::warmUpRoles));
+        for (String user : users) {
+            tasks.add(step("user " + user, () -> CompletableFuture.allOf(
+                    client.findUserByUsernameAsync(user), client.findRolesByUserAsync(user))));
+        }
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            duration = System.currentTimeMillis() - start;
+            LOGGER.info("Crowd warm-up finished in {} ms", duration);
+        });
+    }
+
+    /**
+     * @return percentage of warm-up steps done
+     */
+    public int getProgress() {
+        return done.get() * 100 / steps;
+    }
+
+    /**
+     * Roles are looked up in the catalog if it is enabled, the role cache is only used without it.
+     */
+    private CompletableFuture<Void> warmUpRoles() {
+        if (roleCatalogEnabled) {
+            return roleCatalog.reload().thenRun(() -> LOGGER.info("Crowd warm-up loaded the role catalog"));
+        }
+        return client.findRolesAsync().thenAccept(roles -> {
+            roles.forEach(role -> cache.putRole(role.getRoleId(), role));
+            LOGGER.info("Crowd warm-up loaded {} groups", roles.size());
+        });
+    }
+
+    private CompletableFuture<Void> step(String name, Supplier<CompletableFuture<?>> task) {
+        return task.get().handle((result, e) -> {
+            if (e != null) {
+                LOGGER.warn("Crowd warm-up of {} failed: {}", name, e.getMessage());
+            }
+            int finished = done.incrementAndGet();
+            LOGGER.debug("Crowd warm-up of {} done, {}/{} steps", name, finished, steps);
+            return null;
+        });
+    }
+}
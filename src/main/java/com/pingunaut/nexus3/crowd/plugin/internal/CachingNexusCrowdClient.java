@@ -1,25 +1,45 @@
 package com.pingunaut.nexus3.crowd.plugin.internal;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
+import com.pingunaut.nexus3.crowd.plugin.AsyncNexusCrowdClient;
+import com.pingunaut.nexus3.crowd.plugin.CrowdException;
 import com.pingunaut.nexus3.crowd.plugin.NexusCrowdClient;
+import com.pingunaut.nexus3.crowd.plugin.internal.entity.CachedGroups;
 import com.pingunaut.nexus3.crowd.plugin.internal.entity.CachedToken;
+import com.pingunaut.nexus3.crowd.plugin.internal.entity.CachedSession;
+import com.pingunaut.nexus3.crowd.plugin.internal.entity.CrowdEvents;
+import com.pingunaut.nexus3.crowd.plugin.internal.entity.CrowdMembershipsResult;
+import com.pingunaut.nexus3.crowd.plugin.internal.entity.CrowdSession;
 import com.pingunaut.nexus3.crowd.plugin.internal.entity.mapper.CrowdMapper;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.apache.shiro.authc.UsernamePasswordToken;
 import org.apache.shiro.util.StringUtils;
 import org.slf4j.Logger;
@@ -35,27 +55,90 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 @Singleton
 @Named("CachingNexusCrowdClient")
-public class CachingNexusCrowdClient implements NexusCrowdClient {
+public class CachingNexusCrowdClient implements NexusCrowdClient, AsyncNexusCrowdClient {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CachingNexusCrowdClient.class);
 
-    private final CloseableHttpClient client;
+    private static final int EVICTION_INTERVAL_SECONDS = 5;
+
+    private static final String REST_PATH = "/rest/usermanagement/1/";
+
+    // a membership document fetched for a bulk lookup answers the following ones for 1m,
+    // e.g. the next keystrokes of a user search
+    private static final long RECENT_MEMBERSHIPS_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    // memory a response takes while it is mapped, no matter how large it is
+    private static final int RESPONSE_BUFFER_BYTES = 32 * 1024;
+
+    // each has its own bulkhead, so neither can take the connections of the others
+    static final String AUTHENTICATION = "authentication";
+    static final String LOOKUP = "lookup";
+    static final String DIRECTORY = "directory";
+
+    private final CloseableHttpAsyncClient client;
+    private final PoolingNHttpClientConnectionManager connectionManager;
+    private final ScheduledExecutorService connectionEvictor;
+    // maps responses, at most one thread per connection
+    private final ExecutorService responseExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("crowd-response-%d").setDaemon(true).build());
+    private final int pageSize;
+    private final int pageParallelism;
+    private final int maxConcurrentRefreshes;
+    private final Set<String> refreshingUsers = ConcurrentHashMap.newKeySet();
+    private final SingleFlight singleFlight = new SingleFlight();
     private final CacheProvider cache;
+    private final CrowdMetrics metrics;
+    private final CircuitBreaker circuitBreaker;
+    private final Map<String, Bulkhead> bulkheads = new HashMap<>();
+    private final long slowCallNanos;
     private final URI serverUri;
     private final HttpHost host;
     private final boolean authCacheEnabled;
+    private final int hashIterations;
+    private final long localMembershipsMillis;
+    private final AtomicBoolean loadingMemberships = new AtomicBoolean();
+    private volatile CrowdMembershipsResult localMemberships;
+    private volatile long localMembershipsLoadedAt;
+    private volatile CrowdMembershipsResult recentMemberships;
+    private volatile long recentMembershipsFetchedAt;
 
-    @Inject
     public CachingNexusCrowdClient(CrowdProperties props, CacheProvider cache) {
+        this(props, cache, new CrowdMetrics(new MetricRegistry()));
+    }
+
+    @Inject
+    public CachingNexusCrowdClient(CrowdProperties props, CacheProvider cache, CrowdMetrics metrics) {
         this.cache = cache;
+        this.metrics = metrics;
         this.authCacheEnabled = props.isCacheAuthenticationEnabled();
+        this.hashIterations = props.isCacheAuthenticationHmac()
+                ? PasswordHasher.HMAC : Math.max(1, props.getCacheAuthenticationIterations());
         LOGGER.info("Authentication Cache enabled: " + authCacheEnabled);
         serverUri = URI.create(normalizeCrowdServerUri(props.getServerUrl()));
         host = new HttpHost(serverUri.getHost(), serverUri.getPort(), serverUri.getScheme());
@@ -67,7 +150,109 @@ public class CachingNexusCrowdClient implements NexusCrowdClient {
         UsernamePasswordCredentials usernamePasswordCredentials = new UsernamePasswordCredentials(props.getApplicationName(), props.getApplicationPassword());
         CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
         credentialsProvider.setCredentials(new AuthScope(serverUri.getHost(), serverUri.getPort()), usernamePasswordCredentials);
-        client = HttpClientBuilder.create().setDefaultRequestConfig(defaultRequestConfig).setDefaultCredentialsProvider(credentialsProvider).build();
+        // crowd is a single route, so by default all pooled connections may be used for it
+        connectionManager = createConnectionManager(props);
+        connectionManager.setMaxTotal(Math.max(1, props.getMaxConnections()));
+        connectionManager.setDefaultMaxPerRoute(Math.max(1, props.getMaxConnectionsPerRoute()));
+        registerPoolGauges();
+        circuitBreaker = new CircuitBreaker(props);
+        slowCallNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, props.getCircuitBreakerSlowCall()));
+        metrics.gauge("circuitbreaker.state", () -> circuitBreaker.getState().ordinal());
+        metrics.gauge("circuitbreaker.failurerate", circuitBreaker::getFailureRate);
+        metrics.gauge("singleflight.executed", singleFlight::getExecutedCount);
+        metrics.gauge("singleflight.collapsed", singleFlight::getCollapsedCount);
+        client = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(createKeepAliveStrategy(props.getKeepAlive()))
+                .setDefaultRequestConfig(defaultRequestConfig)
+                .setDefaultCredentialsProvider(credentialsProvider)
+                .setThreadFactory(new ThreadFactoryBuilder().setNameFormat("crowd-io-%d").setDaemon(true).build())
+                .build();
+        client.start();
+        connectionEvictor = startConnectionEvictor(props.getIdleTimeout());
+        // by default logins get half of the connections, lookups and listings share the rest
+        int connections = Math.max(1, props.getMaxConnectionsPerRoute());
+        createBulkhead(props, AUTHENTICATION, Math.max(1, connections / 2));
+        createBulkhead(props, LOOKUP, Math.max(1, connections * 3 / 10));
+        createBulkhead(props, DIRECTORY, Math.max(1, connections / 5));
+        pageSize = Math.max(1, props.getPageSize());
+        pageParallelism = Math.max(1, props.getPageParallelism());
+        maxConcurrentRefreshes = props.getCacheRefreshAhead(CacheProvider.GROUPS) > 0
+                ? Math.max(1, props.getCacheRefreshThreads(CacheProvider.GROUPS)) : 0;
+        localMembershipsMillis = props.isLocalMembershipsEnabled()
+                ? TimeUnit.SECONDS.toMillis(Math.max(1, props.getLocalMembershipsRefreshInterval())) : 0;
+    }
+
+    private static PoolingNHttpClientConnectionManager createConnectionManager(CrowdProperties props) {
+        IOReactorConfig config = IOReactorConfig.custom()
+                .setConnectTimeout(props.getConnectTimeout())
+                .setSoTimeout(props.getSocketTimeout())
+                .build();
+        try {
+            return new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(config,
+                    new ThreadFactoryBuilder().setNameFormat("crowd-io-dispatcher-%d").setDaemon(true).build()));
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("Error starting http client", e);
+        }
+    }
+
+    /**
+     * Keep connections alive as long as crowd allows, but no longer than maxKeepAlive.
+     *
+     * @param maxKeepAlive upper limit in ms, non-positive values use whatever crowd sends
+     * @return the keep alive strategy
+     */
+    private static ConnectionKeepAliveStrategy createKeepAliveStrategy(long maxKeepAlive) {
+        return (response, context) -> {
+            long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            if (maxKeepAlive <= 0) {
+                return keepAlive;
+            }
+            return keepAlive < 0 ? maxKeepAlive : Math.min(keepAlive, maxKeepAlive);
+        };
+    }
+
+    private void createBulkhead(CrowdProperties props, String requestClass, int defaultLimit) {
+        // the connection evictor also runs the queue timeouts
+        Bulkhead bulkhead = new Bulkhead(requestClass, props.getBulkheadLimit(requestClass, defaultLimit),
+                props.getBulkheadQueue(requestClass), props.getBulkheadQueueTimeout(), props.getBulkheadTargetLatency(),
+                connectionEvictor, System::currentTimeMillis, metrics.bulkheadRejected(requestClass));
+        bulkheads.put(requestClass, bulkhead);
+        metrics.gauge("bulkhead." + requestClass + ".limit", bulkhead::getLimit);
+        metrics.gauge("bulkhead." + requestClass + ".inflight", bulkhead::getInFlight);
+        metrics.gauge("bulkhead." + requestClass + ".queued", bulkhead::getQueued);
+    }
+
+    private void registerPoolGauges() {
+        metrics.gauge("connections.leased", () -> connectionManager.getTotalStats().getLeased());
+        metrics.gauge("connections.pending", () -> connectionManager.getTotalStats().getPending());
+        metrics.gauge("connections.available", () -> connectionManager.getTotalStats().getAvailable());
+        metrics.gauge("connections.max", () -> connectionManager.getTotalStats().getMax());
+    }
+
+    private ScheduledExecutorService startConnectionEvictor(long idleTimeout) {
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("crowd-connection-evictor-%d").setDaemon(true).build());
+        evictor.scheduleWithFixedDelay(() -> {
+            connectionManager.closeExpiredConnections();
+            if (idleTimeout > 0) {
+                connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+            }
+        }, EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        return evictor;
+    }
+
+    /**
+     * Stop the connection eviction and close all pooled connections.
+     */
+    public void shutdown() {
+        connectionEvictor.shutdownNow();
+        try {
+            client.close();
+        } catch (IOException e) {
+            LOGGER.warn("error closing http client", e);
+        }
+        responseExecutor.shutdown();
     }
 
     /**
@@ -80,14 +265,144 @@ public class CachingNexusCrowdClient implements NexusCrowdClient {
         return serverUri.endsWith("/") ? serverUri.substring(0, serverUri.length() - 1) : serverUri;
     }
 
-    // handle CloseableHttpResponse properly
-    protected <T> T executeQuery(final HttpUriRequest request, final ResponseHandler<? extends T> responseHandler) {
+    /**
+     * Send a request to crowd without blocking. The response is mapped while it arrives, on
+     * a response thread (see {@link StreamingResponseConsumer}), which also completes the
+     * future. Latency and failures are recorded per endpoint in {@link CrowdMetrics}. While
+     * the {@link CircuitBreaker} is open, no request is sent and the future fails immediately.
+     * Requests above the limit of the {@link Bulkhead} of their kind wait for it without blocking.
+     * Cancelling the future aborts a request that is already sent.
+     *
+     * @return the mapped response, or a future failed with a {@link CrowdException} if crowd
+     * can't be reached, answers with a server error, the circuit breaker is open or the
+     * request waited too long for the bulkhead
+     */
+    protected <T> CompletableFuture<T> executeAsync(final HttpUriRequest request, final ResponseHandler<? extends T> responseHandler) {
+        String endpoint = endpoint(request.getURI());
+        return bulkheads.get(requestClass(endpoint)).execute(() -> sendAsync(request, responseHandler, endpoint));
+    }
+
+    private <T> CompletableFuture<T> sendAsync(HttpUriRequest request, ResponseHandler<? extends T> responseHandler,
+                                               String endpoint) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (!circuitBreaker.tryAcquire()) {
+            metrics.rejected(endpoint).mark();
+            future.completeExceptionally(new CrowdException("circuit breaker is open, not sending " + request.getURI()));
+            return future;
+        }
+        Timer.Context timer = metrics.requests(endpoint).time();
+        StreamingResponseConsumer<T> consumer = new StreamingResponseConsumer<>(responseHandler,
+                status -> !isError(status), responseExecutor, RESPONSE_BUFFER_BYTES);
+        // the response is received completely, it may still be mapped
+        CompletableFuture<HttpResponse> exchange = new CompletableFuture<>();
+        exchange.whenComplete((response, e) -> {
+            if (exchange.isCancelled()) {
+                future.cancel(false);
+            } else if (e != null) {
+                fail(future, endpoint, new CrowdException("error executing query " + request.getURI(), e));
+            } else if (isError(response.getStatusLine().getStatusCode())) {
+                fail(future, endpoint, new CrowdException(String.format("crowd answered %s with status %d",
+                        request.getURI(), response.getStatusLine().getStatusCode())));
+            } else {
+                consumer.getMapped().whenComplete((result, mappingError) -> {
+                    if (mappingError == null) {
+                        future.complete(result);
+                    } else {
+                        fail(future, endpoint, new CrowdException("error mapping response of " + request.getURI(),
+                                mappingError));
+                    }
+                });
+            }
+        });
+        Future<HttpResponse> sent = getClient().execute(HttpAsyncMethods.create(host, request), consumer, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                long nanos = timer.stop();
+                int status = response.getStatusLine().getStatusCode();
+                if (status >= 500) {
+                    circuitBreaker.onFailure();
+                } else if (slowCallNanos > 0 && nanos > slowCallNanos) {
+                    LOGGER.debug("slow request to {}: {} ms", endpoint, TimeUnit.NANOSECONDS.toMillis(nanos));
+                    circuitBreaker.onFailure();
+                } else {
+                    circuitBreaker.onSuccess();
+                }
+                completeLater(() -> exchange.complete(response));
+            }
+
+            @Override
+            public void failed(Exception e) {
+                timer.stop();
+                circuitBreaker.onFailure();
+                completeLater(() -> exchange.completeExceptionally(e));
+            }
+
+            @Override
+            public void cancelled() {
+                timer.stop();
+                circuitBreaker.onRelease();
+                completeLater(() -> exchange.cancel(false));
+            }
+
+            // whatever waits for the request must not run on the i/o dispatcher
+            private void completeLater(Runnable completion) {
+                try {
+                    responseExecutor.execute(completion);
+                } catch (RejectedExecutionException e) {
+                    completion.run();
+                }
+            }
+        });
+        future.whenComplete((result, e) -> {
+            if (future.isCancelled()) {
+                // aborts the exchange and frees its connection
+                sent.cancel(true);
+            }
+        });
+        return future;
+    }
+
+    private static boolean isError(int status) {
+        return status >= 500 || status == 401 || status == 403;
+    }
+
+    private void fail(CompletableFuture<?> future, String endpoint, CrowdException e) {
+        if (future.completeExceptionally(e)) {
+            metrics.errors(endpoint).mark();
+        }
+    }
+
+    /**
+     * Open pooled connections to crowd ahead of the first real requests, by sending that many
+     * cheap requests at the same time. Failures are ignored.
+     *
+     * @param connections the number of connections, at most connection.pool.max.perroute are opened
+     */
+    public CompletableFuture<Void> primeConnectionsAsync(int connections) {
+        return CompletableFuture.allOf(IntStream.range(0, connections)
+                .mapToObj(i -> executeAsync(httpGet(restUri("config/cookie")), response -> null).exceptionally(e -> null))
+                .toArray(CompletableFuture<?>[]::new));
+    }
+
+    /**
+     * Wait for a request, logging failures instead of throwing them.
+     *
+     * @param fallback returned if the request failed
+     */
+    private static <T> T await(CompletableFuture<T> future, T fallback) {
         try {
-            return getClient().execute(host, request, responseHandler);
-        } catch (IOException e) {
-            LOGGER.error("error executing query", e);
-            return null;
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("interrupted while waiting for crowd");
+        } catch (ExecutionException e) {
+            LOGGER.error("error executing query", unwrap(e.getCause()));
         }
+        return fallback;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
     }
 
     private HttpGet httpGet(String query) {
@@ -96,6 +411,14 @@ public class CachingNexusCrowdClient implements NexusCrowdClient {
         return g;
     }
 
+    // for resources that crowd only offers as xml
+    private HttpGet httpGetXml(String query) {
+        HttpGet g = new HttpGet(query);
+        g.addHeader("X-Atlassian-Token", "no-check");
+        g.addHeader("Accept", "application/xml");
+        return g;
+    }
+
     private void addDefaultHeaders(HttpUriRequest g) {
         g.addHeader("X-Atlassian-Token", "no-check");
         g.addHeader("Accept", "application/json");
@@ -110,68 +433,392 @@ public class CachingNexusCrowdClient implements NexusCrowdClient {
 
     @Override
     public boolean authenticate(UsernamePasswordToken token) {
+        return await(authenticateAsync(token), false);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> authenticateAsync(UsernamePasswordToken token) {
         // check if token is cached
         if (isAuthCacheEnabled() && authenticateFromCache(token)) {
-            return true;
+            return CompletableFuture.completedFuture(true);
         }
 
         // if authentication with cached value fails or is skipped, crowd and check auth
+        // concurrent attempts with the same credentials share one request, different passwords never do
+        String username = token.getUsername();
         String authRequest = CrowdMapper.toPasswordJsonString(token.getPassword());
-        String authResponse = executeQuery(httpPost(restUri("authentication?username=" + encodeUrlParameter(token.getUsername())), new StringEntity(authRequest, ContentType.APPLICATION_JSON)), CrowdMapper::toAuthToken);
+        String flightKey = "authentication:" + username + ":" + PasswordHasher.digest(token.getPassword());
+        // the caller may clear the token before crowd answered
+        char[] password = isAuthCacheEnabled() ? token.getPassword().clone() : null;
+        // the token is hashed and cached once by the shared request, not by every caller
+        return getSingleFlight().execute(flightKey, () -> this.<String>executeAsync(httpPost(restUri("authentication?username=" + encodeUrlParameter(username)), new StringEntity(authRequest, ContentType.APPLICATION_JSON)), CrowdMapper::toAuthToken)
+                .thenApply(authResponse -> {
+                    if (!StringUtils.hasText(authResponse)) {
+                        // authentication failed
+                        return false;
+                    }
+                    // authentication was successful
+                    if (password != null) {
+                        cacheToken(username, password);
+                    }
+                    return true;
+                }))
+                .whenComplete((authenticated, error) -> {
+                    if (password != null) {
+                        Arrays.fill(password, Character.MIN_VALUE);
+                    }
+                });
+    }
 
-        if (StringUtils.hasText(authResponse)) {
-            // authentication was successful
-            if (isAuthCacheEnabled()) {
-                getCache().putToken(token.getUsername(), createCachedToken(token.getPassword()));
-            }
-            return true;
+    @Override
+    public String createSession(String username) {
+        return await(createSessionAsync(username), null);
+    }
+
+    /**
+     * Creates the session without checking a password, the caller has to authenticate the user first.
+     */
+    @Override
+    public CompletableFuture<String> createSessionAsync(String username) {
+        String body = CrowdMapper.toSessionRequestJsonString(username);
+        return this.<CrowdSession>executeAsync(httpPost(restUri("session?validate-password=false"),
+                new StringEntity(body, ContentType.APPLICATION_JSON)), CrowdMapper::toSession)
+                .thenApply(session -> session == null ? null : session.token);
+    }
+
+    @Override
+    public String validateSession(String token) {
+        return await(validateSessionAsync(token), null);
+    }
+
+    @Override
+    public CompletableFuture<String> validateSessionAsync(String token) {
+        // only a digest of the token is used as key, so neither cache nor logs contain it
+        String key = PasswordHasher.digest(token.toCharArray());
+        Optional<CachedSession> cachedSession = getCache().getSession(key);
+        if (cachedSession.isPresent()) {
+            return CompletableFuture.completedFuture(cachedSession.get().username);
         }
-        // authentication failed
-        return false;
+        String body = CrowdMapper.toValidationFactorsJsonString();
+        return getSingleFlight().execute("session:" + key, () ->
+                this.<CrowdSession>executeAsync(httpPost(restUri("session/" + encodeUrlParameter(token)),
+                        new StringEntity(body, ContentType.APPLICATION_JSON)), CrowdMapper::toSession)
+                        .thenApply(session -> {
+                            if (session == null) {
+                                return null;
+                            }
+                            getCache().putSession(key, session.username, session.expiryDate);
+                            return session.username;
+                        }));
+    }
+
+    @Override
+    public void invalidateSession(String token) {
+        await(invalidateSessionAsync(token), null);
+    }
+
+    @Override
+    public CompletableFuture<Void> invalidateSessionAsync(String token) {
+        getCache().invalidateSession(PasswordHasher.digest(token.toCharArray()));
+        HttpDelete delete = new HttpDelete(restUri("session/" + encodeUrlParameter(token)));
+        addDefaultHeaders(delete);
+        return executeAsync(delete, response -> null);
     }
 
     protected boolean authenticateFromCache(UsernamePasswordToken token) {
         Optional<CachedToken> cachedToken = cache.getToken(token.getUsername());
         if (cachedToken.isPresent()) {
             // check password
-            boolean isPasswordValid = PasswordHasher.isPasswordCorrect(token.getPassword(), cachedToken.get().salt, cachedToken.get().hash);
+            CachedToken t = cachedToken.get();
+            boolean isPasswordValid = PasswordHasher.isPasswordCorrect(token.getPassword(), t.salt, t.iterations, t.hash);
             if (isPasswordValid) {
-                LOGGER.info("Authenticated using cached credentials");
+                LOGGER.debug("Authenticated using cached credentials");
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * Cache the credentials of a user crowd accepted. If the same password is cached already,
+     * e.g. by a login that didn't share the request, its hash is kept, so the login isn't taken
+     * for a password change.
+     */
+    private void cacheToken(String username, char[] password) {
+        Optional<CachedToken> cached = getCache().getToken(username);
+        if (cached.isPresent() && cached.get().iterations == hashIterations
+                && PasswordHasher.isPasswordCorrect(password, cached.get().salt, hashIterations, cached.get().hash)) {
+            getCache().putToken(username, new CachedToken(cached.get().hash, cached.get().salt, hashIterations));
+        } else {
+            getCache().putToken(username, createCachedToken(password));
+        }
+    }
+
     protected CachedToken createCachedToken(char[] input) {
         byte[] salt = PasswordHasher.getNextSalt();
-        return new CachedToken(PasswordHasher.hash(input, salt), salt);
+        return new CachedToken(PasswordHasher.hash(input, salt, hashIterations), salt, hashIterations);
     }
 
-    protected CloseableHttpClient getClient() {
+    protected CloseableHttpAsyncClient getClient() {
         return client;
     }
 
+    protected SingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
     @Override
     public Set<String> findRolesByUser(String username) {
-        Optional<Set<String>> cachedGroups = cache.getGroups(username);
-        if (cachedGroups.isPresent()) {
+        return await(findRolesByUserAsync(username), Collections.emptySet());
+    }
+
+    @Override
+    public CompletableFuture<Set<String>> findRolesByUserAsync(String username) {
+        Optional<CachedGroups> cachedGroups = cache.getGroupsEntry(username);
+        long now = cache.currentTimeMillis();
+        if (cachedGroups.isPresent() && !cachedGroups.get().isExpired(now)) {
             LOGGER.debug("return groups from cache");
-            return cachedGroups.get();
+            if (cachedGroups.get().isRefreshDue(now)) {
+                refreshRolesByUser(username);
+            }
+            return CompletableFuture.completedFuture(cachedGroups.get().groups);
+        }
+        CompletableFuture<Set<String>> groups = fetchRolesByUser(username);
+        if (!cachedGroups.isPresent()) {
+            return groups;
+        }
+        Set<String> staleGroups = cachedGroups.get().groups;
+        return groups.exceptionally(e -> {
+            LOGGER.warn("crowd is not available, using expired groups of {}", username);
+            return staleGroups;
+        });
+    }
+
+    /**
+     * Ask crowd for the groups of a user and cache them.
+     *
+     * @param username the username
+     * @return the groups, failed if crowd could not be asked
+     */
+    private CompletableFuture<Set<String>> fetchRolesByUser(String username) {
+        CrowdMembershipsResult local = getLocalMemberships();
+        if (local != null) {
+            Set<String> groups = local.getNestedGroups(username);
+            cache.putGroups(username, groups);
+            return CompletableFuture.completedFuture(groups);
+        }
+        return getSingleFlight().execute("groups:" + username, () -> {
+            String restUri = restUri(String.format("user/group/nested?username=%s", encodeUrlParameter(username)));
+            LOGGER.debug("getting groups from " + restUri);
+            return this.<Set<String>>executeAsync(httpGet(restUri), CrowdMapper::toRoleStrings).thenApply(groups -> {
+                if (groups == null) {
+                    // a failure is never cached as "no groups"
+                    throw new CrowdException("could not read groups of " + username);
+                }
+                cache.putGroups(username, groups);
+                return groups;
+            });
+        });
+    }
+
+    /**
+     * Refresh the groups of a user in the background, at most once at a time per user.
+     * If the refresh fails, the cached groups are kept.
+     */
+    private void refreshRolesByUser(String username) {
+        if (refreshingUsers.size() >= maxConcurrentRefreshes || !refreshingUsers.add(username)) {
+            // too many pending refreshes, the entry will be fetched once it expires
+            return;
+        }
+        fetchRolesByUser(username).whenComplete((groups, e) -> refreshingUsers.remove(username));
+    }
+
+    @Override
+    public Map<String, Set<String>> findRolesByUsers(Set<String> usernames) {
+        return await(findRolesByUsersAsync(usernames), Collections.emptyMap());
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Set<String>>> findRolesByUsersAsync(Set<String> usernames) {
+        Map<String, Set<String>> result = new HashMap<>();
+        Set<String> missing = new HashSet<>();
+        for (String username : usernames) {
+            Optional<Set<String>> cached = getCache().getGroups(username);
+            if (cached.isPresent()) {
+                result.put(username, cached.get());
+            } else {
+                missing.add(username);
+            }
+        }
+        if (missing.isEmpty()) {
+            // e.g. the next keystroke of a user search, all memberships were fetched for the last one
+            return CompletableFuture.completedFuture(result);
+        }
+        CrowdMembershipsResult local = getLocalMemberships();
+        return (local != null ? CompletableFuture.completedFuture(local) : getRecentMemberships())
+                .exceptionally(e -> null)
+                .thenCompose(memberships -> {
+                    if (memberships == null) {
+                        LOGGER.warn("bulk membership lookup failed, falling back to lookups per user");
+                        return findRolesByEachUser(missing).thenApply(found -> {
+                            result.putAll(found);
+                            return result;
+                        });
+                    }
+                    for (String username : missing) {
+                        Set<String> groups = memberships.getNestedGroups(username);
+                        cache.putGroups(username, groups);
+                        result.put(username, groups);
+                    }
+                    return CompletableFuture.completedFuture(result);
+                });
+    }
+
+    /**
+     * @return the memberships fetched for a recent bulk lookup, fetched again once they are
+     * older than {@link #RECENT_MEMBERSHIPS_MILLIS}
+     */
+    private CompletableFuture<CrowdMembershipsResult> getRecentMemberships() {
+        CrowdMembershipsResult recent = recentMemberships;
+        if (recent != null && System.currentTimeMillis() - recentMembershipsFetchedAt < RECENT_MEMBERSHIPS_MILLIS) {
+            return CompletableFuture.completedFuture(recent);
+        }
+        return getSingleFlight().execute("memberships", () -> fetchMembershipsAsync().thenApply(memberships -> {
+            if (memberships != null) {
+                recentMemberships = memberships;
+                recentMembershipsFetchedAt = System.currentTimeMillis();
+            }
+            return memberships;
+        }));
+    }
+
+    /**
+     * Fetch all direct memberships of the directory with a single request.
+     *
+     * @return the memberships, or null if crowd's answer could not be used
+     */
+    public CompletableFuture<CrowdMembershipsResult> fetchMembershipsAsync() {
+        return executeAsync(httpGetXml(restUri("group/membership")), CrowdMapper::toMemberships);
+    }
+
+    /**
+     * With memberships.local.enabled, nested groups are resolved from a copy of all direct
+     * memberships instead of asking crowd per user. The copy is reloaded in the background
+     * once it is older than memberships.local.refreshinterval; if reloading keeps failing,
+     * crowd is asked again after twice that time.
+     *
+     * @return the memberships, null if they are not resolved locally or not loaded
+     */
+    private CrowdMembershipsResult getLocalMemberships() {
+        if (localMembershipsMillis <= 0) {
+            return null;
+        }
+        CrowdMembershipsResult current = localMemberships;
+        long age = System.currentTimeMillis() - localMembershipsLoadedAt;
+        if ((current == null || age >= localMembershipsMillis) && loadingMemberships.compareAndSet(false, true)) {
+            long start = System.currentTimeMillis();
+            fetchMembershipsAsync().whenComplete((memberships, e) -> {
+                if (memberships != null) {
+                    localMemberships = memberships;
+                    localMembershipsLoadedAt = System.currentTimeMillis();
+                    LOGGER.debug("Loaded memberships of {} users in {} ms", memberships.getUsernames().size(),
+                            localMembershipsLoadedAt - start);
+                } else {
+                    LOGGER.warn("loading memberships failed, nested groups are resolved by crowd until it succeeds");
+                }
+                loadingMemberships.set(false);
+            });
+        }
+        return age < 2 * localMembershipsMillis ? current : null;
+    }
+
+    /**
+     * Fetch the changes of the directory since an event token.
+     *
+     * @param eventToken the token of the last sync, null to get the current token only
+     * @return the changes, or null if crowd rejected the token or doesn't support events
+     */
+    public CompletableFuture<CrowdEvents> fetchEventsAsync(String eventToken) {
+        String path = eventToken == null ? "event" : "event/" + encodeUrlParameter(eventToken);
+        return executeAsync(httpGet(restUri(path)), CrowdMapper::toEvents);
+    }
+
+    /**
+     * Look up the groups of each user, at most as many at a time as the lookup bulkhead sends
+     * at once, so the lookups of a large directory don't overflow its queue.
+     *
+     * @return the groups per username, failed if the groups of any user could not be looked up
+     */
+    private CompletableFuture<Map<String, Set<String>>> findRolesByEachUser(Set<String> usernames) {
+        List<String> remaining = new ArrayList<>(usernames);
+        int limit = bulkheads.get(LOOKUP).getLimit();
+        int chunkSize = limit > 0 ? limit : Math.max(1, remaining.size());
+        Map<String, Set<String>> found = new ConcurrentHashMap<>();
+        CompletableFuture<Void> done = CompletableFuture.completedFuture(null);
+        for (int from = 0; from < remaining.size(); from += chunkSize) {
+            List<String> chunk = remaining.subList(from, Math.min(from + chunkSize, remaining.size()));
+            done = done.thenCompose(previous -> CompletableFuture.allOf(chunk.stream()
+                    .map(u -> findRolesByUserAsync(u).thenAccept(groups -> found.put(u, groups)))
+                    .toArray(CompletableFuture<?>[]::new)));
         }
-        String restUri = restUri(String.format("user/group/nested?username=%s", encodeUrlParameter(username)));
-        LOGGER.debug("getting groups from " + restUri);
-        return executeQuery(httpGet(restUri), CrowdMapper::toRoleStrings);
+        return done.thenApply(all -> found);
+    }
+
+    /**
+     * @param listener notified when credentials or memberships of a user change in the caches
+     */
+    public void addChangeListener(CrowdChangeListener listener) {
+        cache.addChangeListener(listener);
+    }
+
+    /**
+     * Drop the cached group memberships of a user, so the next lookup goes to crowd.
+     *
+     * @param username the username
+     */
+    public void invalidateRolesByUser(String username) {
+        cache.invalidateGroups(username);
     }
 
     @Override
     public User findUserByUsername(String username) {
-        return executeQuery(httpGet(restUri(String.format("user?username=%s", encodeUrlParameter(username)))), CrowdMapper::toUser);
+        return await(findUserByUsernameAsync(username), null);
+    }
+
+    @Override
+    public CompletableFuture<User> findUserByUsernameAsync(String username) {
+        Optional<User> cachedUser = cache.getUser(username);
+        if (cachedUser.isPresent()) {
+            return CompletableFuture.completedFuture(cachedUser.get());
+        }
+        return getSingleFlight().execute("user:" + username, () ->
+                this.<User>executeAsync(httpGet(restUri(String.format("user?username=%s", encodeUrlParameter(username)))), CrowdMapper::toUser)
+                        .thenApply(user -> {
+                            if (user != null) {
+                                cache.putUser(username, user);
+                            }
+                            return user;
+                        }));
     }
 
     @Override
     public Role findRoleByRoleId(String roleId) {
-        return executeQuery(httpGet(restUri(String.format("group?groupname=%s", encodeUrlParameter(roleId)))), CrowdMapper::toRole);
+        return await(findRoleByRoleIdAsync(roleId), null);
+    }
+
+    @Override
+    public CompletableFuture<Role> findRoleByRoleIdAsync(String roleId) {
+        Optional<Role> cachedRole = cache.getRole(roleId);
+        if (cachedRole.isPresent()) {
+            return CompletableFuture.completedFuture(cachedRole.get());
+        }
+        return this.<Role>executeAsync(httpGet(restUri(String.format("group?groupname=%s", encodeUrlParameter(roleId)))), CrowdMapper::toRole)
+                .thenApply(role -> {
+                    if (role != null) {
+                        cache.putRole(roleId, role);
+                    }
+                    return role;
+                });
     }
 
     @Override
@@ -179,15 +826,31 @@ public class CachingNexusCrowdClient implements NexusCrowdClient {
         return findUsers().stream().map(User::getUserId).collect(Collectors.toSet());
     }
 
+    @Override
+    public CompletableFuture<Set<String>> findAllUsernamesAsync() {
+        return findUsersAsync().thenApply(users -> users.stream().map(User::getUserId).collect(Collectors.toSet()));
+    }
+
     @Override
     public Set<User> findUsers() {
-        return findPaginated("search?entity-type=user&expand=user", CrowdMapper::toUsers);
+        return await(findPaginated("search?entity-type=user&expand=user", CrowdMapper::toUsers, true),
+                Collections.emptySet());
+    }
+
+    @Override
+    public CompletableFuture<Set<User>> findUsersAsync() {
+        return findPaginated("search?entity-type=user&expand=user", CrowdMapper::toUsers, false);
     }
 
     @Override
     public Set<User> findUserByCriteria(UserSearchCriteria criteria) {
+        return await(findUserByCriteriaAsync(criteria), Collections.emptySet());
+    }
+
+    @Override
+    public CompletableFuture<Set<User>> findUserByCriteriaAsync(UserSearchCriteria criteria) {
         String query = createQueryFromCriteria(criteria);
-        return executeQuery(httpGet(restUri(String.format("search?entity-type=user&expand=user&restriction=%s", query))), CrowdMapper::toUsers);
+        return executeAsync(httpGet(restUri(String.format("search?entity-type=user&expand=user&restriction=%s", query))), CrowdMapper::toUsers);
     }
 
     private String createQueryFromCriteria(UserSearchCriteria criteria) {
@@ -203,27 +866,115 @@ public class CachingNexusCrowdClient implements NexusCrowdClient {
 
     @Override
     public Set<Role> findRoles() {
-        return findPaginated("search?entity-type=group&expand=group", CrowdMapper::toRoles);
-    }
-
-    @SuppressWarnings("unchecked")
-    protected <T> Set<T> findPaginated(final String url, ResponseHandler<Set<? extends T>> responseHandler) {
-        Set<T> results = new HashSet<>();
-        Set<T> resultsPaginated;
-        int startIndex = 0;
-        int maxResults = 1000;
-        do {
-            resultsPaginated = (Set<T>) executeQuery(httpGet(restUri(String.format("%s&start-index=%s&max-results=%s", url, startIndex, maxResults))), responseHandler);
-            startIndex += maxResults;
-            if (resultsPaginated != null) {
-                results.addAll(resultsPaginated);
+        return await(findPaginated("search?entity-type=group&expand=group", CrowdMapper::toRoles, true),
+                Collections.emptySet());
+    }
+
+    @Override
+    public CompletableFuture<Set<Role>> findRolesAsync() {
+        return findPaginated("search?entity-type=group&expand=group", CrowdMapper::toRoles, false);
+    }
+
+    /**
+     * @param partial true to return the results of the pages read before a page failed, like
+     *                the listings in the UI always did; false to fail, e.g. for the mirror and
+     *                the role catalog, which must not take part of the directory for all of it
+     */
+    protected <T> CompletableFuture<Set<T>> findPaginated(final String url, ResponseHandler<Set<? extends T>> responseHandler,
+                                                          boolean partial) {
+        return findPages(url, responseHandler, partial, 0, new HashSet<>());
+    }
+
+    /**
+     * Speculatively fetch the next pages concurrently, until a page is not full.
+     * Pages are merged in order, once all pages of a batch are done. Pages past
+     * the end are cancelled: those still waiting for the bulkhead are not sent,
+     * those already sent are aborted.
+     */
+    private <T> CompletableFuture<Set<T>> findPages(final String url, ResponseHandler<Set<? extends T>> responseHandler,
+                                                    boolean partial, int startIndex, Set<T> results) {
+        List<CompletableFuture<Set<? extends T>>> pages = new ArrayList<>(pageParallelism);
+        for (int i = 0; i < pageParallelism; i++) {
+            pages.add(executeAsync(httpGet(pageUri(url, startIndex + i * pageSize)), responseHandler));
+        }
+        for (int i = 0; i < pages.size() - 1; i++) {
+            List<CompletableFuture<Set<? extends T>>> later = pages.subList(i + 1, pages.size());
+            pages.get(i).thenAccept(page -> {
+                if (page == null || page.size() != pageSize) {
+                    // last first, so aborting a page that is sent doesn't let a waiting one take its place
+                    for (int j = later.size() - 1; j >= 0; j--) {
+                        later.get(j).cancel(false);
+                    }
+                }
+            });
+        }
+        CompletableFuture<?>[] settled = pages.stream().map(page -> page.handle((r, e) -> null)).toArray(CompletableFuture<?>[]::new);
+        return CompletableFuture.allOf(settled).thenCompose(done -> {
+            for (CompletableFuture<Set<? extends T>> page : pages) {
+                // a failed page ends the listing, unless an earlier page already was the last one
+                Set<? extends T> resultsPaginated;
+                try {
+                    resultsPaginated = page.join();
+                } catch (CompletionException | CancellationException e) {
+                    if (!partial) {
+                        throw e;
+                    }
+                    LOGGER.error("error listing {}, returning the {} results read so far", url, results.size(),
+                            unwrap(e));
+                    return CompletableFuture.completedFuture(results);
+                }
+                if (resultsPaginated != null) {
+                    results.addAll(resultsPaginated);
+                }
+                if (resultsPaginated == null || resultsPaginated.size() != pageSize) {
+                    return CompletableFuture.completedFuture(results);
+                }
             }
-        } while (resultsPaginated != null && resultsPaginated.size() == maxResults);
-        return results;
+            return findPages(url, responseHandler, partial, startIndex + pageParallelism * pageSize, results);
+        });
+    }
+
+    private String pageUri(String url, int startIndex) {
+        return restUri(String.format("%s&start-index=%s&max-results=%s", url, startIndex, pageSize));
+    }
+
+    /**
+     * The metric name of a crowd resource, e.g. user.group.nested for
+     * /rest/usermanagement/1/user/group/nested?username=...
+     */
+    static String endpoint(URI uri) {
+        String path = Strings.nullToEmpty(uri.getPath());
+        int start = path.indexOf(REST_PATH);
+        if (start >= 0) {
+            path = path.substring(start + REST_PATH.length());
+        }
+        if (path.startsWith("event/") || path.startsWith("session/")) {
+            // tokens are part of the path, one metric for all tokens
+            path = path.substring(0, path.indexOf('/'));
+        }
+        return path.isEmpty() ? "root" : path.replace('/', '.');
+    }
+
+    /**
+     * @param endpoint the crowd resource, e.g. user.group.nested
+     * @return the bulkhead of the resource
+     */
+    static String requestClass(String endpoint) {
+        switch (endpoint) {
+            case "authentication":
+            case "session":
+                return AUTHENTICATION;
+            case "search":
+            case "group.membership":
+            case "event":
+                return DIRECTORY;
+            default:
+                return LOOKUP;
+        }
     }
 
     protected String restUri(String path) {
-        return String.format("%s/rest/usermanagement/1/%s", getServerUriString(), path);
+        return String.format("%s%s%s", getServerUriString(), REST_PATH, path);
     }
 
     protected String getServerUriString() {
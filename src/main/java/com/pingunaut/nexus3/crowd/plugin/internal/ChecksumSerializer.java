@@ -0,0 +1,62 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import org.ehcache.spi.serialization.Serializer;
+import org.ehcache.spi.serialization.SerializerException;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Prefixes values written to the persistent cache tier with a format version and a CRC32,
+ * so entries written by an incompatible plugin version or damaged on disk are dropped
+ * (ehcache treats a failing read as a miss) instead of being handed out.
+ */
+class ChecksumSerializer<T> implements Serializer<T> {
+
+    // increase when the serialized form of a cached class changes incompatibly
+    static final byte FORMAT = 2;
+
+    private static final int HEADER = 1 + Long.BYTES;
+
+    private final Serializer<T> delegate;
+
+    ChecksumSerializer(Serializer<T> delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public ByteBuffer serialize(T object) {
+        ByteBuffer payload = delegate.serialize(object);
+        ByteBuffer binary = ByteBuffer.allocate(HEADER + payload.remaining());
+        binary.put(FORMAT).putLong(checksum(payload.duplicate())).put(payload);
+        binary.flip();
+        return binary;
+    }
+
+    @Override
+    public T read(ByteBuffer binary) throws ClassNotFoundException {
+        ByteBuffer buffer = binary.duplicate();
+        if (buffer.remaining() < HEADER || buffer.get() != FORMAT) {
+            throw new SerializerException("unknown format of cached value");
+        }
+        long checksum = buffer.getLong();
+        ByteBuffer payload = buffer.slice();
+        if (checksum(payload.duplicate()) != checksum) {
+            throw new SerializerException("checksum mismatch of cached value");
+        }
+        return delegate.read(payload);
+    }
+
+    @Override
+    public boolean equals(T object, ByteBuffer binary) throws ClassNotFoundException {
+        return object.equals(read(binary));
+    }
+
+    private static long checksum(ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        crc.update(bytes);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,157 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Stops sending requests to crowd while it is down, so callers fail fast instead of
+ * waiting for timeouts. The breaker opens when the failure rate of the most recent
+ * requests reaches a threshold, rejects all requests for the open time, then lets a
+ * few probe requests through (half open) and closes again if all of them succeed.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final boolean enabled;
+    private final int failureRateThreshold;
+    private final int minimumCalls;
+    private final long openMillis;
+    private final int halfOpenCalls;
+    private final LongSupplier clock;
+
+    // outcomes of the most recent calls while closed, true for failures
+    private final boolean[] window;
+    private int calls;
+    private int failures;
+    private int next;
+
+    private State state = State.CLOSED;
+    private long openUntil;
+    private int halfOpenPermits;
+    private int halfOpenSuccesses;
+
+    public CircuitBreaker(CrowdProperties props) {
+        this(props.getCircuitBreakerFailureRate(), props.getCircuitBreakerWindow(), props.getCircuitBreakerMinimumCalls(),
+                props.getCircuitBreakerOpenTime(), props.getCircuitBreakerHalfOpenCalls(), System::currentTimeMillis);
+    }
+
+    CircuitBreaker(int failureRateThreshold, int windowSize, int minimumCalls, long openMillis, int halfOpenCalls,
+                   LongSupplier clock) {
+        this.enabled = failureRateThreshold > 0;
+        this.failureRateThreshold = Math.min(100, failureRateThreshold);
+        this.window = new boolean[Math.max(1, windowSize)];
+        this.minimumCalls = Math.max(1, Math.min(window.length, minimumCalls));
+        this.openMillis = Math.max(0, openMillis);
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+        this.clock = clock;
+    }
+
+    /**
+     * Ask for permission to send a request. Every permitted request has to be
+     * reported with {@link #onSuccess()}, {@link #onFailure()} or {@link #onRelease()}.
+     *
+     * @return false if the request must not be sent
+     */
+    public synchronized boolean tryAcquire() {
+        if (!enabled) {
+            return true;
+        }
+        if (state == State.OPEN) {
+            if (clock.getAsLong() < openUntil) {
+                return false;
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (halfOpenPermits == 0) {
+                return false;
+            }
+            halfOpenPermits--;
+        }
+        return true;
+    }
+
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            if (++halfOpenSuccesses >= halfOpenCalls) {
+                transitionTo(State.CLOSED);
+            }
+        } else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            transitionTo(State.OPEN);
+        } else if (state == State.CLOSED) {
+            record(true);
+        }
+    }
+
+    /**
+     * A permitted request ended without telling anything about crowd's health, e.g. it was cancelled.
+     */
+    public synchronized void onRelease() {
+        if (state == State.HALF_OPEN && halfOpenPermits + halfOpenSuccesses < halfOpenCalls) {
+            halfOpenPermits++;
+        }
+    }
+
+    public synchronized State getState() {
+        if (state == State.OPEN && clock.getAsLong() >= openUntil) {
+            // reported as half open before the next request actually moves it there
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * @return percentage of failed requests in the window
+     */
+    public synchronized int getFailureRate() {
+        return calls == 0 ? 0 : failures * 100 / calls;
+    }
+
+    private void record(boolean failure) {
+        if (calls == window.length) {
+            if (window[next]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        window[next] = failure;
+        if (failure) {
+            failures++;
+        }
+        next = (next + 1) % window.length;
+        if (calls >= minimumCalls && failures * 100 >= failureRateThreshold * calls) {
+            transitionTo(State.OPEN);
+        }
+    }
+
+    private void transitionTo(State newState) {
+        if (newState == State.OPEN) {
+            LOGGER.warn("crowd circuit breaker opened for {} ms, failure rate {}%", openMillis, getFailureRate());
+            openUntil = clock.getAsLong() + openMillis;
+        } else if (newState == State.HALF_OPEN) {
+            LOGGER.info("crowd circuit breaker half open, probing with {} requests", halfOpenCalls);
+            halfOpenPermits = halfOpenCalls;
+            halfOpenSuccesses = 0;
+        } else {
+            LOGGER.info("crowd circuit breaker closed");
+        }
+        state = newState;
+        calls = 0;
+        failures = 0;
+        next = 0;
+    }
+}
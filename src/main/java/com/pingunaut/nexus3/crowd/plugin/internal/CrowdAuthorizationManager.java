@@ -37,14 +37,16 @@ import java.util.Set;
 @Named("Crowd")
 public class CrowdAuthorizationManager extends AbstractReadOnlyAuthorizationManager {
 
-	private CachingNexusCrowdClient client;
+	private CrowdMirror mirror;
+	private RoleCatalog catalog;
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(CrowdAuthorizationManager.class);
 
 	@Inject
-	public CrowdAuthorizationManager(CachingNexusCrowdClient client) {
+	public CrowdAuthorizationManager(CrowdMirror mirror, RoleCatalog catalog) {
 		LOGGER.info("CrowdAuthorizationManager is starting...");
-		this.client = client;
+		this.mirror = mirror;
+		this.catalog = catalog;
 	}
 
 	/**
@@ -60,7 +62,7 @@ public class CrowdAuthorizationManager extends AbstractReadOnlyAuthorizationMana
 	 */
 	@Override
 	public Role getRole(String roleId) throws NoSuchRoleException {
-		Role role = client.findRoleByRoleId(roleId);
+		Role role = mirror.isReady() ? mirror.findRoleByRoleId(roleId) : catalog.getRole(roleId);
 		if (role == null) {
 			throw new NoSuchRoleException("Failed to get role " + roleId + " from Crowd.");
 		} else {
@@ -80,6 +82,6 @@ public class CrowdAuthorizationManager extends AbstractReadOnlyAuthorizationMana
 
 	@Override
 	public Set<Role> listRoles() {
-		return client.findRoles();
+		return mirror.isReady() ? mirror.findRoles() : catalog.listRoles();
 	}
 }
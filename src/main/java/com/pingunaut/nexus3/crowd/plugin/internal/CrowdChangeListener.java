@@ -0,0 +1,18 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+/**
+ * Notified when the plugin learns that credentials or group memberships changed,
+ * so anything derived from them (e.g. cached authorization info) can be dropped.
+ */
+public interface CrowdChangeListener {
+
+    /**
+     * @param username the user whose credentials or memberships changed
+     */
+    void userChanged(String username);
+
+    /**
+     * Memberships of an unknown number of users changed, e.g. a group was removed.
+     */
+    void directoryChanged();
+}
@@ -0,0 +1,102 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.function.Supplier;
+
+/**
+ * Metrics of the plugin, registered in the metric registry of nexus, so they show up
+ * with all other nexus metrics (e.g. on /service/metrics/data and JMX).
+ * All names start with {@value #PREFIX}.
+ */
+@Singleton
+@Named
+public class CrowdMetrics {
+
+    static final String PREFIX = "com.pingunaut.nexus3.crowd";
+
+    private final MetricRegistry registry;
+
+    @Inject
+    public CrowdMetrics(MetricRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * @param endpoint the crowd resource, e.g. user.group.nested
+     * @return the latency of requests to the endpoint
+     */
+    public Timer requests(String endpoint) {
+        return registry.timer(MetricRegistry.name(PREFIX, "requests", endpoint));
+    }
+
+    /**
+     * @param endpoint the crowd resource, e.g. user.group.nested
+     * @return failed requests to the endpoint
+     */
+    public Meter errors(String endpoint) {
+        return registry.meter(MetricRegistry.name(PREFIX, "errors", endpoint));
+    }
+
+    /**
+     * @param endpoint the crowd resource, e.g. user.group.nested
+     * @return requests to the endpoint not sent because the circuit breaker was open
+     */
+    public Meter rejected(String endpoint) {
+        return registry.meter(MetricRegistry.name(PREFIX, "circuitbreaker", "rejected", endpoint));
+    }
+
+    /**
+     * @param requestClass the bulkhead, e.g. authentication
+     * @return requests not sent because the bulkhead queue was full or they waited too long
+     */
+    public Meter bulkheadRejected(String requestClass) {
+        return registry.meter(MetricRegistry.name(PREFIX, "bulkhead", requestClass, "rejected"));
+    }
+
+    /**
+     * @return logins and lookups answered without crowd because the user filter knows the user doesn't exist
+     */
+    public Meter userFilterRejected() {
+        return registry.meter(MetricRegistry.name(PREFIX, "userfilter", "rejected"));
+    }
+
+    public Counter cacheHits(String cache) {
+        return registry.counter(MetricRegistry.name(PREFIX, "cache", cache, "hits"));
+    }
+
+    public Counter cacheMisses(String cache) {
+        return registry.counter(MetricRegistry.name(PREFIX, "cache", cache, "misses"));
+    }
+
+    public Counter cacheEvictions(String cache) {
+        return registry.counter(MetricRegistry.name(PREFIX, "cache", cache, "evictions"));
+    }
+
+    /**
+     * Registers a gauge, replacing one registered before under the same name
+     * (e.g. by an earlier instance of the plugin).
+     *
+     * @param name  the name relative to {@value #PREFIX}
+     * @param value the value
+     */
+    public <T> void gauge(String name, Supplier<T> value) {
+        String fullName = MetricRegistry.name(PREFIX, name);
+        registry.remove(fullName);
+        registry.register(fullName, (Gauge<T>) value::get);
+    }
+
+    /**
+     * Remove all metrics of the plugin.
+     */
+    public void close() {
+        registry.removeMatching((name, metric) -> name.startsWith(PREFIX + "."));
+    }
+}
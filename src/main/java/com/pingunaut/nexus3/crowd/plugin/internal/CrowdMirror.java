@@ -0,0 +1,346 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.pingunaut.nexus3.crowd.plugin.internal.entity.CrowdEvents;
+import com.pingunaut.nexus3.crowd.plugin.internal.entity.CrowdMembershipsResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonatype.nexus.security.role.Role;
+import org.sonatype.nexus.security.user.User;
+import org.sonatype.nexus.security.user.UserSearchCriteria;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Optional in-memory copy of all users, groups and memberships of crowd (mirror.enabled=true).
+ * Everything is loaded once at startup, then kept current by polling crowd's event stream every
+ * mirror.syncinterval seconds. If crowd invalidates the event token, everything is loaded again;
+ * if crowd doesn't offer events at all, everything is loaded every mirror.fullsyncinterval seconds.
+ * Until the first load finished, {@link #isReady()} is false and lookups have to go to crowd.
+ */
+@Singleton
+@Named
+public class CrowdMirror {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CrowdMirror.class);
+
+    private final CachingNexusCrowdClient client;
+    private final boolean enabled;
+    private final long syncIntervalSeconds;
+    private final long fullSyncIntervalMillis;
+
+    private volatile Index index;
+    private volatile long lastSync;
+    private long lastFullSync;
+    private String eventToken;
+    private ScheduledExecutorService executor;
+    private final List<CrowdChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    @Inject
+    public CrowdMirror(CachingNexusCrowdClient client, CrowdProperties props, CrowdMetrics metrics) {
+        this.client = client;
+        this.enabled = props.isMirrorEnabled();
+        this.syncIntervalSeconds = Math.max(1, props.getMirrorSyncInterval());
+        this.fullSyncIntervalMillis = TimeUnit.SECONDS.toMillis(Math.max(1, props.getMirrorFullSyncInterval()));
+        if (enabled) {
+            metrics.gauge("mirror.users", () -> index == null ? 0 : index.users.size());
+            metrics.gauge("mirror.groups", () -> index == null ? 0 : index.groups.size());
+            metrics.gauge("mirror.memberships", () -> index == null ? 0 : index.memberships.getMembershipCount());
+            metrics.gauge("mirror.age", () -> lastSync == 0 ? -1 : System.currentTimeMillis() - lastSync);
+        }
+    }
+
+    /**
+     * Start loading crowd in the background, if the mirror is enabled.
+     */
+    public synchronized void start() {
+        if (!enabled || executor != null) {
+            return;
+        }
+        LOGGER.info("Mirroring crowd, checking for changes every {} s", syncIntervalSeconds);
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("crowd-mirror-%d").setDaemon(true).build());
+        executor.scheduleWithFixedDelay(this::sync, 0, syncIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * @param listener notified when a sync changed users or memberships
+     */
+    public void addChangeListener(CrowdChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return true if lookups can be answered from memory
+     */
+    public boolean isReady() {
+        return index != null;
+    }
+
+    /**
+     * Bring the mirror up to date, called periodically on the mirror thread.
+     */
+    void sync() {
+        try {
+            if (index == null || (eventToken == null && System.currentTimeMillis() - lastFullSync >= fullSyncIntervalMillis)) {
+                fullSync();
+            } else if (eventToken != null) {
+                incrementalSync();
+            }
+        } catch (RuntimeException e) {
+            // crowd not reachable, keep what we have and try again next time
+            LOGGER.warn("crowd mirror sync failed: {}", e.getMessage());
+            LOGGER.debug("crowd mirror sync failed", e);
+        }
+    }
+
+    private void fullSync() {
+        long start = System.currentTimeMillis();
+        // the token is taken first, so changes made while loading are applied afterwards
+        CrowdEvents current = client.fetchEventsAsync(null).exceptionally(e -> null).join();
+        CompletableFuture<Set<User>> users = client.findUsersAsync();
+        CompletableFuture<Set<Role>> groups = client.findRolesAsync();
+        CompletableFuture<CrowdMembershipsResult> memberships = client.fetchMembershipsAsync();
+        CompletableFuture.allOf(users, groups, memberships).join();
+        if (memberships.join() == null) {
+            throw new IllegalStateException("crowd returned no memberships");
+        }
+        Index loaded = new Index(memberships.join());
+        users.join().forEach(loaded::putUser);
+        groups.join().forEach(loaded::putGroup);
+        index = loaded;
+        listeners.forEach(CrowdChangeListener::directoryChanged);
+        eventToken = current == null ? null : current.newEventToken;
+        lastFullSync = System.currentTimeMillis();
+        lastSync = lastFullSync;
+        LOGGER.info("Mirrored {} users and {} groups of crowd in {} ms{}", loaded.users.size(), loaded.groups.size(),
+                lastFullSync - start, eventToken == null ? ", crowd has no events so it is reloaded periodically" : "");
+    }
+
+    private void incrementalSync() {
+        CrowdEvents changes = client.fetchEventsAsync(eventToken).join();
+        if (changes == null || !changes.incrementalSynchronisationAvailable || changes.newEventToken == null) {
+            LOGGER.info("crowd event token invalidated, reloading everything");
+            fullSync();
+            return;
+        }
+        changes.events.forEach(index::apply);
+        notifyListeners(changes);
+        eventToken = changes.newEventToken;
+        lastSync = System.currentTimeMillis();
+        if (!changes.events.isEmpty()) {
+            LOGGER.debug("Applied {} crowd events", changes.events.size());
+        }
+    }
+
+    /**
+     * Changes of a user or their direct memberships affect that user only, nested groups
+     * and removed groups may affect anyone.
+     */
+    private void notifyListeners(CrowdEvents changes) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        Set<String> users = new HashSet<>();
+        boolean all = false;
+        for (CrowdEvents.Event event : changes.events) {
+            if (event.user != null) {
+                users.add(event.user.getUserId());
+            } else if (event.childUser != null) {
+                users.add(event.childUser);
+            } else if (event.childGroup != null || (event.group != null && event.operation == CrowdEvents.Operation.DELETED)) {
+                all = true;
+            }
+        }
+        for (CrowdChangeListener listener : listeners) {
+            if (all) {
+                listener.directoryChanged();
+            } else {
+                users.forEach(listener::userChanged);
+            }
+        }
+    }
+
+    public Set<User> findUsers() {
+        return index.users.values().stream().map(MirroredUser::toUser).collect(Collectors.toSet());
+    }
+
+    public Set<String> findAllUsernames() {
+        return index.users.values().stream().map(u -> u.userId).collect(Collectors.toSet());
+    }
+
+    public User findUserByUsername(String username) {
+        MirroredUser user = index.users.get(userKey(username));
+        return user == null ? null : user.toUser();
+    }
+
+    /**
+     * Same semantics as the crowd search used by the client: active users whose
+     * name and email start with the given values, ignoring case.
+     */
+    public Set<User> findUserByCriteria(UserSearchCriteria criteria) {
+        String userId = Strings.nullToEmpty(criteria.getUserId()).toLowerCase(Locale.ENGLISH);
+        String email = Strings.nullToEmpty(criteria.getEmail()).toLowerCase(Locale.ENGLISH);
+        return index.users.values().stream()
+                .filter(u -> u.active)
+                .filter(u -> startsWith(u.userId, userId) && startsWith(u.email, email))
+                .map(MirroredUser::toUser)
+                .collect(Collectors.toSet());
+    }
+
+    public Set<Role> findRoles() {
+        return index.groups.values().stream().map(MirroredGroup::toRole).collect(Collectors.toSet());
+    }
+
+    public Role findRoleByRoleId(String roleId) {
+        MirroredGroup group = index.groups.get(roleId);
+        return group == null ? null : group.toRole();
+    }
+
+    public Set<String> findRolesByUser(String username) {
+        return index.memberships.getNestedGroups(username);
+    }
+
+    public Map<String, Set<String>> findRolesByUsers(Set<String> usernames) {
+        Index current = index;
+        Map<String, Set<String>> result = new HashMap<>();
+        usernames.forEach(u -> result.put(u, current.memberships.getNestedGroups(u)));
+        return result;
+    }
+
+    // crowd usernames are case-insensitive, users log in with whatever case they like
+    private static String userKey(String username) {
+        return username.toLowerCase(Locale.ENGLISH);
+    }
+
+    private static boolean startsWith(String value, String prefix) {
+        return prefix.isEmpty() || value != null && value.toLowerCase(Locale.ENGLISH).startsWith(prefix);
+    }
+
+    /**
+     * Only what crowd knows about a user. Nexus users are mutable and much larger,
+     * so every caller gets a new one.
+     */
+    private static final class MirroredGroup {
+
+        final String name;
+        final String description;
+
+        MirroredGroup(Role group) {
+            name = group.getRoleId();
+            description = group.getDescription();
+        }
+
+        Role toRole() {
+            return new Role(name, name, description, CrowdUserManager.SOURCE, true, null, null);
+        }
+    }
+
+    /**
+     * Users by lower case name, groups by name plus the membership graph.
+     */
+    static final class Index {
+
+        final Map<String, MirroredUser> users = new ConcurrentHashMap<>();
+        final Map<String, MirroredGroup> groups = new ConcurrentHashMap<>();
+        final CrowdMembershipsResult memberships;
+
+        Index(CrowdMembershipsResult memberships) {
+            this.memberships = memberships;
+        }
+
+        void putUser(User user) {
+            users.put(userKey(user.getUserId()), new MirroredUser(user));
+        }
+
+        void putGroup(Role group) {
+            groups.put(group.getRoleId(), new MirroredGroup(group));
+        }
+
+        void apply(CrowdEvents.Event event) {
+            boolean deleted = event.operation == CrowdEvents.Operation.DELETED;
+            if (event.user != null) {
+                if (deleted) {
+                    users.remove(userKey(event.user.getUserId()));
+                    memberships.removeUser(event.user.getUserId());
+                } else {
+                    putUser(event.user);
+                }
+            } else if (event.group != null) {
+                if (deleted) {
+                    groups.remove(event.group.getRoleId());
+                    memberships.removeGroup(event.group.getRoleId());
+                } else {
+                    putGroup(event.group);
+                }
+            } else if (event.childUser != null) {
+                applyUserMembership(event, deleted);
+            } else if (event.childGroup != null) {
+                applyGroupMembership(event, deleted);
+            }
+        }
+
+        private void applyUserMembership(CrowdEvents.Event event, boolean deleted) {
+            Set<String> parents = event.parentGroups == null ? Collections.emptySet() : event.parentGroups;
+            if (event.operation == CrowdEvents.Operation.UPDATED) {
+                // the complete list of groups of the user
+                memberships.setUserMemberships(event.childUser, parents);
+            } else {
+                parents.forEach(g -> {
+                    if (deleted) {
+                        memberships.removeUserMembership(g, event.childUser);
+                    } else {
+                        memberships.addUserMembership(g, event.childUser);
+                    }
+                });
+            }
+        }
+
+        private void applyGroupMembership(CrowdEvents.Event event, boolean deleted) {
+            Set<String> parents = event.parentGroups == null ? Collections.emptySet() : event.parentGroups;
+            Set<String> children = event.childGroups == null ? Collections.emptySet() : event.childGroups;
+            if (event.operation == CrowdEvents.Operation.UPDATED) {
+                memberships.setGroupMemberships(event.childGroup, parents);
+            } else {
+                parents.forEach(p -> {
+                    if (deleted) {
+                        memberships.removeGroupMembership(p, event.childGroup);
+                    } else {
+                        memberships.addGroupMembership(p, event.childGroup);
+                    }
+                });
+            }
+            children.forEach(c -> {
+                if (deleted) {
+                    memberships.removeGroupMembership(event.childGroup, c);
+                } else {
+                    memberships.addGroupMembership(event.childGroup, c);
+                }
+            });
+        }
+    }
+}
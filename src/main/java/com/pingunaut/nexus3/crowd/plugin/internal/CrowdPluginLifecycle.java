@@ -0,0 +1,55 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import org.sonatype.goodies.lifecycle.LifecycleSupport;
+import org.sonatype.nexus.common.app.ManagedLifecycle;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import static org.sonatype.nexus.common.app.ManagedLifecycle.Phase.SERVICES;
+
+/**
+ * Starts the crowd mirror, the cache warm-up and the user filter and releases the resources of the crowd client, caches and metrics
+ * when nexus or the plugin stops.
+ */
+@Singleton
+@Named
+@ManagedLifecycle(phase = SERVICES)
+public class CrowdPluginLifecycle extends LifecycleSupport {
+
+    private final CachingNexusCrowdClient client;
+    private final CacheProvider cache;
+    private final CrowdMetrics metrics;
+    private final CrowdMirror mirror;
+    private final CacheWarmer warmer;
+    private final CrowdUserFilter userFilter;
+
+    @Inject
+    public CrowdPluginLifecycle(CachingNexusCrowdClient client, CacheProvider cache, CrowdMetrics metrics,
+                                CrowdMirror mirror, CacheWarmer warmer, CrowdUserFilter userFilter) {
+        this.client = client;
+        this.cache = cache;
+        this.metrics = metrics;
+        this.mirror = mirror;
+        this.warmer = warmer;
+        this.userFilter = userFilter;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        // all of them run in the background, nexus doesn't wait for crowd
+        mirror.start();
+        warmer.start();
+        userFilter.start();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        userFilter.stop();
+        mirror.stop();
+        client.shutdown();
+        cache.close();
+        metrics.close();
+    }
+}
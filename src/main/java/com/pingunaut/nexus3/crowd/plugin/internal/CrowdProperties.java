@@ -12,6 +12,8 @@
  */
 package com.pingunaut.nexus3.crowd.plugin.internal;
 
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,6 +23,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 import java.util.Properties;
 
 @Singleton
@@ -32,6 +35,10 @@ public class CrowdProperties {
     private static final Logger LOGGER = LoggerFactory.getLogger(CrowdProperties.class);
 
     private static final int DEFAULT_TIMEOUT = 15000;
+    private static final int DEFAULT_MAX_CONNECTIONS = 50;
+    private static final int DEFAULT_KEEP_ALIVE = 30000;
+    private static final int DEFAULT_IDLE_TIMEOUT = 30000;
+    private static final int DEFAULT_PAGE_SIZE = 1000;
 
     private Properties configuration;
 
@@ -49,6 +56,10 @@ public class CrowdProperties {
         }
     }
 
+    CrowdProperties(Properties configuration) {
+        this.configuration = configuration;
+    }
+
     public String getServerUrl() {
         return configuration.getProperty("crowd.server.url");
     }
@@ -73,11 +84,341 @@ public class CrowdProperties {
         return parseWithDefault(configuration.getProperty("timeout.connectionrequest"), DEFAULT_TIMEOUT);
     }
 
+    public int getMaxConnections() {
+        return parseWithDefault(configuration.getProperty("connection.pool.max.total"), DEFAULT_MAX_CONNECTIONS);
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return parseWithDefault(configuration.getProperty("connection.pool.max.perroute"), getMaxConnections());
+    }
+
+    public int getKeepAlive() {
+        return parseWithDefault(configuration.getProperty("connection.keepalive"), DEFAULT_KEEP_ALIVE);
+    }
+
+    public int getIdleTimeout() {
+        return parseWithDefault(configuration.getProperty("connection.idletimeout"), DEFAULT_IDLE_TIMEOUT);
+    }
+
+    public int getPageSize() {
+        return parseWithDefault(configuration.getProperty("pagination.pagesize"), DEFAULT_PAGE_SIZE);
+    }
+
+    public int getPageParallelism() {
+        return parseWithDefault(configuration.getProperty("pagination.parallelism"), 1);
+    }
+
+    public int getCacheEntries(String cache, int defaultValue) {
+        return parseWithDefault(configuration.getProperty("cache." + cache + ".entries"), defaultValue);
+    }
+
+    /**
+     * @return off-heap size in MB, 0 to keep the cache on heap only
+     */
+    public int getCacheOffHeap(String cache) {
+        return parseWithDefault(configuration.getProperty("cache." + cache + ".offheap"), 0);
+    }
+
+    /**
+     * @return true if caches with a disk size keep their entries on disk across restarts
+     */
+    public boolean isCachePersistent() {
+        return Boolean.parseBoolean(configuration.getProperty("cache.persistent"));
+    }
+
+    /**
+     * @return directory of the persistent caches, $data-dir/cache/crowd by default
+     */
+    public Path getCachePersistentDirectory() {
+        String dir = configuration.getProperty("cache.persistent.dir");
+        return dir != null ? Paths.get(dir) : Paths.get(Strings.nullToEmpty(System.getProperty("karaf.data")), "cache", "crowd");
+    }
+
+    /**
+     * @return size of the persistent disk tier in MB, 0 to keep the cache in memory only
+     */
+    public int getCacheDisk(String cache, int defaultValue) {
+        return parseWithDefault(configuration.getProperty("cache." + cache + ".disk"), defaultValue);
+    }
+
+    public int getCacheTtl(String cache, int defaultValue) {
+        return parseWithDefault(configuration.getProperty("cache." + cache + ".ttl"), defaultValue);
+    }
+
+    /**
+     * @return time to idle in seconds, 0 to expire by time to live only
+     */
+    public int getCacheTti(String cache) {
+        return parseWithDefault(configuration.getProperty("cache." + cache + ".tti"), 0);
+    }
+
+    public int getCacheNegativeTtl(String cache, int defaultValue) {
+        return parseWithDefault(configuration.getProperty("cache." + cache + ".negativettl"), defaultValue);
+    }
+
+    /**
+     * @return percentage of the time to live after which entries are refreshed in the background, 0 to disable
+     */
+    public int getCacheRefreshAhead(String cache) {
+        return parseWithDefault(configuration.getProperty("cache." + cache + ".refreshahead"), 0);
+    }
+
+    /**
+     * @return seconds expired entries are still served when crowd can't be reached
+     */
+    public int getCacheStaleGrace(String cache) {
+        return parseWithDefault(configuration.getProperty("cache." + cache + ".stalegrace"), 0);
+    }
+
+    /**
+     * @return maximum number of background refreshes in flight at the same time
+     */
+    public int getCacheRefreshThreads(String cache) {
+        return parseWithDefault(configuration.getProperty("cache." + cache + ".refreshthreads"), 2);
+    }
+
     public boolean isCacheAuthenticationEnabled() {
         String enabled = configuration.getProperty("cache.authentication");
         return Boolean.valueOf(enabled);
     }
 
+    /**
+     * @return true if cached credentials are hashed with a per-process HMAC instead of PBKDF2
+     */
+    public boolean isCacheAuthenticationHmac() {
+        return "hmac".equalsIgnoreCase(configuration.getProperty("cache.authentication.hash"));
+    }
+
+    public int getCacheAuthenticationIterations() {
+        return parseWithDefault(configuration.getProperty("cache.authentication.iterations"), PasswordHasher.DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * @return percentage of failed requests that opens the circuit breaker, 0 to disable it
+     */
+    public int getCircuitBreakerFailureRate() {
+        return parseWithDefault(configuration.getProperty("circuitbreaker.failurerate"), 50);
+    }
+
+    /**
+     * @return number of most recent requests the failure rate is calculated from
+     */
+    public int getCircuitBreakerWindow() {
+        return parseWithDefault(configuration.getProperty("circuitbreaker.window"), 20);
+    }
+
+    /**
+     * @return number of requests needed before the failure rate is evaluated
+     */
+    public int getCircuitBreakerMinimumCalls() {
+        return parseWithDefault(configuration.getProperty("circuitbreaker.minimumcalls"), 10);
+    }
+
+    /**
+     * @return ms the circuit breaker stays open before requests are let through again
+     */
+    public int getCircuitBreakerOpenTime() {
+        return parseWithDefault(configuration.getProperty("circuitbreaker.opentime"), 30000);
+    }
+
+    /**
+     * @return number of successful probe requests needed to close the circuit breaker again
+     */
+    public int getCircuitBreakerHalfOpenCalls() {
+        return parseWithDefault(configuration.getProperty("circuitbreaker.halfopencalls"), 3);
+    }
+
+    /**
+     * @return ms after which a request counts as failed for the circuit breaker, 0 to count errors only
+     */
+    public int getCircuitBreakerSlowCall() {
+        return parseWithDefault(configuration.getProperty("circuitbreaker.slowcall"), 0);
+    }
+
+    /**
+     * @param requestClass authentication, lookup or directory
+     * @param defaultValue used if not configured
+     * @return requests of the class sent to crowd at the same time at most, 0 for no limit
+     */
+    public int getBulkheadLimit(String requestClass, int defaultValue) {
+        return parseWithDefault(configuration.getProperty("bulkhead." + requestClass + ".limit"), defaultValue);
+    }
+
+    /**
+     * @param requestClass authentication, lookup or directory
+     * @return requests of the class waiting for the limit at most
+     */
+    public int getBulkheadQueue(String requestClass) {
+        return parseWithDefault(configuration.getProperty("bulkhead." + requestClass + ".queue"), 100);
+    }
+
+    /**
+     * @return ms a request waits for the limit at most
+     */
+    public int getBulkheadQueueTimeout() {
+        return parseWithDefault(configuration.getProperty("bulkhead.queuetimeout"), 5000);
+    }
+
+    /**
+     * @return ms a request may take before the limits are lowered, 0 for fixed limits
+     */
+    public int getBulkheadTargetLatency() {
+        return parseWithDefault(configuration.getProperty("bulkhead.targetlatency"), 0);
+    }
+
+    /**
+     * @return true if users, groups and memberships are mirrored in memory and read from there
+     */
+    public boolean isMirrorEnabled() {
+        return Boolean.parseBoolean(configuration.getProperty("mirror.enabled"));
+    }
+
+    /**
+     * @return seconds between polls for changes in crowd
+     */
+    public int getMirrorSyncInterval() {
+        return parseWithDefault(configuration.getProperty("mirror.syncinterval"), 60);
+    }
+
+    /**
+     * @return seconds between full reloads if crowd can't tell what changed
+     */
+    public int getMirrorFullSyncInterval() {
+        return parseWithDefault(configuration.getProperty("mirror.fullsyncinterval"), 3600);
+    }
+
+    /**
+     * @return true if usernames are checked against a filter of all crowd users before asking crowd
+     */
+    public boolean isUserFilterEnabled() {
+        return Boolean.parseBoolean(configuration.getProperty("userfilter.enabled"));
+    }
+
+    /**
+     * @return probability that the user filter lets an unknown username through to crowd
+     */
+    public double getUserFilterFalsePositiveRate() {
+        String rate = configuration.getProperty("userfilter.fpp");
+        try {
+            double value = rate == null ? 0 : Double.parseDouble(rate);
+            return value > 0 && value < 1 ? value : 0.01;
+        } catch (NumberFormatException e) {
+            return 0.01;
+        }
+    }
+
+    /**
+     * @return number of users the filter is sized for at least, together with the false positive rate it decides the memory used
+     */
+    public int getUserFilterExpectedUsers() {
+        return parseWithDefault(configuration.getProperty("userfilter.expectedusers"), 10000);
+    }
+
+    /**
+     * @return seconds between reloads of all usernames into the filter
+     */
+    public int getUserFilterRefreshInterval() {
+        return parseWithDefault(configuration.getProperty("userfilter.refreshinterval"), 300);
+    }
+
+    /**
+     * @return true if caches are filled in the background when the plugin starts
+     */
+    public boolean isWarmUpEnabled() {
+        return Boolean.parseBoolean(configuration.getProperty("warmup.enabled"));
+    }
+
+    /**
+     * @return users (e.g. service accounts of build servers) whose details and memberships are loaded at startup
+     */
+    public List<String> getWarmUpUsers() {
+        return Splitter.on(',').trimResults().omitEmptyStrings().splitToList(configuration.getProperty("warmup.users", ""));
+    }
+
+    /**
+     * @return number of connections to crowd opened at startup
+     */
+    public int getWarmUpConnections() {
+        return parseWithDefault(configuration.getProperty("warmup.connections"), 4);
+    }
+
+    /**
+     * @return true if user searches are answered from a local index of all users once it is loaded
+     */
+    public boolean isSearchIndexEnabled() {
+        return Boolean.parseBoolean(configuration.getProperty("search.index.enabled", "false"));
+    }
+
+    /**
+     * @return seconds after which the search index is reloaded in the background on the next search
+     */
+    public int getSearchIndexRefreshInterval() {
+        return parseWithDefault(configuration.getProperty("search.index.refreshinterval"), 300);
+    }
+
+    /**
+     * @return maximum number of users returned by a search from the index
+     */
+    public int getSearchIndexMaxResults() {
+        return parseWithDefault(configuration.getProperty("search.index.maxresults"), 100);
+    }
+
+    /**
+     * @return true if nested groups are resolved from a local copy of all direct memberships
+     */
+    public boolean isLocalMembershipsEnabled() {
+        return Boolean.parseBoolean(configuration.getProperty("memberships.local.enabled", "false"));
+    }
+
+    /**
+     * @return seconds after which the local copy of all memberships is reloaded in the background
+     */
+    public int getLocalMembershipsRefreshInterval() {
+        return parseWithDefault(configuration.getProperty("memberships.local.refreshinterval"), 300);
+    }
+
+    /**
+     * @return true if roles are looked up in a catalog of all crowd groups kept in memory
+     */
+    public boolean isRoleCatalogEnabled() {
+        return Boolean.parseBoolean(configuration.getProperty("roles.catalog.enabled", "true"));
+    }
+
+    /**
+     * @return seconds after which the role catalog is reloaded in the background
+     */
+    public int getRoleCatalogRefreshInterval() {
+        return parseWithDefault(configuration.getProperty("roles.catalog.refreshinterval"), 300);
+    }
+
+    /**
+     * @return true if crowd SSO session tokens are accepted instead of passwords
+     */
+    public boolean isSsoEnabled() {
+        return Boolean.parseBoolean(configuration.getProperty("sso.enabled"));
+    }
+
+    /**
+     * @return name of the cookie with the crowd SSO token, null if cookies are not accepted
+     */
+    public String getSsoCookie() {
+        return Strings.emptyToNull(configuration.getProperty("sso.cookie"));
+    }
+
+    /**
+     * @return name of the http header with the crowd SSO token
+     */
+    public String getSsoHeader() {
+        return configuration.getProperty("sso.header", "X-Crowd-Token");
+    }
+
+    /**
+     * @return true if the token is also accepted as "Authorization: Bearer", which other realms may use as well
+     */
+    public boolean isSsoBearer() {
+        return Boolean.parseBoolean(configuration.getProperty("sso.bearer"));
+    }
+
     private static int parseWithDefault(String s, int defaultValue) {
         return s != null && s.matches("-?\\d+") ? Integer.parseInt(s) : defaultValue;
     }
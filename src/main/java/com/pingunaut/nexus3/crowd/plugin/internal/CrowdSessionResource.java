@@ -0,0 +1,99 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.google.common.base.Strings;
+import com.pingunaut.nexus3.crowd.plugin.CrowdAuthenticatingRealm;
+import com.pingunaut.nexus3.crowd.plugin.CrowdSessionToken;
+import com.pingunaut.nexus3.crowd.plugin.NexusCrowdClient;
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.Subject;
+import org.sonatype.nexus.rest.Resource;
+import org.sonatype.nexus.rest.WebApplicationMessageException;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response.Status;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hands out crowd SSO session tokens to users who authenticated against crowd with their
+ * password, so later requests can send the token instead of the password.
+ */
+@Named
+@Singleton
+@Path(CrowdSessionResource.PATH)
+public class CrowdSessionResource implements Resource {
+
+    static final String PATH = "/v1/crowd/session";
+
+    private final NexusCrowdClient client;
+    private final String header;
+
+    @Inject
+    public CrowdSessionResource(CachingNexusCrowdClient client, CrowdProperties props) {
+        this.client = client;
+        this.header = props.getSsoHeader();
+    }
+
+    /**
+     * Sessions can't create further sessions, otherwise a stolen token would never expire.
+     *
+     * @return the new session token as {"token": "..."}
+     */
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, String> createSession() {
+        PrincipalCollection principals = crowdPrincipals();
+        if (!principals.byType(CrowdSessionToken.AuthenticatedBy.class).isEmpty()) {
+            throw new WebApplicationMessageException(Status.FORBIDDEN, "Crowd sessions can only be created with a password");
+        }
+        String token = client.createSession(principals.getPrimaryPrincipal().toString());
+        if (token == null) {
+            throw new WebApplicationMessageException(Status.SERVICE_UNAVAILABLE, "Crowd did not create a session");
+        }
+        return Collections.singletonMap("token", token);
+    }
+
+    /**
+     * Ends a session of the current user. The token is sent in the sso.header http header,
+     * never in the url, which ends up in request logs.
+     */
+    @DELETE
+    public void invalidateSession(@Context HttpHeaders headers) {
+        PrincipalCollection principals = crowdPrincipals();
+        List<String> values = headers.getRequestHeader(header);
+        String token = values == null || values.isEmpty() ? null : values.get(0);
+        if (Strings.isNullOrEmpty(token)) {
+            throw new WebApplicationMessageException(Status.BAD_REQUEST, "The session token is missing in " + header);
+        }
+        String username = client.validateSession(token.trim());
+        if (username == null) {
+            // expired or invalidated already
+            return;
+        }
+        if (!username.equalsIgnoreCase(principals.getPrimaryPrincipal().toString())) {
+            throw new WebApplicationMessageException(Status.FORBIDDEN, "Only the user of a crowd session can end it");
+        }
+        client.invalidateSession(token.trim());
+    }
+
+    private static PrincipalCollection crowdPrincipals() {
+        Subject subject = SecurityUtils.getSubject();
+        PrincipalCollection principals = subject.getPrincipals();
+        if (!subject.isAuthenticated() || principals == null
+                || !principals.getRealmNames().contains(CrowdAuthenticatingRealm.NAME)) {
+            throw new WebApplicationMessageException(Status.FORBIDDEN, "Only crowd users can manage crowd sessions");
+        }
+        return principals;
+    }
+}
@@ -0,0 +1,75 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.pingunaut.nexus3.crowd.plugin.CrowdSessionToken;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.sonatype.nexus.security.authc.AuthenticationTokenFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import java.util.Set;
+
+/**
+ * Picks up crowd SSO session tokens from requests (sso.enabled=true), so clients can
+ * authenticate without a password. The token is read from the sso.header http header,
+ * with sso.bearer=true from "Authorization: Bearer" and, if sso.cookie is set, from that
+ * cookie. Browsers send cookies along with requests other sites make them send, so the
+ * cookie only authenticates safe (read-only) requests.
+ */
+@Singleton
+@Named
+public class CrowdSessionTokenFactory implements AuthenticationTokenFactory {
+
+    private static final String BEARER = "Bearer ";
+
+    private static final Set<String> SAFE_METHODS = ImmutableSet.of("GET", "HEAD", "OPTIONS");
+
+    private final boolean enabled;
+    private final String cookie;
+    private final String header;
+    private final boolean bearer;
+
+    @Inject
+    public CrowdSessionTokenFactory(CrowdProperties props) {
+        this.enabled = props.isSsoEnabled();
+        this.cookie = props.getSsoCookie();
+        this.header = props.getSsoHeader();
+        this.bearer = props.isSsoBearer();
+    }
+
+    @Override
+    public AuthenticationToken createToken(ServletRequest request, ServletResponse response) {
+        if (!enabled || !(request instanceof HttpServletRequest)) {
+            return null;
+        }
+        String token = findToken((HttpServletRequest) request);
+        return Strings.isNullOrEmpty(token) ? null : new CrowdSessionToken(token, request.getRemoteHost());
+    }
+
+    private String findToken(HttpServletRequest request) {
+        String token = request.getHeader(header);
+        if (token != null) {
+            return token.trim();
+        }
+        String authorization = request.getHeader("Authorization");
+        if (bearer && authorization != null && authorization.regionMatches(true, 0, BEARER, 0, BEARER.length())) {
+            return authorization.substring(BEARER.length()).trim();
+        }
+        if (cookie != null && request.getCookies() != null && authorization == null
+                && SAFE_METHODS.contains(request.getMethod())) {
+            // explicit credentials win over a cookie the browser sends along
+            for (Cookie c : request.getCookies()) {
+                if (cookie.equals(c.getName())) {
+                    return c.getValue();
+                }
+            }
+        }
+        return null;
+    }
+}
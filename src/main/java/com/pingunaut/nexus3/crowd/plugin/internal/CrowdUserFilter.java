@@ -0,0 +1,152 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.codahale.metrics.Meter;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bloom filter of all crowd usernames (userfilter.enabled=true). Nexus asks every realm,
+ * so logins of local admins, token users etc. would otherwise each cost a crowd request
+ * that is bound to fail. Names the filter has definitely not seen are rejected without
+ * asking crowd, about userfilter.fpp of the unknown names still get through.
+ * <p>
+ * All usernames are reloaded every userfilter.refreshinterval seconds, users created in
+ * crowd in between can't log in until then, unless the mirror reports them earlier.
+ * Until the first load is done, every name is let through.
+ */
+@Singleton
+@Named
+public class CrowdUserFilter implements CrowdChangeListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CrowdUserFilter.class);
+
+    private final CachingNexusCrowdClient client;
+    private final CrowdMirror mirror;
+    private final boolean enabled;
+    private final double falsePositiveRate;
+    private final int expectedUsers;
+    private final long refreshIntervalSeconds;
+    private final Meter rejected;
+
+    private volatile BloomFilter<CharSequence> filter;
+    private ScheduledExecutorService executor;
+
+    @Inject
+    public CrowdUserFilter(CachingNexusCrowdClient client, CrowdMirror mirror, CrowdProperties props,
+                           CrowdMetrics metrics) {
+        this.client = client;
+        this.mirror = mirror;
+        this.enabled = props.isUserFilterEnabled();
+        this.falsePositiveRate = props.getUserFilterFalsePositiveRate();
+        this.expectedUsers = Math.max(1, props.getUserFilterExpectedUsers());
+        this.refreshIntervalSeconds = Math.max(1, props.getUserFilterRefreshInterval());
+        this.rejected = metrics.userFilterRejected();
+        if (enabled) {
+            mirror.addChangeListener(this);
+            metrics.gauge("userfilter.users", () -> filter == null ? 0 : filter.approximateElementCount());
+        }
+    }
+
+    /**
+     * Start loading usernames in the background, if the filter is enabled.
+     */
+    public synchronized void start() {
+        if (!enabled || executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("crowd-userfilter-%d").setDaemon(true).build());
+        executor.scheduleWithFixedDelay(this::reload, 0, refreshIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * @param username the username, case is ignored like crowd does
+     * @return true if the user definitely doesn't exist in crowd, false if it may exist
+     */
+    public boolean isAbsent(String username) {
+        BloomFilter<CharSequence> current = filter;
+        if (current == null || username == null || current.mightContain(normalize(username))) {
+            return false;
+        }
+        rejected.mark();
+        return true;
+    }
+
+    /**
+     * Replace the filter with one of all current usernames, called periodically on the filter thread.
+     */
+    void reload() {
+        try {
+            Set<String> usernames = (mirror.isReady() ? CompletableFuture.completedFuture(mirror.findAllUsernames())
+                    : client.findAllUsernamesAsync()).join();
+            if (usernames.isEmpty()) {
+                // rather a misconfiguration than a directory without users, don't lock everybody out
+                LOGGER.warn("crowd returned no users, the user filter is not updated");
+                return;
+            }
+            int size = Math.max(expectedUsers, usernames.size());
+            BloomFilter<CharSequence> loaded = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8),
+                    size, falsePositiveRate);
+            usernames.forEach(u -> loaded.put(normalize(u)));
+            filter = loaded;
+            LOGGER.debug("User filter holds {} crowd users in about {} KB", usernames.size(),
+                    bits(size, falsePositiveRate) / 8 / 1024);
+        } catch (RuntimeException e) {
+            // keep the last filter, or none, a failed load must not lock anybody out
+            LOGGER.warn("loading crowd usernames for the user filter failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Users created in crowd are added as soon as the mirror sees them.
+     */
+    @Override
+    public void userChanged(String username) {
+        BloomFilter<CharSequence> current = filter;
+        if (current != null) {
+            current.put(normalize(username));
+        }
+    }
+
+    /**
+     * Rebuilding from the mirror is cheap, so the filter follows its full syncs right away.
+     */
+    @Override
+    public void directoryChanged() {
+        if (filter != null && mirror.isReady()) {
+            reload();
+        }
+    }
+
+    private static String normalize(String username) {
+        return username.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @return the size of a bloom filter for that many elements and false positive rate
+     */
+    static long bits(long elements, double falsePositiveRate) {
+        return (long) (-elements * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    }
+}
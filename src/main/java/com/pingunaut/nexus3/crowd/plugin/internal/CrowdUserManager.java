@@ -22,7 +22,10 @@ import org.sonatype.nexus.security.user.*;
 import javax.enterprise.inject.Typed;
 import javax.inject.Named;
 import javax.inject.Singleton;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 /**
@@ -37,12 +40,22 @@ public class CrowdUserManager extends AbstractReadOnlyUserManager {
 	public static final String SOURCE = "Crowd";
 	private static final Logger LOGGER = LoggerFactory.getLogger(CrowdUserManager.class);
 
+	// up to this many users, single (cached) role lookups are cheaper than fetching all memberships
+	private static final int BULK_ROLES_THRESHOLD = 10;
+
 	private CachingNexusCrowdClient client;
+	private CrowdMirror mirror;
+	private UserSearchIndex searchIndex;
+	private CrowdUserFilter userFilter;
 
 	@Inject
-	public CrowdUserManager(CachingNexusCrowdClient client) {
+	public CrowdUserManager(CachingNexusCrowdClient client, CrowdMirror mirror, UserSearchIndex searchIndex,
+			CrowdUserFilter userFilter) {
 		LOGGER.info("CrowdUserManager is starting...");
 		this.client = client;
+		this.mirror = mirror;
+		this.searchIndex = searchIndex;
+		this.userFilter = userFilter;
 	}
 
 	/**
@@ -62,30 +75,66 @@ public class CrowdUserManager extends AbstractReadOnlyUserManager {
 	}
 
 	private User completeUserRolesAndSource(User user) {
+		Set<String> roles = mirror.isReady() ? mirror.findRolesByUser(user.getUserId())
+				: client.findRolesByUser(user.getUserId());
+		return completeUserRolesAndSource(user, roles);
+	}
+
+	private User completeUserRolesAndSource(User user, Set<String> roles) {
 		user.setSource(SOURCE);
-		Set<String> roles = client.findRolesByUser(user.getUserId());
 		user.setRoles(roles.stream().map(r -> new RoleIdentifier(SOURCE, r)).collect(Collectors.toSet()));
 		return user;
 	}
 
+	private Set<User> completeUsersRolesAndSource(Set<User> users) {
+		if (mirror.isReady()) {
+			return users.stream().map(u -> completeUserRolesAndSource(u, mirror.findRolesByUser(u.getUserId())))
+					.collect(Collectors.toSet());
+		}
+		if (users.size() <= BULK_ROLES_THRESHOLD) {
+			// all lookups in flight at once, without a thread per request
+			Map<User, CompletableFuture<Set<String>>> roles = users.stream().collect(Collectors.toMap(u -> u,
+					u -> client.findRolesByUserAsync(u.getUserId()).exceptionally(e -> Collections.emptySet())));
+			return roles.entrySet().stream()
+					.map(e -> completeUserRolesAndSource(e.getKey(), e.getValue().join()))
+					.collect(Collectors.toSet());
+		}
+		Map<String, Set<String>> roles = client
+				.findRolesByUsers(users.stream().map(User::getUserId).collect(Collectors.toSet()));
+		return users.stream()
+				.map(u -> completeUserRolesAndSource(u, roles.getOrDefault(u.getUserId(), Collections.emptySet())))
+				.collect(Collectors.toSet());
+	}
+
 	@Override
 	public Set<User> listUsers() {
-		return client.findUsers().stream().map(this::completeUserRolesAndSource).collect(Collectors.toSet());
+		return completeUsersRolesAndSource(mirror.isReady() ? mirror.findUsers() : client.findUsers());
 	}
 
 	@Override
 	public Set<String> listUserIds() {
-		return client.findAllUsernames();
+		return mirror.isReady() ? mirror.findAllUsernames() : client.findAllUsernames();
 	}
 
+	/**
+	 * Called on every keystroke in the user search of the UI, so crowd is only asked
+	 * if neither the mirror nor the search index are loaded.
+	 */
 	@Override
 	public Set<User> searchUsers(UserSearchCriteria criteria) {
-		return client.findUserByCriteria(criteria).stream().map(this::completeUserRolesAndSource).collect(Collectors.toSet());
+		Set<User> users = mirror.isReady() ? mirror.findUserByCriteria(criteria) : searchIndex.search(criteria);
+		if (users == null) {
+			users = client.findUserByCriteria(criteria);
+		}
+		return completeUsersRolesAndSource(users);
 	}
 
 	@Override
 	public User getUser(String userId) throws UserNotFoundException {
-		User u = client.findUserByUsername(userId);
+		if (userFilter.isAbsent(userId)) {
+			throw new UserNotFoundException(userId);
+		}
+		User u = mirror.isReady() ? mirror.findUserByUsername(userId) : client.findUserByUsername(userId);
 		if(u == null){
 			throw new UserNotFoundException(userId);
 		}
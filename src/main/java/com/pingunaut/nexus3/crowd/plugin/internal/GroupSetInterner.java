@@ -0,0 +1,34 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.Set;
+
+/**
+ * Canonical group memberships: thousands of users share the same few hundred groups and mostly
+ * the same few combinations of them. Every group name is kept once and users with the same
+ * groups share one immutable set instead of a hash set each. Instances are only
+ * weakly referenced, they go away with the last cache entry using them.
+ * <p>
+ * This only saves memory in the on-heap tier of the cache. Entries read from the offheap or
+ * disk tier are deserialized into new sets and strings for every user.
+ */
+final class GroupSetInterner {
+
+    private final Interner<String> names = Interners.newWeakInterner();
+    private final Interner<ImmutableSet<String>> sets = Interners.newWeakInterner();
+
+    /**
+     * @param groups group names
+     * @return an immutable set equal to groups, the same instance for equal sets
+     */
+    Set<String> intern(Set<String> groups) {
+        if (groups.isEmpty()) {
+            return ImmutableSet.of();
+        }
+        // sorted, so equal sets also iterate alike
+        return sets.intern(ImmutableSet.copyOf(groups.stream().map(names::intern).sorted().iterator()));
+    }
+}
@@ -0,0 +1,45 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.ehcache.spi.serialization.Serializer;
+import org.ehcache.spi.serialization.SerializerException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Ehcache serializer for nexus security objects, which are not {@link java.io.Serializable}.
+ * Used for off-heap tiers and to store copies instead of shared mutable instances.
+ */
+class GsonSerializer<T> implements Serializer<T> {
+
+    private static final Gson GSON = new Gson();
+
+    private final Class<T> type;
+
+    GsonSerializer(Class<T> type) {
+        this.type = type;
+    }
+
+    @Override
+    public ByteBuffer serialize(T object) {
+        return ByteBuffer.wrap(GSON.toJson(object).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public T read(ByteBuffer binary) {
+        byte[] bytes = new byte[binary.remaining()];
+        binary.get(bytes);
+        try {
+            return GSON.fromJson(new String(bytes, StandardCharsets.UTF_8), type);
+        } catch (JsonParseException e) {
+            throw new SerializerException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(T object, ByteBuffer binary) {
+        return object.equals(read(binary));
+    }
+}
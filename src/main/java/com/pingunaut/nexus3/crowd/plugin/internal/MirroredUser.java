@@ -0,0 +1,37 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import org.sonatype.nexus.security.user.User;
+import org.sonatype.nexus.security.user.UserStatus;
+
+/**
+ * The fields of a crowd user that nexus needs, kept in memory instead of the mutable
+ * nexus {@link User}. Every lookup gets its own copy from {@link #toUser()}.
+ */
+final class MirroredUser {
+
+    final String userId;
+    final String firstName;
+    final String lastName;
+    final String email;
+    final boolean active;
+
+    MirroredUser(User user) {
+        userId = user.getUserId();
+        firstName = user.getFirstName();
+        lastName = user.getLastName();
+        email = user.getEmailAddress();
+        active = user.getStatus() == UserStatus.active;
+    }
+
+    User toUser() {
+        User u = new User();
+        u.setUserId(userId);
+        u.setFirstName(firstName);
+        u.setLastName(lastName);
+        u.setEmailAddress(email);
+        u.setStatus(active ? UserStatus.active : UserStatus.disabled);
+        u.setSource(CrowdUserManager.SOURCE);
+        u.setReadOnly(true);
+        return u;
+    }
+}
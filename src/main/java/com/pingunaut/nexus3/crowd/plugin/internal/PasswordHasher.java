@@ -1,18 +1,45 @@
 package com.pingunaut.nexus3.crowd.plugin.internal;
 
+import javax.crypto.Mac;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
-import java.security.NoSuchAlgorithmException;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
-import java.security.spec.InvalidKeySpecException;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Random;
 
+/**
+ * Hashes passwords for the credential cache, either with PBKDF2 or, for an iteration
+ * count of {@link #HMAC}, with an HMAC keyed by a secret that only lives in this process.
+ * Passwords handed in are never modified.
+ */
 public class PasswordHasher {
 
+    /**
+     * Iteration count selecting the HMAC mode instead of PBKDF2.
+     */
+    public static final int HMAC = 0;
+
+    public static final int DEFAULT_ITERATIONS = 1024;
+
     private static final Random RANDOM = new SecureRandom();
-    private static final int ITERATIONS = 1024;
     private static final int KEY_LENGTH = 256;
+    private static final String PBKDF2_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] NO_SALT = new byte[0];
+
+    // never leaves this process, so digests can't be compared across restarts or nodes
+    private static final byte[] PROCESS_SECRET = getNextSalt();
+
+    // looking up the providers is expensive compared to a single hash, and neither is thread safe
+    private static final ThreadLocal<SecretKeyFactory> KEY_FACTORY = ThreadLocal.withInitial(PasswordHasher::createKeyFactory);
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(PasswordHasher::createMac);
 
     private PasswordHasher() {
     }
@@ -24,12 +51,23 @@ public class PasswordHasher {
     }
 
     public static byte[] hash(char[] password, byte[] salt) {
-        PBEKeySpec spec = new PBEKeySpec(password, salt, ITERATIONS, KEY_LENGTH);
-        Arrays.fill(password, Character.MIN_VALUE);
+        return hash(password, salt, DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * @param password   the password
+     * @param salt       the salt
+     * @param iterations PBKDF2 iterations or {@link #HMAC}
+     * @return the hash
+     */
+    public static byte[] hash(char[] password, byte[] salt, int iterations) {
+        if (iterations == HMAC) {
+            return hmac(password, salt);
+        }
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, KEY_LENGTH);
         try {
-            SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-            return skf.generateSecret(spec).getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            return KEY_FACTORY.get().generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
             throw new IllegalStateException("Error while hashing password", e);
         } finally {
             spec.clearPassword();
@@ -37,16 +75,56 @@ public class PasswordHasher {
     }
 
     public static boolean isPasswordCorrect(char[] passwordToCheck, byte[] salt, byte[] expectedHash) {
-        byte[] hashToCheck = hash(passwordToCheck, salt);
-        Arrays.fill(passwordToCheck, Character.MIN_VALUE);
-        if (hashToCheck.length != expectedHash.length) {
-            return false;
-        }
-        for (int i = 0; i < hashToCheck.length; i++) {
-            if (hashToCheck[i] != expectedHash[i]) {
-                return false;
+        return isPasswordCorrect(passwordToCheck, salt, DEFAULT_ITERATIONS, expectedHash);
+    }
+
+    public static boolean isPasswordCorrect(char[] passwordToCheck, byte[] salt, int iterations, byte[] expectedHash) {
+        // constant time, so the comparison doesn't tell how much of a hash matched
+        return MessageDigest.isEqual(hash(passwordToCheck, salt, iterations), expectedHash);
+    }
+
+    /**
+     * Creates a keyed digest of a password, suitable to tell passwords apart in memory
+     * without keeping them.
+     *
+     * @param password the password
+     * @return the digest, base64 encoded
+     */
+    public static String digest(char[] password) {
+        return Base64.getEncoder().encodeToString(hmac(password, NO_SALT));
+    }
+
+    private static byte[] hmac(char[] password, byte[] salt) {
+        ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        try {
+            Mac mac = MAC.get();
+            mac.update(salt);
+            return mac.doFinal(bytes);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+            if (encoded.hasArray()) {
+                Arrays.fill(encoded.array(), (byte) 0);
             }
         }
-        return true;
+    }
+
+    private static SecretKeyFactory createKeyFactory() {
+        try {
+            return SecretKeyFactory.getInstance(PBKDF2_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Error while hashing password", e);
+        }
+    }
+
+    private static Mac createMac() {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(PROCESS_SECRET, HMAC_ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Error while hashing password", e);
+        }
     }
 }
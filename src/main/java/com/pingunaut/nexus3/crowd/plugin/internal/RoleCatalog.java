@@ -0,0 +1,164 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonatype.nexus.security.role.Role;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * All crowd groups as nexus roles, kept in memory (roles.catalog.enabled=true), so resolving
+ * the roles of a user and listing all roles don't each page through the groups of crowd.
+ * The catalog is loaded by the first {@link #listRoles()} and reloaded in the background once
+ * it is older than roles.catalog.refreshinterval seconds. Groups missing from the catalog,
+ * e.g. created in crowd since the last load, are fetched one by one and kept in the role cache.
+ * Nexus roles are mutable, so every caller gets copies of the roles in the catalog.
+ */
+@Singleton
+@Named
+public class RoleCatalog {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RoleCatalog.class);
+
+    private final CachingNexusCrowdClient client;
+    private final boolean enabled;
+    private final long refreshIntervalMillis;
+    private final AtomicReference<CompletableFuture<Void>> loading = new AtomicReference<>();
+
+    private volatile Snapshot snapshot;
+
+    @Inject
+    public RoleCatalog(CachingNexusCrowdClient client, CrowdProperties props, CrowdMetrics metrics) {
+        this.client = client;
+        this.enabled = props.isRoleCatalogEnabled();
+        this.refreshIntervalMillis = TimeUnit.SECONDS.toMillis(Math.max(1, props.getRoleCatalogRefreshInterval()));
+        if (enabled) {
+            metrics.gauge("rolecatalog.roles", () -> snapshot == null ? 0 : snapshot.roles.size());
+        }
+    }
+
+    /**
+     * @param roleId the crowd group name, case is ignored like crowd does
+     * @return the role or null if crowd doesn't know the group
+     */
+    public Role getRole(String roleId) {
+        Snapshot current = current(true);
+        Role role = current == null || roleId == null ? null : current.byId.get(normalize(roleId));
+        return role != null ? copy(role) : client.findRoleByRoleId(roleId);
+    }
+
+    /**
+     * @return all roles, loaded from crowd if the catalog is cold
+     */
+    public Set<Role> listRoles() {
+        Snapshot current = current(false);
+        if (current != null) {
+            return copy(current.roles);
+        }
+        // all groups are needed anyway, load them right here instead of in the background
+        Set<Role> roles = client.findRoles();
+        if (enabled && !roles.isEmpty()) {
+            snapshot = new Snapshot(roles, System.currentTimeMillis());
+            return copy(snapshot.roles);
+        }
+        return roles;
+    }
+
+    /**
+     * @param loadIfMissing true to load a missing catalog in the background
+     * @return the catalog, null if it is not loaded (yet); a stale catalog is reloaded in the background
+     */
+    private Snapshot current(boolean loadIfMissing) {
+        if (!enabled) {
+            return null;
+        }
+        Snapshot current = snapshot;
+        if (current == null ? loadIfMissing : System.currentTimeMillis() - current.loadedAt >= refreshIntervalMillis) {
+            reload();
+        }
+        return current;
+    }
+
+    /**
+     * Load all roles in the background, unless a load is already running.
+     *
+     * @return completes when the running load is done, failed if loading failed
+     */
+    CompletableFuture<Void> reload() {
+        CompletableFuture<Void> load = new CompletableFuture<>();
+        if (!loading.compareAndSet(null, load)) {
+            CompletableFuture<Void> running = loading.get();
+            return running != null ? running : CompletableFuture.completedFuture(null);
+        }
+        long start = System.currentTimeMillis();
+        client.findRolesAsync().whenComplete((roles, e) -> {
+            try {
+                if (e != null) {
+                    LOGGER.warn("loading the role catalog failed: {}", e.getMessage());
+                } else if (!roles.isEmpty()) {
+                    snapshot = new Snapshot(roles, System.currentTimeMillis());
+                    LOGGER.debug("Loaded {} roles in {} ms", roles.size(), System.currentTimeMillis() - start);
+                }
+            } finally {
+                loading.set(null);
+            }
+            if (e != null) {
+                load.completeExceptionally(e);
+            } else {
+                load.complete(null);
+            }
+        });
+        return load;
+    }
+
+    /**
+     * @return true if roles are answered from memory
+     */
+    public boolean isReady() {
+        return enabled && snapshot != null;
+    }
+
+    private static Set<Role> copy(Set<Role> roles) {
+        Set<Role> copies = new LinkedHashSet<>(roles.size() * 2);
+        roles.forEach(r -> copies.add(copy(r)));
+        return copies;
+    }
+
+    private static Role copy(Role role) {
+        return new Role(role.getRoleId(), role.getName(), role.getDescription(), role.getSource(), role.isReadOnly(),
+                role.getRoles() == null ? null : new HashSet<>(role.getRoles()),
+                role.getPrivileges() == null ? null : new HashSet<>(role.getPrivileges()));
+    }
+
+    private static String normalize(String roleId) {
+        return roleId.toLowerCase(Locale.ENGLISH);
+    }
+
+    private static final class Snapshot {
+
+        final Set<Role> roles;
+        final Map<String, Role> byId;
+        final long loadedAt;
+
+        Snapshot(Collection<Role> all, long loadedAt) {
+            Map<String, Role> map = new HashMap<>(all.size() * 2);
+            all.forEach(r -> map.put(normalize(r.getRoleId()), r));
+            this.roles = Collections.unmodifiableSet(new LinkedHashSet<>(all));
+            this.byId = map;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
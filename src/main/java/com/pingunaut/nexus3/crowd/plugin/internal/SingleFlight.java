@@ -0,0 +1,64 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Lets concurrent callers with the same key share the result of a single call.
+ * The first caller starts the call, everybody arriving while it is in flight
+ * gets its result (or exception) instead of issuing the same request again.
+ */
+public class SingleFlight {
+
+    private final ConcurrentMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong collapsed = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> execute(String key, Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<Object> shared = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, shared);
+        if (existing != null) {
+            collapsed.incrementAndGet();
+            // a dependent future, so a caller cancelling its result does not affect the others
+            return existing.thenApply(result -> (T) result);
+        }
+        executed.incrementAndGet();
+        CompletableFuture<T> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException | Error e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        result.whenComplete((value, error) -> {
+            // removed first, so callers arriving after completion start a new call
+            inFlight.remove(key, shared);
+            if (error != null) {
+                shared.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error);
+            } else {
+                shared.complete(value);
+            }
+        });
+        return shared.thenApply(value -> (T) value);
+    }
+
+    /**
+     * @return number of calls that were actually executed
+     */
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    /**
+     * @return number of calls that shared the result of a call already in flight
+     */
+    public long getCollapsedCount() {
+        return collapsed.get();
+    }
+}
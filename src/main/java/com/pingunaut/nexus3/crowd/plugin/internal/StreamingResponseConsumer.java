@@ -0,0 +1,144 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.ContentInputStream;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.util.SharedInputBuffer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.IntPredicate;
+
+/**
+ * Hands the body of a response to its {@link ResponseHandler} while it arrives, instead of
+ * reading it into memory first. The handler runs on the given executor and reads through a
+ * buffer of fixed size; while the buffer is full, the connection stops reading. A response
+ * therefore never takes more memory than the buffer, however large it is (e.g. all memberships
+ * of a directory), and neither mapping the response nor whatever runs once the result is there
+ * blocks the i/o dispatcher threads shared by all connections.
+ * <p>
+ * Bodies of responses that are not mapped (e.g. server errors) are discarded.
+ */
+class StreamingResponseConsumer<T> extends AbstractAsyncResponseConsumer<HttpResponse> {
+
+    private final ResponseHandler<? extends T> handler;
+    private final IntPredicate mappedStatus;
+    private final Executor executor;
+    private final SharedInputBuffer buffer;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+
+    private volatile HttpResponse response;
+    private volatile boolean streaming;
+    private volatile boolean completed;
+    private volatile boolean aborted;
+    private ByteBuffer discarded;
+
+    /**
+     * @param handler      maps the response
+     * @param mappedStatus true for the status codes of responses that are mapped
+     * @param executor     runs the handler
+     * @param bufferBytes  size of the buffer between the connection and the handler
+     */
+    StreamingResponseConsumer(ResponseHandler<? extends T> handler, IntPredicate mappedStatus, Executor executor,
+                              int bufferBytes) {
+        this.handler = handler;
+        this.mappedStatus = mappedStatus;
+        this.executor = executor;
+        this.buffer = new SharedInputBuffer(bufferBytes);
+    }
+
+    /**
+     * @return the mapped response, failed if the handler or receiving the response failed
+     */
+    CompletableFuture<T> getMapped() {
+        return result;
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) {
+        this.response = response;
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+        if (!mappedStatus.test(response.getStatusLine().getStatusCode())) {
+            return;
+        }
+        BasicHttpEntity streamed = new BasicHttpEntity();
+        streamed.setContent(new ContentInputStream(buffer));
+        streamed.setContentLength(entity.getContentLength());
+        streamed.setContentType(entity.getContentType());
+        streamed.setContentEncoding(entity.getContentEncoding());
+        streamed.setChunked(entity.isChunked());
+        response.setEntity(streamed);
+        streaming = true;
+        map();
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+        if (streaming) {
+            buffer.consumeContent(decoder, ioControl);
+            return;
+        }
+        if (discarded == null) {
+            discarded = ByteBuffer.allocate(4096);
+        }
+        while (decoder.read(discarded) > 0) {
+            discarded.clear();
+        }
+    }
+
+    @Override
+    protected HttpResponse buildResult(HttpContext context) {
+        completed = true;
+        if (!streaming && mappedStatus.test(response.getStatusLine().getStatusCode())) {
+            // nothing to stream, e.g. "204 No Content"
+            map();
+        }
+        return response;
+    }
+
+    @Override
+    protected void releaseResources() {
+        if (!completed) {
+            // failed or cancelled, a handler waiting for more of the body gives up
+            aborted = true;
+            buffer.shutdown();
+        }
+    }
+
+    private void map() {
+        try {
+            executor.execute(this::handle);
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void handle() {
+        try {
+            T mapped = handler.handleResponse(response);
+            // read what the handler left, so the connection can be reused
+            EntityUtils.consume(response.getEntity());
+            if (aborted) {
+                throw new IOException("response ended early");
+            }
+            result.complete(mapped);
+        } catch (IOException | RuntimeException e) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            result.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.google.common.base.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonatype.nexus.security.user.User;
+import org.sonatype.nexus.security.user.UserSearchCriteria;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Local prefix index over username, first, last and display name and email of all active
+ * crowd users, so the user search of the nexus UI doesn't send a crowd query per keystroke
+ * (search.index.enabled=true). The index is loaded in the background on the first search
+ * and reloaded once it is older than search.index.refreshinterval seconds. Until it is
+ * loaded, {@link #search(UserSearchCriteria)} returns null and crowd has to be asked.
+ * <p>
+ * Loading means paging through all users of the directory, so the index is opt-in. It also
+ * matches more than crowd's name search and the mirror, which only match the username and
+ * email prefix: it matches the prefix of the first, last and display name as well, and
+ * returns at most search.index.maxresults users.
+ */
+@Singleton
+@Named
+public class UserSearchIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserSearchIndex.class);
+
+    private final CachingNexusCrowdClient client;
+    private final boolean enabled;
+    private final long refreshIntervalMillis;
+    private final int maxResults;
+    private final AtomicBoolean loading = new AtomicBoolean();
+
+    private volatile Snapshot snapshot;
+
+    @Inject
+    public UserSearchIndex(CachingNexusCrowdClient client, CrowdProperties props, CrowdMetrics metrics) {
+        this.client = client;
+        this.enabled = props.isSearchIndexEnabled();
+        this.refreshIntervalMillis = TimeUnit.SECONDS.toMillis(Math.max(1, props.getSearchIndexRefreshInterval()));
+        this.maxResults = Math.max(1, props.getSearchIndexMaxResults());
+        if (enabled) {
+            metrics.gauge("searchindex.users", () -> snapshot == null ? 0 : snapshot.users.length);
+        }
+    }
+
+    /**
+     * Active users with a username, first, last or display name or email starting with the
+     * user id of the criteria and an email starting with the email of the criteria, ignoring
+     * case. At most search.index.maxresults users are returned.
+     *
+     * @param criteria the search
+     * @return the users found or null if the index is not loaded (yet)
+     */
+    public Set<User> search(UserSearchCriteria criteria) {
+        if (!enabled) {
+            return null;
+        }
+        Snapshot current = snapshot;
+        if (current == null || System.currentTimeMillis() - current.loadedAt >= refreshIntervalMillis) {
+            reload();
+        }
+        return current == null ? null : current.search(normalize(criteria.getUserId()),
+                normalize(criteria.getEmail()), maxResults);
+    }
+
+    /**
+     * Load all users in the background, unless a load is already running.
+     */
+    void reload() {
+        if (!loading.compareAndSet(false, true)) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        client.findUsersAsync().whenComplete((users, e) -> {
+            try {
+                if (e != null) {
+                    LOGGER.warn("loading the user search index failed: {}", e.getMessage());
+                } else {
+                    snapshot = new Snapshot(users, System.currentTimeMillis());
+                    LOGGER.debug("Indexed {} users for search in {} ms", snapshot.users.length,
+                            System.currentTimeMillis() - start);
+                }
+            } finally {
+                loading.set(false);
+            }
+        });
+    }
+
+    /**
+     * @return true if searches can be answered from the index
+     */
+    public boolean isReady() {
+        return enabled && snapshot != null;
+    }
+
+    private static String normalize(String value) {
+        return Strings.nullToEmpty(value).trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Immutable index: sorted, lower case keys with the position of their user, so a prefix
+     * is found by binary search and all its matches are next to each other.
+     */
+    static final class Snapshot {
+
+        final MirroredUser[] users;
+        final long loadedAt;
+        private final String[] nameKeys;
+        private final int[] nameOwners;
+        private final String[] emailKeys;
+        private final int[] emailOwners;
+
+        Snapshot(Collection<User> all, long loadedAt) {
+            this.users = all.stream().map(MirroredUser::new).filter(u -> u.active && u.userId != null)
+                    .sorted(Comparator.comparing(u -> u.userId)).toArray(MirroredUser[]::new);
+            this.loadedAt = loadedAt;
+            List<Key> names = new ArrayList<>(users.length * 4);
+            List<Key> emails = new ArrayList<>(users.length);
+            for (int i = 0; i < users.length; i++) {
+                MirroredUser u = users[i];
+                add(names, u.userId, i);
+                add(names, u.firstName, i);
+                add(names, u.lastName, i);
+                if (!Strings.isNullOrEmpty(u.firstName) && !Strings.isNullOrEmpty(u.lastName)) {
+                    add(names, u.firstName + " " + u.lastName, i);
+                }
+                add(emails, u.email, i);
+            }
+            names.sort(null);
+            emails.sort(null);
+            nameKeys = names.stream().map(k -> k.key).toArray(String[]::new);
+            nameOwners = names.stream().mapToInt(k -> k.owner).toArray();
+            emailKeys = emails.stream().map(k -> k.key).toArray(String[]::new);
+            emailOwners = emails.stream().mapToInt(k -> k.owner).toArray();
+        }
+
+        Set<User> search(String term, String email, int maxResults) {
+            Set<User> result = new LinkedHashSet<>();
+            if (term.isEmpty() && email.isEmpty()) {
+                for (int i = 0; i < users.length && result.size() < maxResults; i++) {
+                    result.add(users[i].toUser());
+                }
+                return result;
+            }
+            BitSet seen = new BitSet(users.length);
+            if (!term.isEmpty()) {
+                collect(nameKeys, nameOwners, term, email, seen, result, maxResults);
+                collect(emailKeys, emailOwners, term, email, seen, result, maxResults);
+            } else {
+                collect(emailKeys, emailOwners, email, email, seen, result, maxResults);
+            }
+            return result;
+        }
+
+        private void collect(String[] keys, int[] owners, String prefix, String email, BitSet seen,
+                             Set<User> result, int maxResults) {
+            for (int i = lowerBound(keys, prefix); i < keys.length && result.size() < maxResults
+                    && keys[i].startsWith(prefix); i++) {
+                int owner = owners[i];
+                if (!seen.get(owner)) {
+                    seen.set(owner);
+                    MirroredUser user = users[owner];
+                    if (email.isEmpty() || user.email != null && user.email.toLowerCase(Locale.ENGLISH).startsWith(email)) {
+                        result.add(user.toUser());
+                    }
+                }
+            }
+        }
+
+        private static int lowerBound(String[] keys, String prefix) {
+            int i = Arrays.binarySearch(keys, prefix);
+            if (i < 0) {
+                return -i - 1;
+            }
+            // duplicates, e.g. several users with the same first name
+            while (i > 0 && keys[i - 1].equals(prefix)) {
+                i--;
+            }
+            return i;
+        }
+
+        private static void add(List<Key> keys, String value, int owner) {
+            if (!Strings.isNullOrEmpty(value)) {
+                keys.add(new Key(value.toLowerCase(Locale.ENGLISH), owner));
+            }
+        }
+    }
+
+    private static final class Key implements Comparable<Key> {
+
+        final String key;
+        final int owner;
+
+        Key(String key, int owner) {
+            this.key = key;
+            this.owner = owner;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int c = key.compareTo(other.key);
+            return c != 0 ? c : Integer.compare(owner, other.owner);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.pingunaut.nexus3.crowd.plugin.internal.entity;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.io.Serializable;
+import java.util.Set;
+
+/**
+ * The group memberships of a user as kept in the cache. Entries are fresh until
+ * {@link #refreshAt}, may be served while being refreshed until {@link #expiresAt}
+ * and are only served as a fallback when crowd is unavailable until {@link #staleUntil}.
+ */
+public class CachedGroups implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public final Set<String> groups;
+    public final long refreshAt;
+    public final long expiresAt;
+    public final long staleUntil;
+
+    public CachedGroups(Set<String> groups, long refreshAt, long expiresAt, long staleUntil) {
+        // no copy of sets that are immutable already, e.g. shared ones
+        this.groups = ImmutableSet.copyOf(groups);
+        this.refreshAt = refreshAt;
+        this.expiresAt = expiresAt;
+        this.staleUntil = staleUntil;
+    }
+
+    public boolean isRefreshDue(long now) {
+        return now >= refreshAt;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+}
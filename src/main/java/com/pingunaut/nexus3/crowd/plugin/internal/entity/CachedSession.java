@@ -0,0 +1,24 @@
+package com.pingunaut.nexus3.crowd.plugin.internal.entity;
+
+import java.io.Serializable;
+
+/**
+ * A validated crowd SSO session as kept in the cache. It is accepted without
+ * asking crowd again until {@link #validUntil}.
+ */
+public class CachedSession implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public final String username;
+    public final long validUntil;
+
+    public CachedSession(String username, long validUntil) {
+        this.username = username;
+        this.validUntil = validUntil;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= validUntil;
+    }
+}
@@ -1,14 +1,37 @@
 package com.pingunaut.nexus3.crowd.plugin.internal.entity;
 
+import com.pingunaut.nexus3.crowd.plugin.internal.PasswordHasher;
+
+import java.io.Serializable;
+
 /**
  * Created by m on 12/3/16.
  */
-public class CachedToken {
+public class CachedToken implements Serializable {
+
+    private static final long serialVersionUID = 3L;
+
     public final byte[] hash;
     public final byte[] salt;
 
+    /**
+     * PBKDF2 iterations the hash was created with, or {@link PasswordHasher#HMAC}
+     */
+    public final int iterations;
+
+    /**
+     * When the token was cached, in ms since the epoch
+     */
+    public final long createdAt;
+
     public CachedToken(byte[] hash, byte[] salt) {
+        this(hash, salt, PasswordHasher.DEFAULT_ITERATIONS);
+    }
+
+    public CachedToken(byte[] hash, byte[] salt, int iterations) {
         this.hash = hash;
         this.salt = salt;
+        this.iterations = iterations;
+        this.createdAt = System.currentTimeMillis();
     }
 }
@@ -0,0 +1,57 @@
+package com.pingunaut.nexus3.crowd.plugin.internal.entity;
+
+import org.sonatype.nexus.security.role.Role;
+import org.sonatype.nexus.security.user.User;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The changes of a crowd directory since an event token, as returned by {@code event/<token>}.
+ * {@code event} without a token only returns the token to start from.
+ */
+public class CrowdEvents {
+
+	public enum Operation {
+		CREATED, UPDATED, DELETED
+	}
+
+	public final String newEventToken;
+	public final boolean incrementalSynchronisationAvailable;
+	public final List<Event> events;
+
+	public CrowdEvents(String newEventToken, boolean incrementalSynchronisationAvailable, List<Event> events) {
+		this.newEventToken = newEventToken;
+		this.incrementalSynchronisationAvailable = incrementalSynchronisationAvailable;
+		this.events = Collections.unmodifiableList(new ArrayList<>(events));
+	}
+
+	/**
+	 * A single change. Depending on what changed, either {@link #user}, {@link #group},
+	 * {@link #childUser} or {@link #childGroup} is set, memberships list the parent
+	 * groups (and for groups also the child groups) involved.
+	 */
+	public static class Event {
+
+		public final Operation operation;
+		public final User user;
+		public final Role group;
+		public final String childUser;
+		public final String childGroup;
+		public final Set<String> parentGroups;
+		public final Set<String> childGroups;
+
+		public Event(Operation operation, User user, Role group, String childUser, String childGroup,
+				Set<String> parentGroups, Set<String> childGroups) {
+			this.operation = operation;
+			this.user = user;
+			this.group = group;
+			this.childUser = childUser;
+			this.childGroup = childGroup;
+			this.parentGroups = parentGroups;
+			this.childGroups = childGroups;
+		}
+	}
+}
@@ -1,24 +0,0 @@
-package com.pingunaut.nexus3.crowd.plugin.internal.entity;
-
-public class CrowdGroupResult {
-
-	private String name;
-	private String description;
-
-	public String getName() {
-		return name;
-	}
-
-	public void setName(String name) {
-		this.name = name;
-	}
-
-	public String getDescription() {
-		return description;
-	}
-
-	public void setDescription(String description) {
-		this.description = description;
-	}
-	
-}
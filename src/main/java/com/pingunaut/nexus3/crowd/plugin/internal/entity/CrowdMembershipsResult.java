@@ -0,0 +1,207 @@
+package com.pingunaut.nexus3.crowd.plugin.internal.entity;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * All direct group memberships of a crowd directory, as returned by
+ * {@code group/membership}. Memberships can be changed afterwards, which
+ * is how the directory mirror applies crowd events.
+ * <p>
+ * Groups are kept as small arrays that are replaced on change, so reads never
+ * lock and a user costs little more than the references to its groups.
+ * <p>
+ * The nested groups of every group are resolved once and remembered, so users sharing
+ * parent groups don't walk the same part of the graph again. A change of the parents of
+ * a group forgets only the groups it is nested in, user memberships forget nothing.
+ * <p>
+ * Usernames are case-insensitive like in crowd, the realm looks up whatever the user typed.
+ */
+public class CrowdMembershipsResult {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CrowdMembershipsResult.class);
+
+	private static final String[] NONE = new String[0];
+
+	private final Map<String, String[]> groupsByUser = new ConcurrentHashMap<>();
+	private final Map<String, String[]> parentsByGroup = new ConcurrentHashMap<>();
+	// every group name is stored once, no matter how many users are members
+	private final Map<String, String> groupNames = new ConcurrentHashMap<>();
+	// the group itself and all groups it is nested in
+	private final Map<String, Set<String>> closures = new ConcurrentHashMap<>();
+	private final AtomicLong version = new AtomicLong();
+
+	public void addUserMembership(String group, String username) {
+		groupsByUser.merge(userKey(username), new String[] { groupName(group) }, CrowdMembershipsResult::union);
+	}
+
+	public void addGroupMembership(String parentGroup, String childGroup) {
+		parentsByGroup.merge(groupName(childGroup), new String[] { groupName(parentGroup) },
+				CrowdMembershipsResult::union);
+		parentsChanged(childGroup);
+	}
+
+	public void removeUserMembership(String group, String username) {
+		groupsByUser.computeIfPresent(userKey(username), (u, groups) -> without(groups, group));
+	}
+
+	public void removeGroupMembership(String parentGroup, String childGroup) {
+		parentsByGroup.computeIfPresent(childGroup, (g, parents) -> without(parents, parentGroup));
+		parentsChanged(childGroup);
+	}
+
+	/**
+	 * Replaces the direct groups of a user.
+	 */
+	public void setUserMemberships(String username, Collection<String> groups) {
+		groupsByUser.put(userKey(username), groups.stream().distinct().map(this::groupName).toArray(String[]::new));
+	}
+
+	/**
+	 * Replaces the direct parent groups of a group.
+	 */
+	public void setGroupMemberships(String childGroup, Collection<String> parentGroups) {
+		parentsByGroup.put(groupName(childGroup),
+				parentGroups.stream().distinct().map(this::groupName).toArray(String[]::new));
+		parentsChanged(childGroup);
+	}
+
+	public void removeUser(String username) {
+		groupsByUser.remove(userKey(username));
+	}
+
+	/**
+	 * Removes a group and every membership in it.
+	 */
+	public void removeGroup(String group) {
+		parentsByGroup.remove(group);
+		parentsByGroup.replaceAll((g, parents) -> without(parents, group));
+		groupsByUser.replaceAll((u, groups) -> without(groups, group));
+		groupNames.remove(group);
+		parentsChanged(group);
+	}
+
+	/**
+	 * @return the usernames in lower case
+	 */
+	public Set<String> getUsernames() {
+		return groupsByUser.keySet();
+	}
+
+	/**
+	 * @return number of direct user and group memberships
+	 */
+	public long getMembershipCount() {
+		return groupsByUser.values().stream().mapToLong(groups -> groups.length).sum()
+				+ parentsByGroup.values().stream().mapToLong(parents -> parents.length).sum();
+	}
+
+	/**
+	 * Resolves the direct and nested groups of a user.
+	 *
+	 * @param username
+	 *            the username
+	 * @return the groups, empty if the user is not a member of any group
+	 */
+	public Set<String> getNestedGroups(String username) {
+		String[] direct = groupsByUser.get(userKey(username));
+		if (direct == null) {
+			return Collections.emptySet();
+		}
+		if (direct.length == 1) {
+			return getClosure(direct[0]);
+		}
+		Set<String> result = new HashSet<>();
+		for (String group : direct) {
+			result.addAll(getClosure(group));
+		}
+		return result;
+	}
+
+	/**
+	 * @return the group and all groups it is nested in, remembered until their parents change
+	 */
+	private Set<String> getClosure(String group) {
+		Set<String> closure = closures.get(group);
+		if (closure != null) {
+			return closure;
+		}
+		long seen = version.get();
+		closure = Collections.unmodifiableSet(resolve(group));
+		closures.putIfAbsent(group, closure);
+		if (version.get() != seen) {
+			// the graph changed while resolving, don't remember what may be outdated
+			closures.remove(group, closure);
+		}
+		return closure;
+	}
+
+	private Set<String> resolve(String group) {
+		Set<String> result = new HashSet<>();
+		result.add(group);
+		Deque<String> pending = new ArrayDeque<>();
+		pending.push(group);
+		while (!pending.isEmpty()) {
+			for (String parent : parentsByGroup.getOrDefault(pending.pop(), NONE)) {
+				if (parent.equals(group)) {
+					LOGGER.debug("group {} is nested in itself", group);
+				}
+				Set<String> known = closures.get(parent);
+				if (known != null) {
+					// shared parents are resolved once
+					result.addAll(known);
+				} else if (result.add(parent)) {
+					// groups already seen are skipped, which also stops on cycles
+					pending.push(parent);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Forget the closures of a group and of every group nested in it.
+	 */
+	private void parentsChanged(String group) {
+		version.incrementAndGet();
+		closures.entrySet().removeIf(e -> e.getValue().contains(group));
+	}
+
+	private static String userKey(String username) {
+		return username.toLowerCase(Locale.ENGLISH);
+	}
+
+	private String groupName(String group) {
+		return groupNames.computeIfAbsent(group, g -> g);
+	}
+
+	private static String[] union(String[] groups, String[] added) {
+		String[] result = groups;
+		for (String group : added) {
+			if (!Arrays.asList(result).contains(group)) {
+				result = Arrays.copyOf(result, result.length + 1);
+				result[result.length - 1] = group;
+			}
+		}
+		return result;
+	}
+
+	private static String[] without(String[] groups, String removed) {
+		if (!Arrays.asList(groups).contains(removed)) {
+			return groups;
+		}
+		return Arrays.stream(groups).filter(g -> !g.equals(removed)).toArray(String[]::new);
+	}
+}
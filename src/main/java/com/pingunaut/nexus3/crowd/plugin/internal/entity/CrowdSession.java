@@ -0,0 +1,21 @@
+package com.pingunaut.nexus3.crowd.plugin.internal.entity;
+
+/**
+ * A crowd SSO session, as returned by {@code session} and {@code session/<token>}.
+ */
+public class CrowdSession {
+
+	public final String token;
+	public final String username;
+
+	/**
+	 * Milliseconds since the epoch, 0 if crowd didn't tell.
+	 */
+	public final long expiryDate;
+
+	public CrowdSession(String token, String username, long expiryDate) {
+		this.token = token;
+		this.username = username;
+		this.expiryDate = expiryDate;
+	}
+}
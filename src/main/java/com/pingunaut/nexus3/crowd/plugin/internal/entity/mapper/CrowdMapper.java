@@ -3,10 +3,14 @@ package com.pingunaut.nexus3.crowd.plugin.internal.entity.mapper;
 import org.apache.commons.io.IOUtils;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.pingunaut.nexus3.crowd.plugin.internal.CrowdUserManager;
 import com.pingunaut.nexus3.crowd.plugin.internal.entity.*;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.ParseException;
+import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,10 +19,23 @@ import org.sonatype.nexus.security.user.User;
 import org.sonatype.nexus.security.user.UserStatus;
 
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 public class CrowdMapper {
 
@@ -26,27 +43,74 @@ public class CrowdMapper {
 
 	private static final Gson GSON = new Gson();
 
+	private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
 	private CrowdMapper(){}
 
-	public static User toUser(CrowdUserResult c) {
-		User u = new User();
-		u.setEmailAddress(c.getEmail());
-		u.setFirstName(c.getFirstName());
-		u.setLastName(c.getLastName());
-		u.setReadOnly(true);
-		u.setStatus(c.isActive() ? UserStatus.active : UserStatus.disabled);
-		u.setUserId(c.getName());
-		u.setSource(CrowdUserManager.SOURCE);
-		return u;
+	public static String toPasswordJsonString(char[] password) {
+		return GSON.toJson(Password.of( password));
 	}
 
-	public static Role toRole(CrowdGroupResult crowdGroup) {
-		return new Role(crowdGroup.getName(), crowdGroup.getName(), crowdGroup.getDescription(),
-				CrowdUserManager.SOURCE, true, null, null);
+	/**
+	 * @return the body of {@code session} for a user, without validation factors
+	 */
+	public static String toSessionRequestJsonString(String username) {
+		Map<String, Object> request = new LinkedHashMap<>();
+		request.put("username", username);
+		request.put("validation-factors", Collections.singletonMap("validationFactors", Collections.emptyList()));
+		return GSON.toJson(request);
 	}
 
-	public static String toPasswordJsonString(char[] password) {
-		return GSON.toJson(Password.of( password));
+	/**
+	 * @return the body of {@code session/<token>}, without validation factors
+	 */
+	public static String toValidationFactorsJsonString() {
+		return GSON.toJson(Collections.singletonMap("validationFactors", Collections.emptyList()));
+	}
+
+	/**
+	 * Maps a created or validated SSO session.
+	 *
+	 * @return the session or null if the token or user is not valid (any more)
+	 */
+	public static CrowdSession toSession(HttpResponse r) {
+		int status = r.getStatusLine().getStatusCode();
+		if (status == 200 || status == 201) {
+			try {
+				return read(r, CrowdMapper::readSession);
+			} catch (IllegalStateException | ParseException | IOException e) {
+				logMappingException(e);
+			}
+		} else if (status == 400 || status == 404) {
+			LOGGER.debug("crowd rejected session, status {}", status);
+		} else {
+			logResponseException(r);
+		}
+		return null;
+	}
+
+	private static CrowdSession readSession(JsonReader reader) throws IOException {
+		String token = null;
+		String username = null;
+		long expiryDate = 0;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "token":
+				token = nextString(reader);
+				break;
+			case "user":
+				username = readName(reader);
+				break;
+			case "expiry-date":
+				expiryDate = reader.nextLong();
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return token == null || username == null ? null : new CrowdSession(token, username, expiryDate);
 	}
 
 	public static String toAuthToken(HttpResponse r) {
@@ -62,29 +126,40 @@ public class CrowdMapper {
 		return null;
 	}
 
+	/**
+	 * Maps the nested groups of a user.
+	 *
+	 * @return the group names, an empty set if the user is unknown to crowd or
+	 *         null if the response could not be used
+	 */
 	public static Set<String> toRoleStrings(HttpResponse r) {
 		if (responseOK(r)) {
 			try {
-				CrowdGroupsResult result = GSON.fromJson(EntityUtils.toString(r.getEntity()), CrowdGroupsResult.class);
-				return result.getGroups().stream().map(CrowdGroupResult::getName).collect(Collectors.toSet());
-			} catch (JsonSyntaxException | ParseException | IOException e) {
+				return read(r, reader -> readArray(reader, "groups", CrowdMapper::readName));
+			} catch (IllegalStateException | ParseException | IOException e) {
                 logMappingException(e);
             }
-        } else {
+        } else if (responseNotFound(r)) {
+			return Collections.emptySet();
+		} else {
             logResponseException(r);
 		}
-		return Collections.emptySet();
+		return null;
 	}
 
 	private static boolean responseOK(HttpResponse r) {
 		return r.getStatusLine().getStatusCode() == 200;
 	}
 
+	private static boolean responseNotFound(HttpResponse r) {
+		return r.getStatusLine().getStatusCode() == 404;
+	}
+
 	public static User toUser(HttpResponse r) {
 		if (responseOK(r)) {
 			try {
-				return toUser(GSON.fromJson(EntityUtils.toString(r.getEntity()), CrowdUserResult.class));
-			} catch (JsonSyntaxException | ParseException | IOException e) {
+				return read(r, CrowdMapper::readUser);
+			} catch (IllegalStateException | ParseException | IOException e) {
 				logMappingException(e);
 			}
 		} else {
@@ -96,8 +171,8 @@ public class CrowdMapper {
 	public static Role toRole(HttpResponse r) {
 		if (responseOK(r)) {
 			try {
-				return toRole(GSON.fromJson(EntityUtils.toString(r.getEntity()), CrowdGroupResult.class));
-			} catch (JsonSyntaxException | ParseException | IOException e) {
+				return read(r, CrowdMapper::readRole);
+			} catch (IllegalStateException | ParseException | IOException e) {
 				logMappingException(e);
 			}
 		} else {
@@ -109,9 +184,8 @@ public class CrowdMapper {
 	public static Set<User> toUsers(HttpResponse r) {
 		if (responseOK(r)) {
 			try {
-				return GSON.fromJson(EntityUtils.toString(r.getEntity()), CrowdUsersResult.class).getUsers().stream()
-						.map(CrowdMapper::toUser).collect(Collectors.toSet());
-			} catch (JsonSyntaxException | ParseException | IOException e) {
+				return read(r, reader -> readArray(reader, "users", CrowdMapper::readUser));
+			} catch (IllegalStateException | ParseException | IOException e) {
 				logMappingException(e);
 			}
 		} else {
@@ -123,9 +197,8 @@ public class CrowdMapper {
 	public static Set<Role> toRoles(HttpResponse r) {
 		if (responseOK(r)) {
 			try {
-				return GSON.fromJson(EntityUtils.toString(r.getEntity()), CrowdGroupsResult.class).getGroups().stream()
-						.map(CrowdMapper::toRole).collect(Collectors.toSet());
-			} catch (JsonSyntaxException | ParseException | IOException e) {
+				return read(r, reader -> readArray(reader, "groups", CrowdMapper::readRole));
+			} catch (IllegalStateException | ParseException | IOException e) {
 				logMappingException(e);
 			}
 		} else {
@@ -134,6 +207,282 @@ public class CrowdMapper {
 		return Collections.emptySet();
 	}
 
+	/**
+	 * Maps the changes since an event token.
+	 *
+	 * @return the events or null if crowd rejected the token (e.g. because it expired)
+	 *         or doesn't support events
+	 */
+	public static CrowdEvents toEvents(HttpResponse r) {
+		if (responseOK(r)) {
+			try {
+				return read(r, CrowdMapper::readEvents);
+			} catch (IllegalStateException | IllegalArgumentException | ParseException | IOException e) {
+				logMappingException(e);
+			}
+		} else {
+			// expected when the token is too old, so no error
+			LOGGER.info("crowd rejected event token, status {}", r.getStatusLine().getStatusCode());
+		}
+		return null;
+	}
+
+	private static CrowdEvents readEvents(JsonReader reader) throws IOException {
+		String token = null;
+		boolean incremental = false;
+		List<CrowdEvents.Event> events = new ArrayList<>();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "newEventToken":
+				token = nextString(reader);
+				break;
+			case "incrementalSynchronisationAvailable":
+				incremental = reader.nextBoolean();
+				break;
+			case "events":
+				reader.beginArray();
+				while (reader.hasNext()) {
+					events.add(readEvent(reader));
+				}
+				reader.endArray();
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return new CrowdEvents(token, incremental, events);
+	}
+
+	private static CrowdEvents.Event readEvent(JsonReader reader) throws IOException {
+		CrowdEvents.Operation operation = null;
+		User user = null;
+		Role group = null;
+		String childUser = null;
+		Set<String> parentGroups = null;
+		Set<String> childGroups = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "operation":
+				operation = CrowdEvents.Operation.valueOf(nextString(reader).toUpperCase(Locale.ENGLISH));
+				break;
+			case "user":
+				user = readUser(reader);
+				break;
+			case "group":
+				group = readRole(reader);
+				break;
+			case "childUser":
+				childUser = readName(reader);
+				break;
+			case "parentGroups":
+				parentGroups = readNames(reader);
+				break;
+			case "childGroups":
+				childGroups = readNames(reader);
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if (childUser != null) {
+			return new CrowdEvents.Event(operation, null, null, childUser, null, parentGroups, null);
+		}
+		if (group != null && (parentGroups != null || childGroups != null)) {
+			return new CrowdEvents.Event(operation, null, null, null, group.getRoleId(), parentGroups, childGroups);
+		}
+		return new CrowdEvents.Event(operation, user, group, null, null, null, null);
+	}
+
+	/**
+	 * Reads a list of groups, either as array or wrapped as {@code {"groups": [...]}}.
+	 */
+	private static Set<String> readNames(JsonReader reader) throws IOException {
+		if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+			return readArray(reader, "groups", CrowdMapper::readName);
+		}
+		Set<String> names = new HashSet<>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			names.add(readName(reader));
+		}
+		reader.endArray();
+		return names;
+	}
+
+	/**
+	 * Reads a json response straight from the entity stream, so mapped objects
+	 * are created while parsing instead of after buffering the whole body.
+	 */
+	private static <T> T read(HttpResponse r, JsonMapping<T> mapping) throws IOException {
+		HttpEntity entity = r.getEntity();
+		if (entity == null) {
+			throw new IOException("response has no content");
+		}
+		Charset charset = ContentType.getOrDefault(entity).getCharset();
+		try (JsonReader reader = new JsonReader(
+				new InputStreamReader(entity.getContent(), charset != null ? charset : StandardCharsets.UTF_8))) {
+			return mapping.read(reader);
+		}
+	}
+
+	private static <T> Set<T> readArray(JsonReader reader, String name, JsonMapping<T> elementMapping)
+			throws IOException {
+		Set<T> result = new HashSet<>();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (name.equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					result.add(elementMapping.read(reader));
+				}
+				reader.endArray();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return result;
+	}
+
+	private static User readUser(JsonReader reader) throws IOException {
+		User u = new User();
+		u.setReadOnly(true);
+		u.setStatus(UserStatus.disabled);
+		u.setSource(CrowdUserManager.SOURCE);
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "name":
+				u.setUserId(nextString(reader));
+				break;
+			case "first-name":
+				u.setFirstName(nextString(reader));
+				break;
+			case "last-name":
+				u.setLastName(nextString(reader));
+				break;
+			case "email":
+				u.setEmailAddress(nextString(reader));
+				break;
+			case "active":
+				u.setStatus(reader.nextBoolean() ? UserStatus.active : UserStatus.disabled);
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return u;
+	}
+
+	private static Role readRole(JsonReader reader) throws IOException {
+		String name = null;
+		String description = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "name":
+				name = nextString(reader);
+				break;
+			case "description":
+				description = nextString(reader);
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return new Role(name, name, description, CrowdUserManager.SOURCE, true, null, null);
+	}
+
+	private static String readName(JsonReader reader) throws IOException {
+		String name = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if ("name".equals(reader.nextName())) {
+				name = nextString(reader);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return name;
+	}
+
+	private static String nextString(JsonReader reader) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+		return reader.nextString();
+	}
+
+	@FunctionalInterface
+	private interface JsonMapping<T> {
+		T read(JsonReader reader) throws IOException;
+	}
+
+	/**
+	 * Maps the xml document of {@code group/membership} while reading it.
+	 *
+	 * @return the memberships or null if the response could not be used
+	 */
+	public static CrowdMembershipsResult toMemberships(HttpResponse r) {
+		if (responseOK(r)) {
+			try (InputStream in = r.getEntity().getContent()) {
+				return readMemberships(XML_INPUT_FACTORY.createXMLStreamReader(in));
+			} catch (XMLStreamException | IOException e) {
+				logMappingException(e);
+			}
+		} else {
+			logResponseException(r);
+		}
+		return null;
+	}
+
+	private static CrowdMembershipsResult readMemberships(XMLStreamReader reader) throws XMLStreamException {
+		CrowdMembershipsResult result = new CrowdMembershipsResult();
+		String group = null;
+		try {
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				switch (reader.getLocalName()) {
+				case "membership":
+					group = reader.getAttributeValue(null, "group");
+					break;
+				case "user":
+					if (group != null) {
+						result.addUserMembership(group, reader.getAttributeValue(null, "name"));
+					}
+					break;
+				case "group":
+					if (group != null) {
+						result.addGroupMembership(group, reader.getAttributeValue(null, "name"));
+					}
+					break;
+				default:
+					break;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return result;
+	}
+
+	private static XMLInputFactory createXmlInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		return factory;
+	}
+
 	private static void logMappingException(Exception e){
 		LOGGER.error("Error while mapping result", e);
 	}
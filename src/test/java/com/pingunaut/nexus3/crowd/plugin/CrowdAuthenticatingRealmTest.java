@@ -1,12 +1,17 @@
 package com.pingunaut.nexus3.crowd.plugin;
 
 import com.pingunaut.nexus3.crowd.plugin.internal.CachingNexusCrowdClient;
+import com.pingunaut.nexus3.crowd.plugin.internal.CrowdMirror;
+import com.pingunaut.nexus3.crowd.plugin.internal.CrowdProperties;
+import com.pingunaut.nexus3.crowd.plugin.internal.CrowdUserFilter;
 import com.pingunaut.nexus3.crowd.plugin.internal.PasswordHasher;
 import com.pingunaut.nexus3.crowd.plugin.internal.entity.CachedToken;
 import org.apache.shiro.authc.AuthenticationInfo;
 import org.apache.shiro.authc.AuthenticationToken;
 import org.apache.shiro.authc.UsernamePasswordToken;
+import org.apache.shiro.authz.AuthorizationException;
 import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.cache.MemoryConstrainedCacheManager;
 import org.apache.shiro.subject.PrincipalCollection;
 import org.apache.shiro.subject.SimplePrincipalCollection;
 import org.junit.Assert;
@@ -14,17 +19,25 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public class CrowdAuthenticatingRealmTest {
 
 	private CrowdAuthenticatingRealm r;
 	private CachingNexusCrowdClient mockedClient;
+	private CrowdMirror mockedMirror;
+	private CrowdProperties mockedProps;
+	private CrowdUserFilter mockedUserFilter;
 	@Before
 	public void setupTest(){
 		mockedClient = Mockito.mock(CachingNexusCrowdClient.class);
-		r = new CrowdAuthenticatingRealm(mockedClient);
+		mockedMirror = Mockito.mock(CrowdMirror.class);
+		mockedProps = Mockito.mock(CrowdProperties.class);
+		mockedUserFilter = Mockito.mock(CrowdUserFilter.class);
+		r = new CrowdAuthenticatingRealm(mockedClient, mockedMirror, mockedProps, mockedUserFilter);
 	}
 
 	@Test
@@ -35,13 +48,80 @@ public class CrowdAuthenticatingRealmTest {
 	@Test
 	public void testDoGetAuthorizationInfoPrincipalCollection() {
 		PrincipalCollection principals = new SimplePrincipalCollection("Test1", CrowdAuthenticatingRealm.NAME);
-		Mockito.when(mockedClient.findRolesByUser("Test1")).thenReturn(fakeAuths());
+		Mockito.when(mockedClient.findRolesByUserAsync("Test1")).thenReturn(CompletableFuture.completedFuture(fakeAuths()));
 		AuthorizationInfo info = r.doGetAuthorizationInfo(principals);
 		Assert.assertEquals(2, info.getRoles().size());
 		Assert.assertTrue(info.getRoles().contains("role1"));
 		Assert.assertTrue(info.getRoles().contains("role2"));
 	}
 
+	@Test
+	public void testDoGetAuthorizationInfoFromMirror() {
+		PrincipalCollection principals = new SimplePrincipalCollection("Test1", CrowdAuthenticatingRealm.NAME);
+		Mockito.when(mockedMirror.isReady()).thenReturn(true);
+		Mockito.when(mockedMirror.findRolesByUser("Test1")).thenReturn(fakeAuths());
+		AuthorizationInfo info = r.doGetAuthorizationInfo(principals);
+		Assert.assertEquals(fakeAuths(), info.getRoles());
+		Mockito.verify(mockedClient, Mockito.never()).findRolesByUserAsync("Test1");
+	}
+
+	@Test
+	public void testAuthorizationInfoIsCachedUntilUserChanges() {
+		Mockito.when(mockedProps.getCacheTtl("authorization", 60)).thenReturn(60);
+		r = new CrowdAuthenticatingRealm(mockedClient, mockedMirror, mockedProps, mockedUserFilter);
+		r.setCacheManager(new MemoryConstrainedCacheManager());
+		Mockito.verify(mockedClient).addChangeListener(r);
+		Mockito.verify(mockedMirror).addChangeListener(r);
+		PrincipalCollection principals = new SimplePrincipalCollection("Test1", CrowdAuthenticatingRealm.NAME);
+		Mockito.when(mockedClient.findRolesByUserAsync("Test1")).thenReturn(CompletableFuture.completedFuture(fakeAuths()));
+
+		for (int i = 0; i < 10; i++) {
+			Assert.assertTrue(r.hasRole(principals, "role1"));
+		}
+		Mockito.verify(mockedClient, Mockito.times(1)).findRolesByUserAsync("Test1");
+
+		r.userChanged("Test2");
+		Assert.assertTrue(r.hasRole(principals, "role2"));
+		Mockito.verify(mockedClient, Mockito.times(1)).findRolesByUserAsync("Test1");
+
+		r.userChanged("Test1");
+		Assert.assertTrue(r.hasRole(principals, "role2"));
+		r.directoryChanged();
+		Assert.assertTrue(r.hasRole(principals, "role2"));
+		Mockito.verify(mockedClient, Mockito.times(3)).findRolesByUserAsync("Test1");
+	}
+
+	@Test
+	public void testAuthorizationCacheDisabled() {
+		r.setCacheManager(new MemoryConstrainedCacheManager());
+		PrincipalCollection principals = new SimplePrincipalCollection("Test1", CrowdAuthenticatingRealm.NAME);
+		Mockito.when(mockedClient.findRolesByUserAsync("Test1")).thenReturn(CompletableFuture.completedFuture(fakeAuths()));
+		Assert.assertTrue(r.hasRole(principals, "role1"));
+		Assert.assertTrue(r.hasRole(principals, "role1"));
+		Mockito.verify(mockedClient, Mockito.times(2)).findRolesByUserAsync("Test1");
+	}
+
+	@Test
+	public void testAuthorizationInfoIsNotCachedIfCrowdFails() {
+		Mockito.when(mockedProps.getCacheTtl("authorization", 60)).thenReturn(60);
+		r = new CrowdAuthenticatingRealm(mockedClient, mockedMirror, mockedProps, mockedUserFilter);
+		r.setCacheManager(new MemoryConstrainedCacheManager());
+		PrincipalCollection principals = new SimplePrincipalCollection("Test1", CrowdAuthenticatingRealm.NAME);
+		CompletableFuture<Set<String>> failed = new CompletableFuture<>();
+		failed.completeExceptionally(new CrowdException("circuit breaker is open"));
+		Mockito.when(mockedClient.findRolesByUserAsync("Test1")).thenReturn(failed);
+
+		try {
+			r.hasRole(principals, "role1");
+			Assert.fail("roles of a failed lookup must not be empty");
+		} catch (AuthorizationException e) {
+			Assert.assertTrue(e.getCause() instanceof CrowdException);
+		}
+
+		Mockito.when(mockedClient.findRolesByUserAsync("Test1")).thenReturn(CompletableFuture.completedFuture(fakeAuths()));
+		Assert.assertTrue(r.hasRole(principals, "role1"));
+	}
+
 	private Set<String> fakeAuths() {
 		Set<String> auths = new HashSet<>();
 		auths.add("role1");
@@ -64,4 +144,32 @@ public class CrowdAuthenticatingRealmTest {
 		Assert.assertNotNull(info);
 	}
 
+	@Test
+	public void testDoGetAuthenticationInfoRejectedByUserFilter() {
+		UsernamePasswordToken token = new UsernamePasswordToken("admin", new char[]{'p', '1'});
+		Mockito.when(mockedUserFilter.isAbsent("admin")).thenReturn(true);
+		Assert.assertNull(r.doGetAuthenticationInfo(token));
+		Mockito.verify(mockedClient, Mockito.never()).authenticate(token);
+	}
+
+	@Test
+	public void testSessionTokenIsNotThePrincipal() {
+		CrowdSessionToken token = new CrowdSessionToken("secret", null);
+		Assert.assertEquals("secret", token.getCredentials());
+		Assert.assertFalse(token.getPrincipal().toString().contains("secret"));
+		Assert.assertEquals(token.getPrincipal(), new CrowdSessionToken("secret", null).getPrincipal());
+	}
+
+	@Test
+	public void testDoGetAuthenticationInfoWithSessionToken() {
+		Mockito.when(mockedClient.validateSession("valid")).thenReturn("u1");
+		Assert.assertTrue(r.supports(new CrowdSessionToken("valid", null)));
+		AuthenticationInfo info = r.doGetAuthenticationInfo(new CrowdSessionToken("valid", null));
+		Assert.assertEquals("u1", info.getPrincipals().getPrimaryPrincipal());
+		Assert.assertEquals(Collections.singleton(CrowdSessionToken.AuthenticatedBy.SESSION),
+				info.getPrincipals().byType(CrowdSessionToken.AuthenticatedBy.class));
+		Assert.assertNull(r.doGetAuthenticationInfo(new CrowdSessionToken("invalid", null)));
+		Mockito.verify(mockedClient, Mockito.never()).authenticate(Mockito.any(UsernamePasswordToken.class));
+	}
+
 }
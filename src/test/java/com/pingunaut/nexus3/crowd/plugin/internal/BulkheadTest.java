@@ -0,0 +1,158 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.codahale.metrics.Meter;
+import com.pingunaut.nexus3.crowd.plugin.CrowdException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BulkheadTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final Meter rejected = new Meter();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final List<CompletableFuture<String>> sent = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    private Bulkhead bulkhead(int limit, int queue, long queueTimeout, long targetLatency) {
+        return new Bulkhead("test", limit, queue, queueTimeout, targetLatency, timer, now::get, rejected);
+    }
+
+    private CompletableFuture<String> request(Bulkhead bulkhead) {
+        return bulkhead.execute(() -> {
+            CompletableFuture<String> request = new CompletableFuture<>();
+            sent.add(request);
+            return request;
+        });
+    }
+
+    @Test
+    public void testCancelledRequestsAreNotSent() {
+        Bulkhead bulkhead = bulkhead(1, 2, 10000, 0);
+        request(bulkhead);
+        CompletableFuture<String> cancelled = request(bulkhead);
+        request(bulkhead);
+        cancelled.cancel(false);
+        Assert.assertEquals(1, bulkhead.getQueued());
+
+        sent.get(0).complete("first");
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals(0, bulkhead.getQueued());
+    }
+
+    @Test
+    public void testCancellingASentRequestCancelsIt() {
+        Bulkhead bulkhead = bulkhead(1, 1, 10000, 0);
+        CompletableFuture<String> cancelled = request(bulkhead);
+        request(bulkhead);
+        cancelled.cancel(false);
+
+        Assert.assertTrue(sent.get(0).isCancelled());
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals(1, bulkhead.getInFlight());
+    }
+
+    @Test
+    public void testLimitAndQueue() throws Exception {
+        Bulkhead bulkhead = bulkhead(2, 1, 10000, 0);
+        request(bulkhead);
+        request(bulkhead);
+        CompletableFuture<String> queued = request(bulkhead);
+        CompletableFuture<String> full = request(bulkhead);
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals(1, bulkhead.getQueued());
+        assertRejected(full);
+
+        sent.get(0).complete("first");
+        Assert.assertEquals(3, sent.size());
+        Assert.assertEquals(0, bulkhead.getQueued());
+        Assert.assertEquals(2, bulkhead.getInFlight());
+        sent.get(2).complete("third");
+        Assert.assertEquals("third", queued.get());
+    }
+
+    @Test
+    public void testQueueTimeout() throws Exception {
+        Bulkhead bulkhead = bulkhead(1, 5, 50, 0);
+        request(bulkhead);
+        CompletableFuture<String> queued = request(bulkhead);
+        assertRejected(queued);
+        Assert.assertEquals(0, bulkhead.getQueued());
+
+        sent.get(0).complete("first");
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(0, bulkhead.getInFlight());
+    }
+
+    @Test
+    public void testFailuresReleaseThePermit() throws Exception {
+        Bulkhead bulkhead = bulkhead(1, 5, 10000, 0);
+        CompletableFuture<String> failing = request(bulkhead);
+        request(bulkhead);
+        sent.get(0).completeExceptionally(new CrowdException("down"));
+        Assert.assertTrue(failing.isCompletedExceptionally());
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals(0, rejected.getCount());
+    }
+
+    @Test
+    public void testLimitAdaptsToLatency() {
+        Bulkhead bulkhead = bulkhead(4, 100, 10000, 100);
+        for (int i = 0; i < 3; i++) {
+            request(bulkhead);
+            now.addAndGet(200);
+            sent.get(sent.size() - 1).complete("slow");
+        }
+        // 4 * 0.75^3
+        Assert.assertEquals(1, bulkhead.getLimit());
+        request(bulkhead);
+        request(bulkhead);
+        Assert.assertEquals(1, bulkhead.getInFlight());
+        Assert.assertEquals(1, bulkhead.getQueued());
+
+        for (int i = 0; i < 20; i++) {
+            request(bulkhead);
+            // completing one may send a queued one
+            for (int j = 0; j < sent.size(); j++) {
+                sent.get(j).complete("fast");
+            }
+        }
+        Assert.assertEquals(4, bulkhead.getLimit());
+    }
+
+    @Test
+    public void testNoLimit() {
+        Bulkhead bulkhead = bulkhead(0, 0, 10000, 0);
+        for (int i = 0; i < 100; i++) {
+            request(bulkhead);
+        }
+        Assert.assertEquals(100, sent.size());
+        Assert.assertEquals(0, bulkhead.getLimit());
+    }
+
+    private void assertRejected(CompletableFuture<String> request) throws InterruptedException {
+        try {
+            request.get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof CrowdException);
+        } catch (TimeoutException e) {
+            Assert.fail("not rejected");
+        }
+        Assert.assertEquals(1, rejected.getCount());
+    }
+}
@@ -0,0 +1,287 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.codahale.metrics.MetricRegistry;
+import com.pingunaut.nexus3.crowd.plugin.internal.entity.CachedToken;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonatype.nexus.security.role.Role;
+import org.sonatype.nexus.security.role.RoleIdentifier;
+import org.sonatype.nexus.security.user.User;
+import org.sonatype.nexus.security.user.UserStatus;
+
+import java.util.Collections;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+public class CacheProviderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testGroupsHitAndMiss() {
+        CacheProvider cache = new CacheProvider(new CrowdProperties(new Properties()));
+        Assert.assertFalse(cache.getGroups("u1").isPresent());
+
+        Set<String> groups = new HashSet<>(Collections.singletonList("g1"));
+        cache.putGroups("u1", groups);
+
+        Assert.assertEquals(groups, cache.getGroups("u1").get());
+        Assert.assertEquals(1, cache.getGroupsHitCount());
+        Assert.assertEquals(1, cache.getGroupsMissCount());
+    }
+
+    @Test
+    public void testMetrics() throws InterruptedException {
+        Properties p = new Properties();
+        p.setProperty("cache.tokens.entries", "1");
+        MetricRegistry registry = new MetricRegistry();
+        CacheProvider cache = new CacheProvider(new CrowdProperties(p), new CrowdMetrics(registry));
+        cache.putToken("u1", new CachedToken(new byte[0], new byte[0]));
+        Assert.assertTrue(cache.getToken("u1").isPresent());
+        Assert.assertFalse(cache.getUser("u1").isPresent());
+        cache.putToken("u2", new CachedToken(new byte[0], new byte[0]));
+
+        Assert.assertEquals(1, registry.counter("com.pingunaut.nexus3.crowd.cache.tokens.hits").getCount());
+        Assert.assertEquals(1, registry.counter("com.pingunaut.nexus3.crowd.cache.users.misses").getCount());
+        // evictions are counted asynchronously
+        for (int i = 0; i < 50 && registry.counter("com.pingunaut.nexus3.crowd.cache.tokens.evictions").getCount() == 0; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(1, registry.counter("com.pingunaut.nexus3.crowd.cache.tokens.evictions").getCount());
+        cache.close();
+    }
+
+    @Test
+    public void testEqualGroupsAreShared() {
+        CacheProvider cache = new CacheProvider(new CrowdProperties(new Properties()));
+        cache.putGroups("u1", new HashSet<>(Arrays.asList("g1", "g2")));
+        cache.putGroups("u2", new HashSet<>(Arrays.asList(new String("g2"), new String("g1"))));
+        cache.putGroups("u3", new HashSet<>(Arrays.asList(new String("g1"), "g3")));
+
+        Set<String> groups = cache.getGroups("u1").get();
+        Assert.assertEquals(new HashSet<>(Arrays.asList("g1", "g2")), groups);
+        Assert.assertSame(groups, cache.getGroups("u2").get());
+        Assert.assertSame(groups.iterator().next(), cache.getGroups("u3").get().iterator().next());
+    }
+
+    @Test
+    public void testEmptyGroupsAreCached() {
+        CacheProvider cache = new CacheProvider(new CrowdProperties(new Properties()));
+        cache.putGroups("unknown", Collections.emptySet());
+        Assert.assertTrue(cache.getGroups("unknown").isPresent());
+        Assert.assertTrue(cache.getGroups("unknown").get().isEmpty());
+    }
+
+    @Test
+    public void testInvalidateGroups() {
+        CacheProvider cache = new CacheProvider(new CrowdProperties(new Properties()));
+        cache.putGroups("u1", Collections.singleton("g1"));
+        cache.invalidateGroups("u1");
+        Assert.assertFalse(cache.getGroups("u1").isPresent());
+    }
+
+    @Test
+    public void testPersistentCachesSurviveRestart() throws Exception {
+        Properties p = persistent(folder.newFolder());
+        p.setProperty("cache.roles.ttl", "1");
+        CacheProvider cache = new CacheProvider(new CrowdProperties(p));
+        cache.putGroups("u1", Collections.singleton("g1"));
+        User user = new User();
+        user.setUserId("u1");
+        cache.putUser("u1", user);
+        cache.putRole("r1", new Role("r1", "r1", "", "Crowd", true, null, null));
+        cache.putToken("u1", new CachedToken(new byte[0], new byte[0]));
+        cache.close();
+        Thread.sleep(1100);
+
+        cache = new CacheProvider(new CrowdProperties(p));
+        Assert.assertEquals(Collections.singleton("g1"), cache.getGroups("u1").get());
+        Assert.assertEquals("u1", cache.getUser("u1").get().getUserId());
+        Assert.assertFalse("expired while nexus was down", cache.getRole("r1").isPresent());
+        Assert.assertFalse("credentials are not persisted by default", cache.getToken("u1").isPresent());
+        cache.close();
+    }
+
+    @Test
+    public void testPersistentTokensWhenEnabled() throws Exception {
+        Properties p = persistent(folder.newFolder());
+        p.setProperty("cache.tokens.disk", "1");
+        CacheProvider cache = new CacheProvider(new CrowdProperties(p));
+        cache.putToken("u1", new CachedToken(new byte[]{1}, new byte[]{2}));
+        cache.close();
+
+        cache = new CacheProvider(new CrowdProperties(p));
+        Assert.assertTrue(cache.getToken("u1").isPresent());
+        cache.close();
+    }
+
+    @Test
+    public void testUnreadablePersistentCachesAreReplaced() throws Exception {
+        File dir = folder.newFile();
+        Files.write(dir.toPath(), new byte[]{1, 2, 3});
+        CacheProvider cache = new CacheProvider(new CrowdProperties(persistent(dir)));
+        cache.putGroups("u1", Collections.singleton("g1"));
+        Assert.assertTrue(cache.getGroups("u1").isPresent());
+        Assert.assertTrue(dir.isDirectory());
+        cache.close();
+    }
+
+    private static Properties persistent(File dir) {
+        Properties p = new Properties();
+        p.setProperty("cache.persistent", "true");
+        p.setProperty("cache.persistent.dir", dir.getAbsolutePath());
+        return p;
+    }
+
+    @Test
+    public void testChangeListener() {
+        CacheProvider cache = new CacheProvider(new CrowdProperties(new Properties()));
+        List<String> changed = new ArrayList<>();
+        cache.addChangeListener(new CrowdChangeListener() {
+            @Override
+            public void userChanged(String username) {
+                changed.add(username);
+            }
+
+            @Override
+            public void directoryChanged() {
+                changed.add("*");
+            }
+        });
+        cache.putGroups("u1", Collections.singleton("g1"));
+        cache.putGroups("u1", Collections.singleton("g1"));
+        cache.putGroups("u1", Collections.singleton("g2"));
+        cache.putToken("u2", new CachedToken(new byte[0], new byte[0]));
+        cache.putToken("u2", new CachedToken(new byte[1], new byte[0]));
+        cache.invalidateGroups("u3");
+
+        Assert.assertEquals(Arrays.asList("u1", "u2", "u3"), changed);
+    }
+
+    @Test
+    public void testSameHashIsNoChange() {
+        CacheProvider cache = new CacheProvider(new CrowdProperties(new Properties()));
+        List<String> changed = new ArrayList<>();
+        cache.addChangeListener(new CrowdChangeListener() {
+            @Override
+            public void userChanged(String username) {
+                changed.add(username);
+            }
+
+            @Override
+            public void directoryChanged() {
+                changed.add("*");
+            }
+        });
+        cache.putToken("u1", new CachedToken(new byte[]{1}, new byte[]{2}));
+        cache.putToken("u1", new CachedToken(new byte[]{1}, new byte[]{2}));
+
+        Assert.assertTrue(changed.isEmpty());
+    }
+
+    @Test
+    public void testUsersAreCachedAsCopies() {
+        CacheProvider cache = new CacheProvider(new CrowdProperties(new Properties()));
+        User user = createUser();
+        cache.putUser("greg", user);
+        user.setFirstName("changed");
+
+        User cached = cache.getUser("greg").get();
+        Assert.assertEquals("Greg", cached.getFirstName());
+        cached.setFirstName("changed");
+        Assert.assertEquals("Greg", cache.getUser("greg").get().getFirstName());
+    }
+
+    @Test
+    public void testOffHeapTier() {
+        Properties p = new Properties();
+        p.setProperty("cache.users.entries", "1");
+        p.setProperty("cache.users.offheap", "1");
+        p.setProperty("cache.groups.entries", "1");
+        p.setProperty("cache.groups.offheap", "1");
+        CacheProvider cache = new CacheProvider(new CrowdProperties(p));
+
+        cache.putUser("greg", createUser());
+        cache.putUser("adam", new User());
+        cache.putGroups("greg", Collections.singleton("g1"));
+        cache.putGroups("adam", Collections.singleton("g2"));
+
+        // the heap tier holds one entry only, so the other one comes from off-heap
+        User greg = cache.getUser("greg").get();
+        Assert.assertEquals("Greg", greg.getFirstName());
+        Assert.assertEquals(UserStatus.active, greg.getStatus());
+        Assert.assertEquals(Collections.singleton(new RoleIdentifier(CrowdUserManager.SOURCE, "g1")), greg.getRoles());
+        Assert.assertTrue(cache.getUser("adam").isPresent());
+        Assert.assertEquals(Collections.singleton("g1"), cache.getGroups("greg").get());
+        Assert.assertEquals(Collections.singleton("g2"), cache.getGroups("adam").get());
+        cache.close();
+    }
+
+    @Test
+    public void testInvalidateUser() {
+        CacheProvider cache = new CacheProvider(new CrowdProperties(new Properties()));
+        cache.putToken("greg", new CachedToken(new byte[]{1}, new byte[]{2}));
+        cache.putGroups("greg", Collections.singleton("g1"));
+        cache.putUser("greg", createUser());
+
+        cache.invalidateUser("greg");
+
+        Assert.assertFalse(cache.getToken("greg").isPresent());
+        Assert.assertFalse(cache.getGroups("greg").isPresent());
+        Assert.assertFalse(cache.getUser("greg").isPresent());
+    }
+
+    @Test
+    public void testTimeToIdleDoesNotExtendTtl() throws InterruptedException {
+        Properties p = new Properties();
+        p.setProperty("cache.tokens.ttl", "2");
+        p.setProperty("cache.tokens.tti", "1");
+        p.setProperty("cache.users.ttl", "2");
+        p.setProperty("cache.users.tti", "1");
+        CacheProvider cache = new CacheProvider(new CrowdProperties(p));
+        long created = System.currentTimeMillis();
+        cache.putToken("greg", new CachedToken(new byte[]{1}, new byte[]{2}));
+        cache.putUser("greg", createUser());
+
+        // read every tti / 2, which keeps the entries from idling but not beyond their ttl
+        while (System.currentTimeMillis() - created < 1800) {
+            Assert.assertTrue(cache.getToken("greg").isPresent());
+            Assert.assertTrue(cache.getUser("greg").isPresent());
+            Thread.sleep(500);
+        }
+        Thread.sleep(Math.max(0, created + 2100 - System.currentTimeMillis()));
+        Assert.assertFalse(cache.getToken("greg").isPresent());
+        Assert.assertFalse(cache.getUser("greg").isPresent());
+        cache.close();
+    }
+
+    @Test
+    public void testTimeToIdle() throws InterruptedException {
+        Properties p = new Properties();
+        p.setProperty("cache.tokens.tti", "1");
+        CacheProvider cache = new CacheProvider(new CrowdProperties(p));
+        cache.putToken("greg", new CachedToken(new byte[]{1}, new byte[]{2}));
+        Thread.sleep(1100);
+        Assert.assertFalse(cache.getToken("greg").isPresent());
+        cache.close();
+    }
+
+    private User createUser() {
+        User user = new User();
+        user.setUserId("greg");
+        user.setFirstName("Greg");
+        user.setStatus(UserStatus.active);
+        user.setSource(CrowdUserManager.SOURCE);
+        user.addRole(new RoleIdentifier(CrowdUserManager.SOURCE, "g1"));
+        return user;
+    }
+}
@@ -0,0 +1,101 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class CacheWarmerTest {
+
+    private CrowdStubServer crowd;
+    private CachingNexusCrowdClient client;
+    private CacheProvider cache;
+    private RoleCatalog roleCatalog;
+    private MetricRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        crowd = new CrowdStubServer().withUsers(10).withGroups(20).withGroupsPerUser(2);
+        registry = new MetricRegistry();
+    }
+
+    @After
+    public void tearDown() {
+        client.shutdown();
+        crowd.close();
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        CacheWarmer warmer = warmer("true", "user1, user2,nobody");
+        CompletableFuture<Void> warmUp = warmer.start();
+        warmUp.get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(100, warmer.getProgress());
+        Assert.assertTrue(roleCatalog.isReady());
+        Assert.assertTrue(cache.getUser("user1").isPresent());
+        Assert.assertEquals(2, cache.getGroups("user2").get().size());
+        Assert.assertTrue(cache.getGroups("nobody").get().isEmpty());
+        Assert.assertTrue((Long) registry.getGauges().get("com.pingunaut.nexus3.crowd.warmup.duration").getValue() >= 0);
+
+        int requests = crowd.getRequestCount();
+        Assert.assertEquals(2, client.findRolesByUser("user1").size());
+        Assert.assertNotNull(client.findUserByUsername("user2"));
+        Assert.assertEquals(20, roleCatalog.listRoles().size());
+        Assert.assertNotNull(roleCatalog.getRole("group7"));
+        Assert.assertEquals(requests, crowd.getRequestCount());
+    }
+
+    @Test
+    public void testWarmUpWithoutRoleCatalog() throws Exception {
+        CacheWarmer warmer = warmer("true", "", "false");
+        warmer.start().get(10, TimeUnit.SECONDS);
+
+        Assert.assertFalse(roleCatalog.isReady());
+        Assert.assertTrue(cache.getRole("group7").isPresent());
+        int requests = crowd.getRequestCount();
+        Assert.assertNotNull(client.findRoleByRoleId("group7"));
+        Assert.assertEquals(requests, crowd.getRequestCount());
+    }
+
+    @Test
+    public void testWarmUpSurvivesCrowdBeingDown() throws Exception {
+        CacheWarmer warmer = warmer("true", "user1");
+        crowd.close();
+        warmer.start().get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(100, warmer.getProgress());
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        CacheWarmer warmer = warmer(null, "user1");
+        warmer.start().get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(0, crowd.getRequestCount());
+    }
+
+    private CacheWarmer warmer(String enabled, String users) {
+        return warmer(enabled, users, null);
+    }
+
+    private CacheWarmer warmer(String enabled, String users, String roleCatalogEnabled) {
+        Properties p = crowd.properties();
+        if (enabled != null) {
+            p.setProperty("warmup.enabled", enabled);
+        }
+        if (roleCatalogEnabled != null) {
+            p.setProperty("roles.catalog.enabled", roleCatalogEnabled);
+        }
+        p.setProperty("warmup.users", users);
+        CrowdProperties props = new CrowdProperties(p);
+        CrowdMetrics metrics = new CrowdMetrics(registry);
+        cache = new CacheProvider(props, metrics);
+        client = new CachingNexusCrowdClient(props, cache, metrics);
+        roleCatalog = new RoleCatalog(client, props, metrics);
+        return new CacheWarmer(client, cache, roleCatalog, props, metrics);
+    }
+}
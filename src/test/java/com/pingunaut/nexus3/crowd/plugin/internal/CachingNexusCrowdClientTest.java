@@ -1,19 +1,43 @@
 package com.pingunaut.nexus3.crowd.plugin.internal;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.pingunaut.nexus3.crowd.plugin.CrowdException;
 import com.pingunaut.nexus3.crowd.plugin.internal.entity.CachedToken;
+import com.pingunaut.nexus3.crowd.plugin.internal.entity.mapper.CrowdMapper;
 import org.apache.http.HttpHost;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.shiro.authc.UsernamePasswordToken;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.sonatype.nexus.security.role.Role;
+import org.sonatype.nexus.security.user.User;
 
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -22,6 +46,21 @@ import static org.mockito.Mockito.*;
 
 public class CachingNexusCrowdClientTest {
 
+    private static final HttpHost HOST = new HttpHost("foobar");
+
+    private final List<CachingNexusCrowdClient> clients = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        // stops the i/o reactor, connection evictor and response threads of every client
+        clients.forEach(CachingNexusCrowdClient::shutdown);
+    }
+
+    private CachingNexusCrowdClient track(CachingNexusCrowdClient client) {
+        clients.add(client);
+        return client;
+    }
+
     @Test
     public void testConstructor() {
         CrowdProperties props = mock(CrowdProperties.class);
@@ -30,7 +69,7 @@ public class CachingNexusCrowdClientTest {
         when(props.getServerUrl()).thenReturn("http://foobar/");
         when(props.getApplicationName()).thenReturn("app");
         when(props.getApplicationPassword()).thenReturn("passw");
-        CachingNexusCrowdClient client = new CachingNexusCrowdClient(props, cache);
+        CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, cache));
         Assert.assertNotNull(client.getClient());
     }
 
@@ -58,7 +97,7 @@ public class CachingNexusCrowdClientTest {
         when(props.getServerUrl()).thenReturn("http://foobar/");
         when(props.getApplicationName()).thenReturn("app");
         when(props.getApplicationPassword()).thenReturn("passw");
-        CachingNexusCrowdClient client = new CachingNexusCrowdClient(props, cache);
+        CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, cache));
         UsernamePasswordToken token = new UsernamePasswordToken("u", "p");
         Optional<CachedToken> ot = Optional.of(new CachedToken(new byte[]{1,2,3}, new byte[]{1,2,3}));
         when(cache.getToken("u")).thenReturn(ot);
@@ -74,7 +113,7 @@ public class CachingNexusCrowdClientTest {
         when(props.getServerUrl()).thenReturn("http://foobar/");
         when(props.getApplicationName()).thenReturn("app");
         when(props.getApplicationPassword()).thenReturn("passw");
-        CachingNexusCrowdClient client = new CachingNexusCrowdClient(props, cache);
+        CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, cache));
 
         UsernamePasswordToken token = new UsernamePasswordToken("user123", "password123");
         CachedToken ct = client.createCachedToken(token.getPassword());
@@ -85,6 +124,27 @@ public class CachingNexusCrowdClientTest {
         Assert.assertEquals(true, auth);
     }
 
+    @Test
+    public void authenticateFromCacheHmacToken() {
+        CrowdProperties props = mock(CrowdProperties.class);
+        CacheProvider cache = mock(CacheProvider.class);
+        when(props.isCacheAuthenticationEnabled()).thenReturn(Boolean.TRUE);
+        when(props.isCacheAuthenticationHmac()).thenReturn(Boolean.TRUE);
+        when(props.getServerUrl()).thenReturn("http://foobar/");
+        when(props.getApplicationName()).thenReturn("app");
+        when(props.getApplicationPassword()).thenReturn("passw");
+        CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, cache));
+
+        UsernamePasswordToken token = new UsernamePasswordToken("user123", "password123");
+        CachedToken ct = client.createCachedToken(token.getPassword());
+        Assert.assertEquals(PasswordHasher.HMAC, ct.iterations);
+        when(cache.getToken("user123")).thenReturn(Optional.of(ct));
+        Assert.assertTrue(client.authenticateFromCache(token));
+        Assert.assertFalse(client.authenticateFromCache(new UsernamePasswordToken("user123", "password124")));
+        // the password is still intact for a request to crowd
+        Assert.assertArrayEquals("password123".toCharArray(), token.getPassword());
+    }
+
     @Test
     public void testCreateCachedToken()  {
         CachingNexusCrowdClient mockedClient = mock(CachingNexusCrowdClient.class);
@@ -100,9 +160,11 @@ public class CachingNexusCrowdClientTest {
         CachingNexusCrowdClient mockedClient = mock(CachingNexusCrowdClient.class);
         UsernamePasswordToken token = new UsernamePasswordToken("user123", "password123");
         when(mockedClient.authenticate(token)).thenCallRealMethod();
-        when(mockedClient.executeQuery(any(),any())).thenReturn("foo");
+        when(mockedClient.authenticateAsync(token)).thenCallRealMethod();
+        doReturn(CompletableFuture.completedFuture("foo")).when(mockedClient).executeAsync(any(), any());
         when(mockedClient.getServerUriString()).thenReturn("bar");
         when(mockedClient.restUri(anyString())).thenReturn("http://abc");
+        when(mockedClient.getSingleFlight()).thenReturn(new SingleFlight());
         boolean auth = mockedClient.authenticate(token);
         Assert.assertTrue(auth);
     }
@@ -112,9 +174,11 @@ public class CachingNexusCrowdClientTest {
         CachingNexusCrowdClient mockedClient = mock(CachingNexusCrowdClient.class);
         UsernamePasswordToken token = new UsernamePasswordToken("user123", "password123");
         when(mockedClient.authenticate(token)).thenCallRealMethod();
-        when(mockedClient.executeQuery(any(),any())).thenReturn(null);
+        when(mockedClient.authenticateAsync(token)).thenCallRealMethod();
+        doReturn(CompletableFuture.completedFuture(null)).when(mockedClient).executeAsync(any(), any());
         when(mockedClient.getServerUriString()).thenReturn("bar");
         when(mockedClient.restUri(anyString())).thenReturn("http://abc");
+        when(mockedClient.getSingleFlight()).thenReturn(new SingleFlight());
         boolean auth = mockedClient.authenticate(token);
         Assert.assertFalse(auth);
     }
@@ -125,12 +189,15 @@ public class CachingNexusCrowdClientTest {
 
         UsernamePasswordToken token = new UsernamePasswordToken("user123", "password123");
         when(mockedClient.authenticate(token)).thenCallRealMethod();
-        when(mockedClient.executeQuery(any(),any())).thenReturn("foo");
+        when(mockedClient.authenticateAsync(token)).thenCallRealMethod();
+        doReturn(CompletableFuture.completedFuture("foo")).when(mockedClient).executeAsync(any(), any());
         when(mockedClient.getServerUriString()).thenReturn("bar");
         CacheProvider cache = mock(CacheProvider.class);
         when(mockedClient.getCache()).thenReturn(cache);
         when(mockedClient.isAuthCacheEnabled()).thenReturn(Boolean.TRUE);
+        when(cache.getToken("user123")).thenReturn(Optional.empty());
         when(mockedClient.restUri(anyString())).thenReturn("http://abc");
+        when(mockedClient.getSingleFlight()).thenReturn(new SingleFlight());
         boolean auth = mockedClient.authenticate(token);
 
         Assert.assertTrue(auth);
@@ -143,7 +210,8 @@ public class CachingNexusCrowdClientTest {
 
         UsernamePasswordToken token = new UsernamePasswordToken("user123", "password123");
         when(mockedClient.authenticate(token)).thenCallRealMethod();
-        when(mockedClient.executeQuery(any(),any())).thenReturn("foo");
+        when(mockedClient.authenticateAsync(token)).thenCallRealMethod();
+        doReturn(CompletableFuture.completedFuture("foo")).when(mockedClient).executeAsync(any(), any());
         when(mockedClient.getServerUriString()).thenReturn("bar");
         CacheProvider cache = mock(CacheProvider.class);
         when(mockedClient.getCache()).thenReturn(cache);
@@ -163,7 +231,7 @@ public class CachingNexusCrowdClientTest {
         when(props.getServerUrl()).thenReturn("http://foobar/");
         when(props.getApplicationName()).thenReturn("app");
         when(props.getApplicationPassword()).thenReturn("passw");
-        CachingNexusCrowdClient client = new CachingNexusCrowdClient(props, cache);
+        CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, cache));
         Assert.assertEquals("http://foobar", client.getServerUriString());
     }
 
@@ -175,7 +243,7 @@ public class CachingNexusCrowdClientTest {
         when(props.getServerUrl()).thenReturn("http://foobar/");
         when(props.getApplicationName()).thenReturn("app");
         when(props.getApplicationPassword()).thenReturn("passw");
-        CachingNexusCrowdClient client = new CachingNexusCrowdClient(props, cache);
+        CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, cache));
         Assert.assertTrue(client.isAuthCacheEnabled());
     }
 
@@ -187,7 +255,7 @@ public class CachingNexusCrowdClientTest {
         when(props.getServerUrl()).thenReturn("http://foobar/");
         when(props.getApplicationName()).thenReturn("app");
         when(props.getApplicationPassword()).thenReturn("passw");
-        CachingNexusCrowdClient client = new CachingNexusCrowdClient(props, cache);
+        CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, cache));
         Assert.assertEquals(cache, client.getCache());
     }
 
@@ -199,7 +267,7 @@ public class CachingNexusCrowdClientTest {
         when(props.getServerUrl()).thenReturn("http://foobar/");
         when(props.getApplicationName()).thenReturn("app");
         when(props.getApplicationPassword()).thenReturn("passw");
-        CachingNexusCrowdClient client = new CachingNexusCrowdClient(props, cache);
+        CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, cache));
         Assert.assertEquals("http://foobar/rest/usermanagement/1/blub", client.restUri("blub"));
     }
 
@@ -211,18 +279,14 @@ public class CachingNexusCrowdClientTest {
         when(props.getServerUrl()).thenReturn("http://foobar/");
         when(props.getApplicationName()).thenReturn("app");
         when(props.getApplicationPassword()).thenReturn("passw");
+        when(props.getPageSize()).thenReturn(1000);
         CloseableHttpClient clientMock = Mockito.mock(CloseableHttpClient.class);
         ArgumentCaptor<HttpUriRequest> captor = ArgumentCaptor.forClass(HttpUriRequest.class);
         when(clientMock.execute(any(HttpHost.class), captor.capture(), any(ResponseHandler.class))).thenReturn(
                 IntStream.range(0, 1000).mapToObj(this::createRole).collect(Collectors.toSet()),
                 IntStream.range(1000, 1500).mapToObj(this::createRole).collect(Collectors.toSet())
         );
-        CachingNexusCrowdClient client = new CachingNexusCrowdClient(props, cache) {
-            @Override
-            protected CloseableHttpClient getClient() {
-                return clientMock;
-            }
-        };
+        CachingNexusCrowdClient client = createClient(props, cache, clientMock);
         Set<Role> roles = client.findRoles();
 
         Assert.assertEquals(1500, roles.size());
@@ -230,6 +294,575 @@ public class CachingNexusCrowdClientTest {
         Assert.assertTrue(captor.getAllValues().get(1).getURI().getQuery().contains("start-index=1000"));
     }
 
+    @Test
+    public void testFindRolesByUserCachesResult() throws Exception {
+        CacheProvider cache = new CacheProvider(new CrowdProperties(new Properties()));
+        CloseableHttpClient clientMock = Mockito.mock(CloseableHttpClient.class);
+        when(clientMock.execute(any(HttpHost.class), any(HttpUriRequest.class), any(ResponseHandler.class)))
+                .thenReturn(Collections.singleton("nx-admin"));
+        CachingNexusCrowdClient client = createClient(cache, clientMock);
+
+        Assert.assertEquals(Collections.singleton("nx-admin"), client.findRolesByUser("u1"));
+        Assert.assertEquals(Collections.singleton("nx-admin"), client.findRolesByUser("u1"));
+
+        verify(clientMock, times(1)).execute(any(HttpHost.class), any(HttpUriRequest.class), any(ResponseHandler.class));
+        Assert.assertEquals(1, cache.getGroupsHitCount());
+    }
+
+    @Test
+    public void testFindRolesByUserDoesNotCacheFailure() throws Exception {
+        CacheProvider cache = new CacheProvider(new CrowdProperties(new Properties()));
+        CloseableHttpClient clientMock = Mockito.mock(CloseableHttpClient.class);
+        when(clientMock.execute(any(HttpHost.class), any(HttpUriRequest.class), any(ResponseHandler.class)))
+                .thenReturn(null);
+        CachingNexusCrowdClient client = createClient(cache, clientMock);
+
+        Assert.assertTrue(client.findRolesByUser("u1").isEmpty());
+        Assert.assertFalse(cache.getGroups("u1").isPresent());
+    }
+
+    @Test
+    public void testInvalidateRolesByUser() throws Exception {
+        CacheProvider cache = new CacheProvider(new CrowdProperties(new Properties()));
+        CloseableHttpClient clientMock = Mockito.mock(CloseableHttpClient.class);
+        when(clientMock.execute(any(HttpHost.class), any(HttpUriRequest.class), any(ResponseHandler.class)))
+                .thenReturn(Collections.singleton("nx-admin"));
+        CachingNexusCrowdClient client = createClient(cache, clientMock);
+
+        client.findRolesByUser("u1");
+        client.invalidateRolesByUser("u1");
+        client.findRolesByUser("u1");
+
+        verify(clientMock, times(2)).execute(any(HttpHost.class), any(HttpUriRequest.class), any(ResponseHandler.class));
+    }
+
+    @Test
+    public void testSharedLoginCachesTheTokenOnce() throws Exception {
+        try (CrowdStubServer crowd = new CrowdStubServer().withUsers(10).withDelay(200)) {
+            Properties p = crowd.properties();
+            p.setProperty("cache.authentication", "true");
+            CrowdProperties props = new CrowdProperties(p);
+            CacheProvider cache = spy(new CacheProvider(props));
+            CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, cache));
+            List<String> changed = new ArrayList<>();
+            client.addChangeListener(new CrowdChangeListener() {
+                @Override
+                public void userChanged(String username) {
+                    changed.add(username);
+                }
+
+                @Override
+                public void directoryChanged() {
+                    changed.add("*");
+                }
+            });
+
+            List<CompletableFuture<Boolean>> logins = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                logins.add(client.authenticateAsync(new UsernamePasswordToken("user1", CrowdStubServer.PASSWORD)));
+            }
+            for (CompletableFuture<Boolean> login : logins) {
+                Assert.assertTrue(login.get(5, TimeUnit.SECONDS));
+            }
+
+            Assert.assertEquals(1, crowd.getRequestCount("authentication"));
+            verify(cache, times(1)).putToken(eq("user1"), any());
+            Assert.assertTrue(changed.isEmpty());
+        }
+    }
+
+    @Test
+    public void testParallelPaginationIsFaster() throws Exception {
+        try (CrowdStubServer crowd = new CrowdStubServer().withGroups(1000).withDelay(50)) {
+            Properties p = crowd.properties();
+            p.setProperty("pagination.pagesize", "100");
+            CachingNexusCrowdClient sequential = track(new CachingNexusCrowdClient(new CrowdProperties(p), mock(CacheProvider.class)));
+            p.setProperty("pagination.parallelism", "4");
+            CachingNexusCrowdClient parallel = track(new CachingNexusCrowdClient(new CrowdProperties(p), mock(CacheProvider.class)));
+            try {
+                long start = System.nanoTime();
+                Set<Role> sequentialRoles = sequential.findRoles();
+                long sequentialTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                Set<Role> parallelRoles = parallel.findRoles();
+                long parallelTime = System.nanoTime() - start;
+
+                Assert.assertEquals(1000, sequentialRoles.size());
+                Assert.assertEquals(sequentialRoles, parallelRoles);
+                // 11 sequential round trips vs. 3 batches of 4 concurrent ones
+                Assert.assertTrue("parallel " + parallelTime + "ns, sequential " + sequentialTime + "ns",
+                        parallelTime * 2 < sequentialTime);
+            } finally {
+                sequential.shutdown();
+                parallel.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testParallelPaginationStopsAtShortPage() throws Exception {
+        try (CrowdStubServer crowd = new CrowdStubServer().withGroups(250)) {
+            Properties p = crowd.properties();
+            p.setProperty("pagination.pagesize", "100");
+            p.setProperty("pagination.parallelism", "4");
+            CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(new CrowdProperties(p), mock(CacheProvider.class)));
+            try {
+                Assert.assertEquals(250, client.findRoles().size());
+                Assert.assertTrue(crowd.getRequestCount() <= 4);
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testListingsKeepThePagesReadBeforeAFailedPage() throws Exception {
+        try (CrowdStubServer crowd = new CrowdStubServer().withGroups(250).withFailingPagesFrom(200)) {
+            Properties p = crowd.properties();
+            p.setProperty("pagination.pagesize", "100");
+            p.setProperty("pagination.parallelism", "1");
+            CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(new CrowdProperties(p), mock(CacheProvider.class)));
+            Assert.assertEquals(200, client.findRoles().size());
+            // the role catalog and the mirror must not take the first pages for all groups
+            try {
+                client.findRolesAsync().get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof CrowdException);
+            }
+        }
+    }
+
+    @Test
+    public void testCancellingAbortsTheRequest() throws Exception {
+        try (CrowdStubServer crowd = new CrowdStubServer().withUsers(10).withDelay(3000)) {
+            CrowdProperties props = new CrowdProperties(crowd.properties());
+            MetricRegistry registry = new MetricRegistry();
+            CrowdMetrics metrics = new CrowdMetrics(registry);
+            CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, new CacheProvider(props, metrics), metrics));
+            Gauge<?> leased = registry.getGauges().get("com.pingunaut.nexus3.crowd.connections.leased");
+
+            CompletableFuture<User> lookup = client.executeAsync(new HttpGet(client.restUri("user?username=user1")),
+                    CrowdMapper::toUser);
+            awaitGauge(leased, 1);
+            lookup.cancel(false);
+
+            // the connection is closed long before crowd would have answered
+            awaitGauge(leased, 0);
+            Assert.assertEquals(0, registry.getGauges().get("com.pingunaut.nexus3.crowd.bulkhead.lookup.inflight").getValue());
+        }
+    }
+
+    private static void awaitGauge(Gauge<?> gauge, int value) throws InterruptedException {
+        for (int i = 0; i < 100 && !Integer.valueOf(value).equals(gauge.getValue()); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(value, gauge.getValue());
+    }
+
+    @Test
+    public void testSpeculativePagesPastTheEndAreNotSent() throws Exception {
+        try (CrowdStubServer crowd = new CrowdStubServer().withGroups(50)) {
+            Properties p = crowd.properties();
+            p.setProperty("pagination.pagesize", "100");
+            p.setProperty("pagination.parallelism", "8");
+            p.setProperty("bulkhead.directory.limit", "1");
+            CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(new CrowdProperties(p), mock(CacheProvider.class)));
+            try {
+                Assert.assertEquals(50, client.findRoles().size());
+                // the second page took the place of the first one before it was known to be short
+                Assert.assertTrue(crowd.getRequestCount() <= 2);
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testResponsesAreNotMappedOnIoThreads() throws Exception {
+        try (CrowdStubServer crowd = new CrowdStubServer().withGroups(2000)) {
+            CrowdProperties props = new CrowdProperties(crowd.properties());
+            CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, mock(CacheProvider.class)));
+            try {
+                String thread = client.findRolesAsync().thenApply(roles -> Thread.currentThread().getName()).get();
+                Assert.assertTrue(thread, thread.startsWith("crowd-response-"));
+                Assert.assertEquals(2000, client.findRoles().size());
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testAuthenticateAgainstCrowd() throws Exception {
+        try (CrowdStubServer crowd = new CrowdStubServer().withUsers(10).withGroupsPerUser(3)) {
+            CrowdProperties props = new CrowdProperties(crowd.properties());
+            CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, new CacheProvider(props)));
+            try {
+                Assert.assertTrue(client.authenticate(new UsernamePasswordToken("user1", CrowdStubServer.PASSWORD)));
+                Assert.assertFalse(client.authenticate(new UsernamePasswordToken("user1", "wrong")));
+                Assert.assertFalse(client.authenticate(new UsernamePasswordToken("user10", CrowdStubServer.PASSWORD)));
+                Assert.assertEquals(3, client.findRolesByUser("user1").size());
+                Assert.assertTrue(client.findRolesByUser("user10").isEmpty());
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testLocalMemberships() throws Exception {
+        try (CrowdStubServer crowd = new CrowdStubServer().withUsers(50).withGroupsPerUser(3)) {
+            Properties p = crowd.properties();
+            p.setProperty("memberships.local.enabled", "true");
+            CrowdProperties props = new CrowdProperties(p);
+            MetricRegistry registry = new MetricRegistry();
+            CrowdMetrics metrics = new CrowdMetrics(registry);
+            CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, new CacheProvider(props, metrics), metrics));
+            try {
+                // the first lookup still asks crowd and loads all memberships in the background
+                Assert.assertEquals(3, client.findRolesByUser("user0").size());
+                int user = 1;
+                long nested;
+                do {
+                    Thread.sleep(20);
+                    nested = registry.timer("com.pingunaut.nexus3.crowd.requests.user.group.nested").getCount();
+                    client.findRolesByUser("user" + user++);
+                } while (registry.timer("com.pingunaut.nexus3.crowd.requests.user.group.nested").getCount() > nested
+                        && user < 50);
+                int requests = crowd.getRequestCount();
+
+                Assert.assertEquals(new HashSet<>(Arrays.asList("group49", "group50", "group51")),
+                        client.findRolesByUser("user49"));
+                Assert.assertTrue(client.findRolesByUser("nobody").isEmpty());
+                Assert.assertEquals(requests, crowd.getRequestCount());
+                Assert.assertEquals(1, registry.timer("com.pingunaut.nexus3.crowd.requests.group.membership").getCount());
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testBulkLookupFallbackDoesNotOverflowTheBulkhead() throws Exception {
+        try (CrowdStubServer crowd = new CrowdStubServer().withUsers(60).withoutMemberships().withDelay(5)) {
+            Properties p = crowd.properties();
+            p.setProperty("bulkhead.lookup.limit", "4");
+            p.setProperty("bulkhead.lookup.queue", "10");
+            CrowdProperties props = new CrowdProperties(p);
+            MetricRegistry registry = new MetricRegistry();
+            CrowdMetrics metrics = new CrowdMetrics(registry);
+            CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, new CacheProvider(props, metrics), metrics));
+            Set<String> usernames = IntStream.range(0, 60).mapToObj(i -> "user" + i).collect(Collectors.toSet());
+
+            Map<String, Set<String>> roles = client.findRolesByUsers(usernames);
+
+            Assert.assertEquals(usernames, roles.keySet());
+            Assert.assertEquals(new HashSet<>(Arrays.asList("group59", "group60", "group61", "group62", "group63")),
+                    roles.get("user59"));
+            Assert.assertEquals(60, crowd.getRequestCount("user/group/nested"));
+            Assert.assertEquals(0, registry.meter("com.pingunaut.nexus3.crowd.bulkhead.lookup.rejected").getCount());
+        }
+    }
+
+    @Test
+    public void testListingsDontStarveLogins() throws Exception {
+        try (CrowdStubServer crowd = new CrowdStubServer().withUsers(10).withGroups(10).withDelay(300)) {
+            Properties p = crowd.properties();
+            p.setProperty("bulkhead.directory.limit", "1");
+            p.setProperty("bulkhead.directory.queue", "2");
+            CrowdProperties props = new CrowdProperties(p);
+            MetricRegistry registry = new MetricRegistry();
+            CrowdMetrics metrics = new CrowdMetrics(registry);
+            CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, new CacheProvider(props, metrics), metrics));
+            try {
+                List<CompletableFuture<Set<Role>>> listings = new ArrayList<>();
+                for (int i = 0; i < 5; i++) {
+                    listings.add(client.findRolesAsync());
+                }
+                Assert.assertEquals(2, registry.getGauges().get("com.pingunaut.nexus3.crowd.bulkhead.directory.queued").getValue());
+                Assert.assertEquals(2, registry.meter("com.pingunaut.nexus3.crowd.bulkhead.directory.rejected").getCount());
+
+                long start = System.nanoTime();
+                Assert.assertTrue(client.authenticate(new UsernamePasswordToken("user1", CrowdStubServer.PASSWORD)));
+                // not behind the three listings
+                Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 900);
+                Assert.assertEquals(10, listings.get(0).get(5, TimeUnit.SECONDS).size());
+                Assert.assertEquals(10, listings.get(2).get(5, TimeUnit.SECONDS).size());
+                Assert.assertTrue(listings.get(4).isCompletedExceptionally());
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testSessionValidationIsCached() throws Exception {
+        try (CrowdStubServer crowd = new CrowdStubServer().withUsers(10)) {
+            CrowdProperties props = new CrowdProperties(crowd.properties());
+            CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, new CacheProvider(props)));
+            try {
+                String token = client.createSession("user1");
+                Assert.assertNotNull(token);
+                int requests = crowd.getRequestCount();
+                Assert.assertEquals("user1", client.validateSession(token));
+                Assert.assertEquals("user1", client.validateSession(token));
+                Assert.assertEquals(requests + 1, crowd.getRequestCount());
+                Assert.assertNull(client.validateSession("unknown"));
+                Assert.assertNull(client.createSession("user10"));
+
+                client.invalidateSession(token);
+                Assert.assertNull(client.validateSession(token));
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testRequestMetrics() throws Exception {
+        try (CrowdStubServer crowd = new CrowdStubServer().withUsers(10)) {
+            CrowdProperties props = new CrowdProperties(crowd.properties());
+            MetricRegistry registry = new MetricRegistry();
+            CrowdMetrics metrics = new CrowdMetrics(registry);
+            CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, new CacheProvider(props, metrics), metrics));
+            try {
+                client.findRolesByUser("user1");
+                client.findRolesByUser("user1");
+                client.findRolesByUser("user2");
+                CompletableFuture<Set<String>> first = client.findRolesByUserAsync("user3");
+                CompletableFuture<Set<String>> second = client.findRolesByUserAsync("user3");
+                Assert.assertEquals(first.get(), second.get());
+                Assert.assertEquals(3, registry.timer("com.pingunaut.nexus3.crowd.requests.user.group.nested").getCount());
+                Assert.assertEquals(1L, registry.getGauges().get("com.pingunaut.nexus3.crowd.singleflight.collapsed").getValue());
+                Assert.assertEquals(3L, registry.getGauges().get("com.pingunaut.nexus3.crowd.singleflight.executed").getValue());
+                Assert.assertEquals(1, registry.counter("com.pingunaut.nexus3.crowd.cache.groups.hits").getCount());
+                Assert.assertEquals(0, registry.meter("com.pingunaut.nexus3.crowd.errors.user.group.nested").getCount());
+                Assert.assertEquals(0, registry.getGauges().get("com.pingunaut.nexus3.crowd.connections.leased").getValue());
+                Assert.assertEquals(50, registry.getGauges().get("com.pingunaut.nexus3.crowd.connections.max").getValue());
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testErrorMetrics() throws Exception {
+        CrowdStubServer crowd = new CrowdStubServer();
+        Properties p = crowd.properties();
+        crowd.close();
+        CrowdProperties props = new CrowdProperties(p);
+        MetricRegistry registry = new MetricRegistry();
+        CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, new CacheProvider(props), new CrowdMetrics(registry)));
+        try {
+            client.findUserByUsername("user1");
+            Assert.assertEquals(1, registry.meter("com.pingunaut.nexus3.crowd.errors.user").getCount());
+            Assert.assertEquals(1, registry.timer("com.pingunaut.nexus3.crowd.requests.user").getCount());
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testEndpoint() {
+        Assert.assertEquals("user.group.nested", CachingNexusCrowdClient.endpoint(
+                URI.create("http://crowd/crowd/rest/usermanagement/1/user/group/nested?username=u1")));
+        Assert.assertEquals("authentication", CachingNexusCrowdClient.endpoint(
+                URI.create("http://crowd/rest/usermanagement/1/authentication?username=u1")));
+        Assert.assertEquals("root", CachingNexusCrowdClient.endpoint(URI.create("http://crowd")));
+        Assert.assertEquals("event", CachingNexusCrowdClient.endpoint(
+                URI.create("http://crowd/rest/usermanagement/1/event/123%3A456")));
+    }
+
+    @Test
+    public void testCircuitBreakerServesFromCacheWhileOpen() throws Exception {
+        CrowdStubServer crowd = new CrowdStubServer();
+        Properties p = crowd.properties();
+        crowd.close();
+        p.setProperty("circuitbreaker.window", "2");
+        p.setProperty("circuitbreaker.minimumcalls", "2");
+        CrowdProperties props = new CrowdProperties(p);
+        MetricRegistry registry = new MetricRegistry();
+        CacheProvider cache = new CacheProvider(props);
+        CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, cache, new CrowdMetrics(registry)));
+        try {
+            Assert.assertNull(client.findUserByUsername("user1"));
+            Assert.assertNull(client.findUserByUsername("user2"));
+            Assert.assertEquals(CircuitBreaker.State.OPEN.ordinal(),
+                    registry.getGauges().get("com.pingunaut.nexus3.crowd.circuitbreaker.state").getValue());
+
+            try {
+                client.findRolesByUserAsync("user3").get();
+                Assert.fail("circuit breaker is open");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause().getMessage().contains("circuit breaker is open"));
+            }
+            Assert.assertEquals(1, registry.meter("com.pingunaut.nexus3.crowd.circuitbreaker.rejected.user.group.nested").getCount());
+            Assert.assertEquals(2, registry.timer("com.pingunaut.nexus3.crowd.requests.user").getCount());
+
+            cache.putGroups("user3", Collections.singleton("g1"));
+            Assert.assertEquals(Collections.singleton("g1"), client.findRolesByUser("user3"));
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testAsyncFailsWithCrowdException() throws Exception {
+        CrowdStubServer crowd = new CrowdStubServer();
+        Properties p = crowd.properties();
+        crowd.close();
+        CrowdProperties props = new CrowdProperties(p);
+        CachingNexusCrowdClient client = track(new CachingNexusCrowdClient(props, new CacheProvider(props)));
+        try {
+            client.findRolesByUserAsync("user1").get();
+            Assert.fail("crowd is down");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof CrowdException);
+        } finally {
+            // the blocking variants keep their empty results
+            Assert.assertTrue(client.findRolesByUser("user1").isEmpty());
+            Assert.assertFalse(client.authenticate(new UsernamePasswordToken("user1", CrowdStubServer.PASSWORD)));
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testFindRolesByUserRefreshesAhead() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("crowd.server.url", "http://foobar/");
+        p.setProperty("application.name", "app");
+        p.setProperty("application.password", "passw");
+        p.setProperty("cache.groups.ttl", "1");
+        p.setProperty("cache.groups.refreshahead", "50");
+        CrowdProperties props = new CrowdProperties(p);
+        AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+        CacheProvider cache = new CacheProvider(props, new CrowdMetrics(new MetricRegistry()), clock::get);
+        CloseableHttpClient clientMock = Mockito.mock(CloseableHttpClient.class);
+        when(clientMock.execute(any(HttpHost.class), any(HttpUriRequest.class), any(ResponseHandler.class)))
+                .thenReturn(Collections.singleton("old"))
+                .thenReturn(Collections.singleton("new"));
+        CachingNexusCrowdClient client = createClient(props, cache, clientMock);
+
+        Assert.assertEquals(Collections.singleton("old"), client.findRolesByUser("u1"));
+        clock.addAndGet(600);
+        // due for refresh, but still served from cache
+        Assert.assertEquals(Collections.singleton("old"), client.findRolesByUser("u1"));
+
+        // the mock answers right away, so the refresh is done already
+        Assert.assertEquals(Collections.singleton("new"), cache.getGroups("u1").get());
+        Assert.assertEquals(Collections.singleton("new"), client.findRolesByUser("u1"));
+        verify(clientMock, times(2)).execute(any(HttpHost.class), any(HttpUriRequest.class), any(ResponseHandler.class));
+        client.shutdown();
+    }
+
+    @Test
+    public void testFindRolesByUserServesStaleWhenCrowdIsDown() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("crowd.server.url", "http://foobar/");
+        p.setProperty("application.name", "app");
+        p.setProperty("application.password", "passw");
+        p.setProperty("cache.groups.ttl", "1");
+        p.setProperty("cache.groups.stalegrace", "60");
+        CrowdProperties props = new CrowdProperties(p);
+        AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+        CacheProvider cache = new CacheProvider(props, new CrowdMetrics(new MetricRegistry()), clock::get);
+        CloseableHttpClient clientMock = Mockito.mock(CloseableHttpClient.class);
+        when(clientMock.execute(any(HttpHost.class), any(HttpUriRequest.class), any(ResponseHandler.class)))
+                .thenReturn(Collections.singleton("old"))
+                .thenReturn(null);
+        CachingNexusCrowdClient client = createClient(props, cache, clientMock);
+
+        Assert.assertEquals(Collections.singleton("old"), client.findRolesByUser("u1"));
+        clock.addAndGet(1100);
+        Assert.assertFalse(cache.getGroups("u1").isPresent());
+        Assert.assertEquals(Collections.singleton("old"), client.findRolesByUser("u1"));
+        verify(clientMock, times(2)).execute(any(HttpHost.class), any(HttpUriRequest.class), any(ResponseHandler.class));
+        client.shutdown();
+    }
+
+    @Test
+    public void testConcurrentFindRolesByUserSharesOneRequest() throws Exception {
+        CacheProvider cache = new CacheProvider(new CrowdProperties(new Properties()));
+        CloseableHttpClient clientMock = Mockito.mock(CloseableHttpClient.class);
+        CountDownLatch release = new CountDownLatch(1);
+        when(clientMock.execute(any(HttpHost.class), any(HttpUriRequest.class), any(ResponseHandler.class)))
+                .thenAnswer(invocation -> {
+                    release.await(5, TimeUnit.SECONDS);
+                    return Collections.singleton("nx-admin");
+                });
+        CachingNexusCrowdClient client = createClient(cache, clientMock);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Set<String>>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> client.findRolesByUser("u1")));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (client.getSingleFlight().getCollapsedCount() < 7 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            for (Future<Set<String>> result : results) {
+                Assert.assertEquals(Collections.singleton("nx-admin"), result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        verify(clientMock, times(1)).execute(any(HttpHost.class), any(HttpUriRequest.class), any(ResponseHandler.class));
+        Assert.assertEquals(7, client.getSingleFlight().getCollapsedCount());
+    }
+
+    @Test
+    public void testConcurrentAuthenticateDoesNotShareDifferentPasswords() throws Exception {
+        CachingNexusCrowdClient mockedClient = mock(CachingNexusCrowdClient.class);
+        SingleFlight singleFlight = new SingleFlight();
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        when(mockedClient.authenticate(any())).thenCallRealMethod();
+        when(mockedClient.authenticateAsync(any())).thenCallRealMethod();
+        when(mockedClient.getSingleFlight()).thenReturn(singleFlight);
+        when(mockedClient.restUri(anyString())).thenReturn("http://abc");
+        doReturn(pending).doReturn(CompletableFuture.completedFuture(null)).when(mockedClient).executeAsync(any(), any());
+
+        CompletableFuture<Boolean> right = mockedClient.authenticateAsync(new UsernamePasswordToken("u1", "right"));
+        // a wrong password must never piggyback on the pending successful login
+        Assert.assertFalse(mockedClient.authenticate(new UsernamePasswordToken("u1", "wrong")));
+        Assert.assertFalse(right.isDone());
+        pending.complete("token");
+        Assert.assertTrue(right.get());
+        Assert.assertEquals(0, singleFlight.getCollapsedCount());
+        Assert.assertEquals(2, singleFlight.getExecutedCount());
+    }
+
+    private CachingNexusCrowdClient createClient(CacheProvider cache, CloseableHttpClient clientMock) {
+        CrowdProperties props = mock(CrowdProperties.class);
+        when(props.getServerUrl()).thenReturn("http://foobar/");
+        when(props.getApplicationName()).thenReturn("app");
+        when(props.getApplicationPassword()).thenReturn("passw");
+        return createClient(props, cache, clientMock);
+    }
+
+    /**
+     * A client that executes its requests synchronously with the given mock.
+     */
+    private CachingNexusCrowdClient createClient(CrowdProperties props, CacheProvider cache, CloseableHttpClient clientMock) {
+        return track(new CachingNexusCrowdClient(props, cache) {
+            @Override
+            @SuppressWarnings("unchecked")
+            protected <T> CompletableFuture<T> executeAsync(HttpUriRequest request, ResponseHandler<? extends T> responseHandler) {
+                CompletableFuture<T> future = new CompletableFuture<>();
+                try {
+                    future.complete((T) clientMock.execute(HOST, request, responseHandler));
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                }
+                return future;
+            }
+        });
+    }
+
     private Role createRole(int index) {
         Role role = new Role();
         role.setName("administrators" + index);
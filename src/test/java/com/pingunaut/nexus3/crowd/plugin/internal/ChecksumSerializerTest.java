@@ -0,0 +1,36 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import org.ehcache.impl.serialization.PlainJavaSerializer;
+import org.ehcache.spi.serialization.SerializerException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class ChecksumSerializerTest {
+
+    private final ChecksumSerializer<String> serializer =
+            new ChecksumSerializer<>(new PlainJavaSerializer<>(getClass().getClassLoader()));
+
+    @Test
+    public void testRoundTrip() throws ClassNotFoundException {
+        ByteBuffer binary = serializer.serialize("value");
+        Assert.assertEquals("value", serializer.read(binary));
+        Assert.assertTrue(serializer.equals("value", binary));
+    }
+
+    @Test(expected = SerializerException.class)
+    public void testDamagedValue() throws ClassNotFoundException {
+        ByteBuffer binary = serializer.serialize("value");
+        int last = binary.limit() - 1;
+        binary.put(last, (byte) (binary.get(last) ^ 1));
+        serializer.read(binary);
+    }
+
+    @Test(expected = SerializerException.class)
+    public void testUnknownFormat() throws ClassNotFoundException {
+        ByteBuffer binary = serializer.serialize("value");
+        binary.put(0, (byte) (ChecksumSerializer.FORMAT + 1));
+        serializer.read(binary);
+    }
+}
@@ -0,0 +1,86 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CircuitBreakerTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private CircuitBreaker breaker(int failureRate) {
+        return new CircuitBreaker(failureRate, 4, 4, 1000, 2, now::get);
+    }
+
+    @Test
+    public void testOpensAtFailureRate() {
+        CircuitBreaker breaker = breaker(50);
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        // minimum calls not reached yet
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onSuccess();
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testOldOutcomesLeaveTheWindow() {
+        CircuitBreaker breaker = breaker(75);
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onSuccess();
+        Assert.assertEquals(50, breaker.getFailureRate());
+        breaker.onSuccess();
+        Assert.assertEquals(25, breaker.getFailureRate());
+        breaker.onFailure();
+        breaker.onFailure();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onFailure();
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenProbes() {
+        CircuitBreaker breaker = breaker(50);
+        for (int i = 0; i < 4; i++) {
+            breaker.onFailure();
+        }
+        now.addAndGet(1000);
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        Assert.assertTrue(breaker.tryAcquire());
+        Assert.assertTrue(breaker.tryAcquire());
+        // only two probes at a time
+        Assert.assertFalse(breaker.tryAcquire());
+        breaker.onSuccess();
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onSuccess();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        Assert.assertEquals(0, breaker.getFailureRate());
+    }
+
+    @Test
+    public void testFailedProbeOpensAgain() {
+        CircuitBreaker breaker = breaker(50);
+        for (int i = 0; i < 4; i++) {
+            breaker.onFailure();
+        }
+        now.addAndGet(1000);
+        Assert.assertTrue(breaker.tryAcquire());
+        breaker.onFailure();
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testDisabled() {
+        CircuitBreaker breaker = breaker(0);
+        for (int i = 0; i < 10; i++) {
+            breaker.onFailure();
+            Assert.assertTrue(breaker.tryAcquire());
+        }
+    }
+}
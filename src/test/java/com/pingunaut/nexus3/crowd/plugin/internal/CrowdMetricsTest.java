@@ -0,0 +1,30 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CrowdMetricsTest {
+
+    @Test
+    public void testGaugeIsReplaced() {
+        MetricRegistry registry = new MetricRegistry();
+        new CrowdMetrics(registry).gauge("connections.max", () -> 1);
+        new CrowdMetrics(registry).gauge("connections.max", () -> 2);
+        Assert.assertEquals(2, registry.getGauges().get("com.pingunaut.nexus3.crowd.connections.max").getValue());
+    }
+
+    @Test
+    public void testCloseRemovesOnlyPluginMetrics() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("jvm.other");
+        CrowdMetrics metrics = new CrowdMetrics(registry);
+        metrics.requests("authentication").time().stop();
+        metrics.cacheHits("tokens").inc();
+        metrics.gauge("connections.leased", () -> 0);
+
+        metrics.close();
+        Assert.assertEquals(1, registry.getMetrics().size());
+        Assert.assertTrue(registry.getMetrics().containsKey("jvm.other"));
+    }
+}
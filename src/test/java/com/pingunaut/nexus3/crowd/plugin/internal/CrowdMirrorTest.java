@@ -0,0 +1,151 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.nexus.security.user.User;
+import org.sonatype.nexus.security.user.UserSearchCriteria;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+public class CrowdMirrorTest {
+
+    private CrowdStubServer crowd;
+    private CachingNexusCrowdClient client;
+    private CrowdMirror mirror;
+
+    @Before
+    public void setUp() throws Exception {
+        crowd = new CrowdStubServer().withUsers(20).withGroups(30).withGroupsPerUser(3);
+        Properties p = crowd.properties();
+        p.setProperty("mirror.enabled", "true");
+        CrowdProperties props = new CrowdProperties(p);
+        CrowdMetrics metrics = new CrowdMetrics(new MetricRegistry());
+        client = new CachingNexusCrowdClient(props, new CacheProvider(props, metrics), metrics);
+        mirror = new CrowdMirror(client, props, metrics);
+    }
+
+    @After
+    public void tearDown() {
+        client.shutdown();
+        crowd.close();
+    }
+
+    @Test
+    public void testFullSync() {
+        Assert.assertFalse(mirror.isReady());
+        mirror.sync();
+        Assert.assertTrue(mirror.isReady());
+
+        Assert.assertEquals(20, mirror.findUsers().size());
+        Assert.assertEquals(30, mirror.findRoles().size());
+        Assert.assertEquals("user7@example.com", mirror.findUserByUsername("user7").getEmailAddress());
+        Assert.assertEquals("Group 4", mirror.findRoleByRoleId("group4").getDescription());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("group7", "group8", "group9")), mirror.findRolesByUser("user7"));
+        Assert.assertEquals(Arrays.asList("user1", "user10", "user11"), mirror.findUserByCriteria(new UserSearchCriteria("USER1"))
+                .stream().map(User::getUserId).sorted().limit(3).collect(Collectors.toList()));
+
+        // served from memory, no further requests
+        int requests = crowd.getRequestCount();
+        mirror.findRolesByUser("user3");
+        mirror.findUserByUsername("user3");
+        Assert.assertEquals(requests, crowd.getRequestCount());
+    }
+
+    @Test
+    public void testCopiesAreHandedOut() {
+        mirror.sync();
+        mirror.findUserByUsername("user1").setEmailAddress("changed");
+        mirror.findRolesByUser("user1").clear();
+        Assert.assertEquals("user1@example.com", mirror.findUserByUsername("user1").getEmailAddress());
+        Assert.assertEquals(3, mirror.findRolesByUser("user1").size());
+    }
+
+    @Test
+    public void testEventsAreApplied() {
+        mirror.sync();
+        crowd.withEvent("{\"operation\":\"CREATED\",\"user\":{\"name\":\"new\",\"active\":true}}")
+                .withEvent("{\"operation\":\"CREATED\",\"childUser\":{\"name\":\"new\"},\"parentGroups\":{\"groups\":[{\"name\":\"group1\"}]}}")
+                .withEvent("{\"operation\":\"CREATED\",\"group\":{\"name\":\"group1\"},\"parentGroups\":{\"groups\":[{\"name\":\"admins\"}]}}")
+                .withEvent("{\"operation\":\"DELETED\",\"user\":{\"name\":\"user2\"}}")
+                .withEvent("{\"operation\":\"DELETED\",\"childUser\":{\"name\":\"user3\"},\"parentGroups\":{\"groups\":[{\"name\":\"group3\"}]}}")
+                .withEvent("{\"operation\":\"DELETED\",\"group\":{\"name\":\"group5\"}}");
+        int requests = crowd.getRequestCount();
+        mirror.sync();
+        Assert.assertEquals(requests + 1, crowd.getRequestCount());
+
+        Assert.assertNotNull(mirror.findUserByUsername("new"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("group1", "admins")), mirror.findRolesByUser("new"));
+        Assert.assertTrue(mirror.findRolesByUser("user0").contains("admins"));
+        Assert.assertNull(mirror.findUserByUsername("user2"));
+        Assert.assertTrue(mirror.findRolesByUser("user2").isEmpty());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("group4")), mirror.findRolesByUser("user3"));
+        Assert.assertNull(mirror.findRoleByRoleId("group5"));
+    }
+
+    @Test
+    public void testUsernamesAreCaseInsensitive() {
+        mirror.sync();
+        crowd.withEvent("{\"operation\":\"CREATED\",\"user\":{\"name\":\"JDoe\",\"active\":true}}")
+                .withEvent("{\"operation\":\"CREATED\",\"childUser\":{\"name\":\"JDoe\"},\"parentGroups\":{\"groups\":[{\"name\":\"group1\"}]}}");
+        mirror.sync();
+
+        Assert.assertEquals("JDoe", mirror.findUserByUsername("jdoe").getUserId());
+        Assert.assertEquals(Collections.singleton("group1"), mirror.findRolesByUser("JDOE"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("group7", "group8", "group9")), mirror.findRolesByUser("User7"));
+        Assert.assertTrue(mirror.findAllUsernames().contains("JDoe"));
+    }
+
+    @Test
+    public void testExpiredTokenReloadsEverything() {
+        mirror.sync();
+        crowd.withEvent("{\"operation\":\"CREATED\",\"user\":{\"name\":\"new\",\"active\":true}}").expireEventTokens();
+        mirror.sync();
+        // a full reload has no way to know about the stub's event-only user
+        Assert.assertNull(mirror.findUserByUsername("new"));
+        Assert.assertEquals(20, mirror.findUsers().size());
+
+        crowd.withEvent("{\"operation\":\"DELETED\",\"user\":{\"name\":\"user1\"}}");
+        mirror.sync();
+        Assert.assertNull(mirror.findUserByUsername("user1"));
+    }
+
+    @Test
+    public void testChangesAreReported() {
+        List<String> changed = new ArrayList<>();
+        mirror.addChangeListener(new CrowdChangeListener() {
+            @Override
+            public void userChanged(String username) {
+                changed.add(username);
+            }
+
+            @Override
+            public void directoryChanged() {
+                changed.add("*");
+            }
+        });
+        mirror.sync();
+        crowd.withEvent("{\"operation\":\"CREATED\",\"childUser\":{\"name\":\"user1\"},\"parentGroups\":{\"groups\":[{\"name\":\"group9\"}]}}");
+        mirror.sync();
+        crowd.withEvent("{\"operation\":\"DELETED\",\"group\":{\"name\":\"group5\"}}");
+        mirror.sync();
+        Assert.assertEquals(Arrays.asList("*", "user1", "*"), changed);
+    }
+
+    @Test
+    public void testKeepsMirrorWhenCrowdIsDown() {
+        mirror.sync();
+        crowd.close();
+        mirror.sync();
+        Assert.assertTrue(mirror.isReady());
+        Assert.assertEquals(20, mirror.findUsers().size());
+    }
+}
@@ -3,6 +3,8 @@ package com.pingunaut.nexus3.crowd.plugin.internal;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Properties;
+
 public class CrowdPropertiesTest {
 
     @Test
@@ -11,4 +13,62 @@ public class CrowdPropertiesTest {
         Assert.assertEquals(15000, crowdProperties.getConnectTimeout());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testConnectionPoolDefaults() {
+        CrowdProperties crowdProperties = new CrowdProperties(new Properties());
+        Assert.assertEquals(50, crowdProperties.getMaxConnections());
+        Assert.assertEquals(50, crowdProperties.getMaxConnectionsPerRoute());
+        Assert.assertEquals(30000, crowdProperties.getKeepAlive());
+        Assert.assertEquals(30000, crowdProperties.getIdleTimeout());
+    }
+
+    @Test
+    public void testConnectionPoolPerRouteFollowsMaxTotal() {
+        Properties p = new Properties();
+        p.setProperty("connection.pool.max.total", "120");
+        CrowdProperties crowdProperties = new CrowdProperties(p);
+        Assert.assertEquals(120, crowdProperties.getMaxConnections());
+        Assert.assertEquals(120, crowdProperties.getMaxConnectionsPerRoute());
+    }
+
+    @Test
+    public void testCacheAuthenticationHash() {
+        Properties p = new Properties();
+        Assert.assertFalse(new CrowdProperties(p).isCacheAuthenticationHmac());
+        Assert.assertEquals(1024, new CrowdProperties(p).getCacheAuthenticationIterations());
+        p.setProperty("cache.authentication.hash", "hmac");
+        Assert.assertTrue(new CrowdProperties(p).isCacheAuthenticationHmac());
+    }
+
+    @Test
+    public void testCircuitBreakerDefaults() {
+        CrowdProperties crowdProperties = new CrowdProperties(new Properties());
+        Assert.assertEquals(50, crowdProperties.getCircuitBreakerFailureRate());
+        Assert.assertEquals(20, crowdProperties.getCircuitBreakerWindow());
+        Assert.assertEquals(10, crowdProperties.getCircuitBreakerMinimumCalls());
+        Assert.assertEquals(30000, crowdProperties.getCircuitBreakerOpenTime());
+        Assert.assertEquals(3, crowdProperties.getCircuitBreakerHalfOpenCalls());
+        Assert.assertEquals(0, crowdProperties.getCircuitBreakerSlowCall());
+    }
+
+    @Test
+    public void testSsoDefaults() {
+        CrowdProperties crowdProperties = new CrowdProperties(new Properties());
+        Assert.assertFalse(crowdProperties.isSsoEnabled());
+        Assert.assertNull("cookies are opt-in", crowdProperties.getSsoCookie());
+        Assert.assertEquals("X-Crowd-Token", crowdProperties.getSsoHeader());
+        Assert.assertFalse(crowdProperties.isSsoBearer());
+    }
+
+    @Test
+    public void testBulkheadSettings() {
+        Properties p = new Properties();
+        p.setProperty("bulkhead.directory.limit", "2");
+        CrowdProperties crowdProperties = new CrowdProperties(p);
+        Assert.assertEquals(2, crowdProperties.getBulkheadLimit("directory", 10));
+        Assert.assertEquals(25, crowdProperties.getBulkheadLimit("authentication", 25));
+        Assert.assertEquals(100, crowdProperties.getBulkheadQueue("authentication"));
+        Assert.assertEquals(5000, crowdProperties.getBulkheadQueueTimeout());
+        Assert.assertEquals(0, crowdProperties.getBulkheadTargetLatency());
+    }
+}
@@ -0,0 +1,170 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.codahale.metrics.MetricRegistry;
+import com.pingunaut.nexus3.crowd.plugin.CrowdAuthenticatingRealm;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.UsernamePasswordToken;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.sonatype.nexus.security.role.NoSuchRoleException;
+import org.sonatype.nexus.security.user.User;
+import org.sonatype.nexus.security.user.UserSearchCriteria;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upper bounds for the requests and response bytes common scenarios cost against a synthetic
+ * crowd directory. A change that needs more has to raise the budget on purpose.
+ */
+public class CrowdRequestBudgetTest {
+
+    private CrowdStubServer crowd;
+    private CachingNexusCrowdClient client;
+    private CrowdAuthenticatingRealm realm;
+    private CrowdUserManager userManager;
+    private CrowdAuthorizationManager authorizationManager;
+    private UserSearchIndex searchIndex;
+
+    @After
+    public void tearDown() {
+        client.shutdown();
+        crowd.close();
+    }
+
+    @Test
+    public void testLoginsOfFewUsers() throws Exception {
+        start(new CrowdStubServer().withUsers(10).withGroups(20).withGroupsPerUser(3), "cache.authentication", "true");
+        for (int i = 0; i < 1000; i++) {
+            String username = CrowdStubServer.username(i % 10);
+            AuthenticationInfo info = realm.getAuthenticationInfo(
+                    new UsernamePasswordToken(username, CrowdStubServer.PASSWORD));
+            Assert.assertTrue(realm.hasRole(info.getPrincipals(), CrowdStubServer.groupname(i % 10)));
+        }
+        assertBudget("authentication", 10);
+        assertBudget("user/group/nested", 10);
+        assertBudget(20, 3_000);
+    }
+
+    @Test
+    public void testConcurrentFirstLogins() throws Exception {
+        start(new CrowdStubServer().withUsers(10).withDelay(100), "cache.authentication", "true");
+        ExecutorService executor = Executors.newFixedThreadPool(50);
+        try {
+            CountDownLatch ready = new CountDownLatch(1);
+            List<CompletableFuture<Boolean>> logins = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                logins.add(CompletableFuture.supplyAsync(() -> {
+                    awaitQuietly(ready);
+                    return client.authenticate(new UsernamePasswordToken("user1", CrowdStubServer.PASSWORD));
+                }, executor));
+            }
+            ready.countDown();
+            for (CompletableFuture<Boolean> login : logins) {
+                Assert.assertTrue(login.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertBudget("authentication", 2);
+    }
+
+    @Test
+    public void testListUsers() throws Exception {
+        start(new CrowdStubServer().withUsers(2500).withGroups(3000).withGroupsPerUser(2));
+        Set<User> users = userManager.listUsers();
+        Assert.assertEquals(2500, users.size());
+        // three pages of users and all memberships at once
+        assertBudget("search", 3);
+        assertBudget("group/membership", 1);
+        assertBudget(4, 800_000);
+    }
+
+    @Test
+    public void testUserSearchWhileTyping() throws Exception {
+        start(new CrowdStubServer().withUsers(2500).withGroupsPerUser(2), "search.index.enabled", "true");
+        String typed = "user12";
+        for (int i = 1; i <= typed.length(); i++) {
+            userManager.searchUsers(new UserSearchCriteria(typed.substring(0, i)));
+            if (i == 1) {
+                awaitIndex();
+            }
+        }
+        // the first keystroke goes to crowd and loads the index, later ones resolve the
+        // groups of users not cached yet from the membership document fetched before
+        assertBudget("search", 4);
+        assertBudget("group/membership", 1);
+        assertBudget(5, 1_000_000);
+    }
+
+    @Test
+    public void testRoleLookups() throws Exception {
+        start(new CrowdStubServer().withGroups(300));
+        Assert.assertEquals(300, authorizationManager.listRoles().size());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertNotNull(authorizationManager.getRole(CrowdStubServer.groupname(i % 300)));
+        }
+        try {
+            authorizationManager.getRole("unknown");
+            Assert.fail();
+        } catch (NoSuchRoleException e) {
+            // expected
+        }
+        assertBudget("search", 1);
+        assertBudget("group", 1);
+        assertBudget(2, 30_000);
+    }
+
+    private void start(CrowdStubServer server, String... properties) {
+        crowd = server;
+        Properties p = crowd.properties();
+        for (int i = 0; i < properties.length; i += 2) {
+            p.setProperty(properties[i], properties[i + 1]);
+        }
+        CrowdProperties props = new CrowdProperties(p);
+        CrowdMetrics metrics = new CrowdMetrics(new MetricRegistry());
+        client = new CachingNexusCrowdClient(props, new CacheProvider(props, metrics), metrics);
+        CrowdMirror mirror = new CrowdMirror(client, props, metrics);
+        CrowdUserFilter userFilter = new CrowdUserFilter(client, mirror, props, metrics);
+        searchIndex = new UserSearchIndex(client, props, metrics);
+        realm = new CrowdAuthenticatingRealm(client, mirror, props, userFilter);
+        userManager = new CrowdUserManager(client, mirror, searchIndex, userFilter);
+        authorizationManager = new CrowdAuthorizationManager(mirror, new RoleCatalog(client, props, metrics));
+    }
+
+    private void assertBudget(String resource, int maxRequests) {
+        int requests = crowd.getRequestCount(resource);
+        Assert.assertTrue(String.format("%d requests to %s, budget is %d", requests, resource, maxRequests),
+                requests <= maxRequests);
+    }
+
+    private void assertBudget(int maxRequests, long maxBytes) {
+        Assert.assertTrue(String.format("%d requests, budget is %d", crowd.getRequestCount(), maxRequests),
+                crowd.getRequestCount() <= maxRequests);
+        Assert.assertTrue(String.format("%d bytes, budget is %d", crowd.getResponseBytes(), maxBytes),
+                crowd.getResponseBytes() <= maxBytes);
+    }
+
+    private void awaitIndex() throws InterruptedException {
+        for (int i = 0; i < 100 && !searchIndex.isReady(); i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(searchIndex.isReady());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
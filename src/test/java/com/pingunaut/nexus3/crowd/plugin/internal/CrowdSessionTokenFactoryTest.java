@@ -0,0 +1,50 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.pingunaut.nexus3.crowd.plugin.CrowdSessionToken;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import java.util.Properties;
+
+public class CrowdSessionTokenFactoryTest {
+
+    @Test
+    public void testHeader() {
+        CrowdSessionTokenFactory factory = factory(false);
+        HttpServletRequest request = request("POST");
+        Mockito.when(request.getHeader("X-Crowd-Token")).thenReturn(" token ");
+        Assert.assertEquals("token", ((CrowdSessionToken) factory.createToken(request, null)).getToken());
+    }
+
+    @Test
+    public void testCookieIsIgnoredByDefault() {
+        Assert.assertNull(factory(false).createToken(request("GET"), null));
+    }
+
+    @Test
+    public void testCookieOnlyAuthenticatesSafeRequests() {
+        CrowdSessionTokenFactory factory = factory(true);
+        Assert.assertEquals("token", ((CrowdSessionToken) factory.createToken(request("GET"), null)).getToken());
+        Assert.assertNull(factory.createToken(request("POST"), null));
+        Assert.assertNull(factory.createToken(request("DELETE"), null));
+    }
+
+    private static CrowdSessionTokenFactory factory(boolean cookie) {
+        Properties p = new Properties();
+        p.setProperty("sso.enabled", "true");
+        if (cookie) {
+            p.setProperty("sso.cookie", "crowd.token_key");
+        }
+        return new CrowdSessionTokenFactory(new CrowdProperties(p));
+    }
+
+    private static HttpServletRequest request(String method) {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getMethod()).thenReturn(method);
+        Mockito.when(request.getCookies()).thenReturn(new Cookie[]{new Cookie("crowd.token_key", "token")});
+        return request;
+    }
+}
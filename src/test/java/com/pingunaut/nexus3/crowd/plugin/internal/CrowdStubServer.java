@@ -0,0 +1,392 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal in-process crowd REST server with a synthetic directory. Counts requests,
+ * per resource too, and response bytes, so tests can hold the plugin to a request budget.
+ */
+public class CrowdStubServer implements AutoCloseable {
+
+    static final String PASSWORD = "password";
+
+    private static final String CONTEXT = "/crowd/rest/usermanagement/1/";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final Map<String, AtomicInteger> requestsByResource = new ConcurrentHashMap<>();
+    private final AtomicLong responseBytes = new AtomicLong();
+
+    private volatile int userCount;
+    private volatile int groupCount;
+    private volatile int groupsPerUser = 5;
+    private volatile long delayMillis;
+    private volatile boolean membershipsFail;
+    private volatile int failSearchesFrom = Integer.MAX_VALUE;
+    private final List<String> events = new CopyOnWriteArrayList<>();
+    private volatile int firstValidEvent;
+    private final Map<String, String> sessions = new ConcurrentHashMap<>();
+
+    public CrowdStubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(CONTEXT, this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public CrowdStubServer withUsers(int count) {
+        this.userCount = count;
+        return this;
+    }
+
+    public CrowdStubServer withGroups(int count) {
+        this.groupCount = count;
+        return this;
+    }
+
+    /**
+     * @param count number of groups every user is a member of, user i is in group i to i + count - 1
+     */
+    public CrowdStubServer withGroupsPerUser(int count) {
+        this.groupsPerUser = count;
+        return this;
+    }
+
+    public CrowdStubServer withDelay(long millis) {
+        this.delayMillis = millis;
+        return this;
+    }
+
+    /**
+     * Answer {@code group/membership} with a server error, e.g. like crowd versions without it.
+     */
+    public CrowdStubServer withoutMemberships() {
+        this.membershipsFail = true;
+        return this;
+    }
+
+    /**
+     * @param startIndex searches for pages starting at this index or later are answered with a server error
+     */
+    public CrowdStubServer withFailingPagesFrom(int startIndex) {
+        this.failSearchesFrom = startIndex;
+        return this;
+    }
+
+    /**
+     * @param json an event as returned in {@code event/<token>}
+     */
+    public CrowdStubServer withEvent(String json) {
+        events.add(json);
+        return this;
+    }
+
+    /**
+     * Invalidate all event tokens handed out so far.
+     */
+    public CrowdStubServer expireEventTokens() {
+        firstValidEvent = events.size() + 1;
+        return this;
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/crowd";
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @param resource the path below the REST API, e.g. user/group/nested or session/ for all session tokens
+     * @return number of requests to the resource, regardless of method and query
+     */
+    public int getRequestCount(String resource) {
+        AtomicInteger count = requestsByResource.get(resource);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return bytes of all response bodies sent so far
+     */
+    public long getResponseBytes() {
+        return responseBytes.get();
+    }
+
+    /**
+     * @return client configuration pointing to this server
+     */
+    public Properties properties() {
+        Properties p = new Properties();
+        p.setProperty("crowd.server.url", getUrl());
+        p.setProperty("application.name", "nexus");
+        p.setProperty("application.password", "nexus");
+        return p;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        try {
+            if (delayMillis > 0) {
+                Thread.sleep(delayMillis);
+            }
+            String resource = exchange.getRequestURI().getPath().substring(CONTEXT.length());
+            // tokens are not part of the resource
+            String counted = resource.startsWith("session/") || resource.startsWith("event/")
+                    ? resource.substring(0, resource.indexOf('/') + 1) : resource;
+            requestsByResource.computeIfAbsent(counted, r -> new AtomicInteger()).incrementAndGet();
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            if ("search".equals(resource)
+                    && Integer.parseInt(query.getOrDefault("start-index", "0")) >= failSearchesFrom) {
+                respond(exchange, 500, "{\"reason\":\"OPERATION_FAILED\"}");
+            } else if ("search".equals(resource)) {
+                respond(exchange, 200, search(query));
+            } else if ("authentication".equals(resource)) {
+                authenticate(exchange, query.get("username"));
+            } else if ("group/membership".equals(resource) && membershipsFail) {
+                respond(exchange, 500, "{\"reason\":\"OPERATION_FAILED\"}");
+            } else if ("group/membership".equals(resource)) {
+                respond(exchange, 200, memberships(), "application/xml");
+            } else if ("event".equals(resource)) {
+                respond(exchange, 200, "{\"newEventToken\":\"" + eventToken() + "\"}");
+            } else if (resource.startsWith("event/")) {
+                events(exchange, resource.substring("event/".length()));
+            } else if ("session".equals(resource)) {
+                createSession(exchange);
+            } else if (resource.startsWith("session/")) {
+                session(exchange, resource.substring("session/".length()));
+            } else if ("user".equals(resource) && userIndex(query.get("username")) >= 0) {
+                respond(exchange, 200, user(userIndex(query.get("username"))));
+            } else if ("group".equals(resource) && groupIndex(query.get("groupname")) >= 0) {
+                respond(exchange, 200, group(groupIndex(query.get("groupname"))));
+            } else if ("user/group/nested".equals(resource) && userIndex(query.get("username")) >= 0) {
+                respond(exchange, 200, nestedGroups(userIndex(query.get("username"))));
+            } else {
+                respond(exchange, 404, "{\"reason\":\"NOT_FOUND\"}");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "");
+        }
+    }
+
+    private String search(Map<String, String> query) {
+        int start = Integer.parseInt(query.getOrDefault("start-index", "0"));
+        int max = Integer.parseInt(query.getOrDefault("max-results", "1000"));
+        boolean users = "user".equals(query.get("entity-type"));
+        int total = users ? userCount : groupCount;
+        return users ? usersPage(start, Math.min(total, start + max)) : groupsPage(start, Math.min(total, start + max));
+    }
+
+    /**
+     * Accepts every known user with the password {@link #PASSWORD}.
+     */
+    private void authenticate(HttpExchange exchange, String username) throws IOException {
+        String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+        int i = userIndex(username);
+        if (i >= 0 && body.contains("\"value\":\"" + PASSWORD + "\"")) {
+            respond(exchange, 200, user(i));
+        } else {
+            respond(exchange, 400, "{\"reason\":\"INVALID_USER_AUTHENTICATION\"}");
+        }
+    }
+
+    /**
+     * Creates a session for every known user, passwords are not checked.
+     */
+    private void createSession(HttpExchange exchange) throws IOException {
+        String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+        String username = body.replaceFirst("(?s).*\"username\":\"([^\"]*)\".*", "$1");
+        if (userIndex(username) < 0) {
+            respond(exchange, 400, "{\"reason\":\"INVALID_USER_AUTHENTICATION\"}");
+            return;
+        }
+        String token = UUID.randomUUID().toString();
+        sessions.put(token, username);
+        respond(exchange, 201, session(token, username));
+    }
+
+    /**
+     * Validates (POST) or invalidates (DELETE) a session.
+     */
+    private void session(HttpExchange exchange, String token) throws IOException {
+        String username = "DELETE".equals(exchange.getRequestMethod()) ? sessions.remove(token) : sessions.get(token);
+        if ("DELETE".equals(exchange.getRequestMethod())) {
+            respond(exchange, 204, "");
+        } else if (username == null) {
+            respond(exchange, 404, "{\"reason\":\"INVALID_SSO_TOKEN\"}");
+        } else {
+            respond(exchange, 200, session(token, username));
+        }
+    }
+
+    private static String session(String token, String username) {
+        return String.format("{\"token\":\"%s\",\"user\":{\"name\":\"%s\"},\"expiry-date\":%d}",
+                token, username, System.currentTimeMillis() + 600000);
+    }
+
+    private String eventToken() {
+        return "t" + events.size() + (firstValidEvent > 0 ? "-" + firstValidEvent : "");
+    }
+
+    /**
+     * Tokens are t&lt;number of events seen&gt;, with a suffix once tokens were invalidated.
+     */
+    private void events(HttpExchange exchange, String token) throws IOException {
+        int seen = token.matches("t\\d+(-\\d+)?") ? Integer.parseInt(token.substring(1).split("-")[0]) : -1;
+        boolean valid = seen >= 0 && seen <= events.size()
+                && (firstValidEvent == 0 ? !token.contains("-") : token.endsWith("-" + firstValidEvent));
+        if (!valid) {
+            respond(exchange, 400, "{\"reason\":\"EVENT_TOKEN_EXPIRED\"}");
+            return;
+        }
+        StringBuilder json = new StringBuilder("{\"newEventToken\":\"").append(eventToken())
+                .append("\",\"incrementalSynchronisationAvailable\":true,\"events\":[");
+        json.append(String.join(",", events.subList(seen, events.size())));
+        respond(exchange, 200, json.append("]}").toString());
+    }
+
+    /**
+     * User i is a direct member of groups i to i + groupsPerUser - 1, there are no nested groups.
+     */
+    private String memberships() {
+        Map<Integer, StringBuilder> members = new HashMap<>();
+        for (int user = 0; user < userCount; user++) {
+            for (int i = 0; i < groupsPerUser; i++) {
+                members.computeIfAbsent(user + i, g -> new StringBuilder())
+                        .append("<user name=\"").append(username(user)).append("\"/>");
+            }
+        }
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><memberships>");
+        members.forEach((group, users) -> xml.append("<membership group=\"").append(groupname(group)).append("\"><users>")
+                .append(users).append("</users><groups></groups></membership>"));
+        return xml.append("</memberships>").toString();
+    }
+
+    private String nestedGroups(int user) {
+        StringBuilder json = new StringBuilder("{\"expand\":\"group\",\"groups\":[");
+        for (int i = 0; i < groupsPerUser; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"name\":\"").append(groupname(user + i)).append("\"}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private int userIndex(String username) {
+        if (username == null || !username.matches("user\\d+")) {
+            return -1;
+        }
+        int i = Integer.parseInt(username.substring(4));
+        return i < userCount ? i : -1;
+    }
+
+    private int groupIndex(String groupname) {
+        if (groupname == null || !groupname.matches("group\\d+")) {
+            return -1;
+        }
+        int i = Integer.parseInt(groupname.substring(5));
+        return i < groupCount ? i : -1;
+    }
+
+    /**
+     * @return a search result with the users from (inclusive) to (exclusive)
+     */
+    static String usersPage(int from, int to) {
+        StringBuilder json = new StringBuilder("{\"expand\":\"user\",\"users\":[");
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                json.append(',');
+            }
+            json.append(user(i));
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * @return a search result with the groups from (inclusive) to (exclusive)
+     */
+    static String groupsPage(int from, int to) {
+        StringBuilder json = new StringBuilder("{\"expand\":\"group\",\"groups\":[");
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                json.append(',');
+            }
+            json.append(group(i));
+        }
+        return json.append("]}").toString();
+    }
+
+    static String username(int i) {
+        return "user" + i;
+    }
+
+    static String groupname(int i) {
+        return "group" + i;
+    }
+
+    private static String user(int i) {
+        return String.format("{\"name\":\"%1$s\",\"active\":true,\"first-name\":\"First%2$d\",\"last-name\":\"Last%2$d\","
+                + "\"display-name\":\"First%2$d Last%2$d\",\"email\":\"%1$s@example.com\"}", username(i), i);
+    }
+
+    private static String group(int i) {
+        return String.format("{\"name\":\"%s\",\"description\":\"Group %d\",\"type\":\"GROUP\",\"active\":true}", groupname(i), i);
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException {
+        respond(exchange, status, body, "application/json");
+    }
+
+    private void respond(HttpExchange exchange, int status, String body, String contentType) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        responseBytes.addAndGet(bytes.length);
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+}
@@ -0,0 +1,89 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.mockito.Mockito.mock;
+
+public class CrowdUserFilterTest {
+
+    private CrowdStubServer crowd;
+    private CachingNexusCrowdClient client;
+    private MetricRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        crowd = new CrowdStubServer().withUsers(10);
+        registry = new MetricRegistry();
+    }
+
+    @After
+    public void tearDown() {
+        if (client != null) {
+            client.shutdown();
+        }
+        crowd.close();
+    }
+
+    @Test
+    public void testUnknownUsersAreAbsent() {
+        CrowdUserFilter filter = filter();
+        filter.reload();
+
+        Assert.assertFalse(filter.isAbsent("user1"));
+        Assert.assertFalse(filter.isAbsent("USER1"));
+        Assert.assertTrue(filter.isAbsent("admin"));
+        Assert.assertEquals(1, registry.meter("com.pingunaut.nexus3.crowd.userfilter.rejected").getCount());
+    }
+
+    @Test
+    public void testNothingIsAbsentUntilLoaded() {
+        CrowdUserFilter filter = filter();
+        Assert.assertFalse(filter.isAbsent("admin"));
+
+        crowd.close();
+        filter.reload();
+        Assert.assertFalse(filter.isAbsent("admin"));
+    }
+
+    @Test
+    public void testFailedReloadKeepsFilter() {
+        CrowdUserFilter filter = filter();
+        filter.reload();
+        crowd.close();
+        filter.reload();
+
+        Assert.assertFalse(filter.isAbsent("user2"));
+        Assert.assertTrue(filter.isAbsent("admin"));
+    }
+
+    @Test
+    public void testChangedUsersAreAdded() {
+        CrowdUserFilter filter = filter();
+        filter.reload();
+        Assert.assertTrue(filter.isAbsent("newuser"));
+
+        filter.userChanged("NewUser");
+        Assert.assertFalse(filter.isAbsent("newuser"));
+    }
+
+    @Test
+    public void testBits() {
+        // about 1.2 bytes per user at 1%
+        Assert.assertEquals(95850, CrowdUserFilter.bits(10000, 0.01));
+    }
+
+    private CrowdUserFilter filter() {
+        Properties p = crowd.properties();
+        p.setProperty("userfilter.enabled", "true");
+        CrowdProperties props = new CrowdProperties(p);
+        CrowdMetrics metrics = new CrowdMetrics(registry);
+        client = new CachingNexusCrowdClient(props, new CacheProvider(props, metrics), metrics);
+        return new CrowdUserFilter(client, mock(CrowdMirror.class), props, metrics);
+    }
+}
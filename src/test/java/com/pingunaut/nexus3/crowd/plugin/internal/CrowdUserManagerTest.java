@@ -1,24 +1,35 @@
 package com.pingunaut.nexus3.crowd.plugin.internal;
 
 import com.pingunaut.nexus3.crowd.plugin.CrowdAuthenticatingRealm;
+import com.pingunaut.nexus3.crowd.plugin.CrowdException;
 import org.junit.Assert;
 import org.junit.Test;
 import org.sonatype.nexus.security.user.User;
 import org.sonatype.nexus.security.user.UserNotFoundException;
 import org.sonatype.nexus.security.user.UserSearchCriteria;
 
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class CrowdUserManagerTest {
 
 	// mock creation
 	CachingNexusCrowdClient mockedClient = mock(CachingNexusCrowdClient.class);
-	CrowdUserManager m = new CrowdUserManager(mockedClient);
+	CrowdMirror mockedMirror = mock(CrowdMirror.class);
+	UserSearchIndex mockedSearchIndex = mock(UserSearchIndex.class);
+	CrowdUserFilter mockedUserFilter = mock(CrowdUserFilter.class);
+	CrowdUserManager m = new CrowdUserManager(mockedClient, mockedMirror, mockedSearchIndex, mockedUserFilter);
 
 	@Test
 	public void testGetAuthenticationRealmName() {
@@ -33,7 +44,19 @@ public class CrowdUserManagerTest {
 	@Test
 	public void testListUsers() {
 		when(mockedClient.findUsers()).thenReturn(mockedUsers());
-		Assert.assertEquals(2, m.listUsers().size());
+		when(mockedClient.findRolesByUserAsync("1")).thenReturn(CompletableFuture.completedFuture(Collections.singleton("nx-admin")));
+		when(mockedClient.findRolesByUserAsync("2")).thenReturn(failed(new CrowdException("crowd down")));
+		Set<User> users = m.listUsers();
+		Assert.assertEquals(2, users.size());
+		for (User u : users) {
+			Assert.assertEquals("1".equals(u.getUserId()) ? 1 : 0, u.getRoles().size());
+		}
+	}
+
+	private static <T> CompletableFuture<T> failed(Throwable e) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		future.completeExceptionally(e);
+		return future;
 	}
 
 	private Set<User> mockedUsers() {
@@ -47,6 +70,27 @@ public class CrowdUserManagerTest {
 		return u;
 	}
 
+	@Test
+	public void testListUsersResolvesRolesInBulk() {
+		Set<User> users = IntStream.range(0, 100).mapToObj(i -> {
+			User u = new User();
+			u.setUserId("u" + i);
+			return u;
+		}).collect(Collectors.toSet());
+		Map<String, Set<String>> roles = users.stream()
+				.collect(Collectors.toMap(User::getUserId, u -> Collections.singleton("nx-users")));
+		when(mockedClient.findUsers()).thenReturn(users);
+		when(mockedClient.findRolesByUsers(users.stream().map(User::getUserId).collect(Collectors.toSet())))
+				.thenReturn(roles);
+
+		Set<User> result = m.listUsers();
+
+		Assert.assertEquals(100, result.size());
+		result.forEach(u -> Assert.assertEquals("nx-users", u.getRoles().iterator().next().getRoleId()));
+		verify(mockedClient, never()).findRolesByUser(anyString());
+		verify(mockedClient, never()).findRolesByUserAsync(anyString());
+	}
+
 	@Test
 	public void testListUserIds() {
 		when(mockedClient.findAllUsernames())
@@ -57,10 +101,22 @@ public class CrowdUserManagerTest {
 	@Test
 	public void testSearchUsers() {
 		UserSearchCriteria usc = new UserSearchCriteria("1");
+		// search index not loaded yet
+		when(mockedSearchIndex.search(usc)).thenReturn(null);
 		when(mockedClient.findUserByCriteria(usc)).thenReturn(mockedUsers());
+		when(mockedClient.findRolesByUserAsync(anyString())).thenReturn(CompletableFuture.completedFuture(Collections.emptySet()));
 		Assert.assertEquals(2, m.searchUsers(usc).size());
 	}
 
+	@Test
+	public void testSearchUsersFromIndex() {
+		UserSearchCriteria usc = new UserSearchCriteria("1");
+		when(mockedSearchIndex.search(usc)).thenReturn(mockedUsers());
+		when(mockedClient.findRolesByUserAsync(anyString())).thenReturn(CompletableFuture.completedFuture(Collections.emptySet()));
+		Assert.assertEquals(2, m.searchUsers(usc).size());
+		verify(mockedClient, never()).findUserByCriteria(usc);
+	}
+
 	@Test
 	public void testGetUser() throws UserNotFoundException {
 		when(mockedClient.findUserByUsername("1")).thenReturn(mockedUsers().iterator().next());
@@ -69,6 +125,31 @@ public class CrowdUserManagerTest {
 		Assert.assertEquals(u, m.getUser("1"));
 	}
 
+	@Test
+	public void testReadsFromMirrorWhenReady() throws UserNotFoundException {
+		when(mockedMirror.isReady()).thenReturn(true);
+		when(mockedMirror.findUsers()).thenReturn(mockedUsers());
+		when(mockedMirror.findUserByUsername("1")).thenReturn(mockedUsers().iterator().next());
+		when(mockedMirror.findRolesByUser(anyString())).thenReturn(Collections.singleton("nx-admin"));
+
+		Assert.assertEquals(2, m.listUsers().size());
+		Assert.assertEquals(1, m.getUser("1").getRoles().size());
+		verify(mockedClient, never()).findUsers();
+		verify(mockedClient, never()).findUserByUsername(anyString());
+		verify(mockedClient, never()).findRolesByUser(anyString());
+		verify(mockedClient, never()).findRolesByUserAsync(anyString());
+	}
+
+	@Test(expected = UserNotFoundException.class)
+	public void testGetUserRejectedByUserFilter() throws UserNotFoundException {
+		when(mockedUserFilter.isAbsent("admin")).thenReturn(true);
+		try {
+			m.getUser("admin");
+		} finally {
+			verify(mockedClient, never()).findUserByUsername(anyString());
+		}
+	}
+
 	@Test(expected = UserNotFoundException.class)
 	public void testGetUserWithNull() throws UserNotFoundException {
 		when(mockedClient.findUserByUsername("1")).thenReturn(null);
@@ -0,0 +1,77 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class GroupSetInternerTest {
+
+    private static final int USERS = 50_000;
+    private static final int COMBINATIONS = 100;
+    private static final int GROUPS_PER_USER = 8;
+
+    @Test
+    public void testEqualMembershipsOfDifferentUsersAreTheSameInstance() {
+        GroupSetInterner interner = new GroupSetInterner();
+        Set<String> first = interner.intern(memberships(0));
+        Set<String> second = interner.intern(memberships(COMBINATIONS));
+
+        Assert.assertEquals(memberships(0), first);
+        Assert.assertSame(first, second);
+        // overlapping memberships still share the group names
+        Set<String> overlapping = interner.intern(memberships(1));
+        Assert.assertNotSame(first, overlapping);
+        Assert.assertSame(find(first, "nexus-group-1"), find(overlapping, "nexus-group-1"));
+    }
+
+    @Test
+    public void testFootprintOf50kUsers() {
+        GroupSetInterner interner = new GroupSetInterner();
+
+        long before = usedHeap();
+        Object[] plain = new Object[USERS];
+        for (int user = 0; user < USERS; user++) {
+            plain[user] = memberships(user);
+        }
+        long plainBytes = usedHeap() - before;
+        plain = null;
+
+        before = usedHeap();
+        Object[] interned = new Object[USERS];
+        for (int user = 0; user < USERS; user++) {
+            interned[user] = interner.intern(memberships(user));
+        }
+        long internedBytes = usedHeap() - before;
+
+        // the array of references alone is about 200 KB, the plain sets take tens of MB
+        Assert.assertEquals(USERS, interned.length);
+        Assert.assertTrue("interned " + internedBytes + " bytes, plain " + plainBytes + " bytes",
+                internedBytes * 10 < plainBytes);
+    }
+
+    /**
+     * @return the groups of a user as read from crowd, with new strings for every user
+     */
+    private static Set<String> memberships(int user) {
+        int combination = user % COMBINATIONS;
+        return IntStream.range(combination, combination + GROUPS_PER_USER)
+                .mapToObj(g -> "nexus-group-" + g)
+                .collect(Collectors.toCollection(HashSet::new));
+    }
+
+    private static String find(Set<String> groups, String name) {
+        return groups.stream().filter(name::equals).findFirst().orElseThrow(AssertionError::new);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
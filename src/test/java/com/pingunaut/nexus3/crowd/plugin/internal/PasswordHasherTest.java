@@ -0,0 +1,40 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PasswordHasherTest {
+
+    @Test
+    public void testPbkdf2() {
+        byte[] salt = PasswordHasher.getNextSalt();
+        byte[] hash = PasswordHasher.hash("secret".toCharArray(), salt, 10);
+
+        Assert.assertTrue(PasswordHasher.isPasswordCorrect("secret".toCharArray(), salt, 10, hash));
+        Assert.assertFalse(PasswordHasher.isPasswordCorrect("secret".toCharArray(), salt, 11, hash));
+        Assert.assertFalse(PasswordHasher.isPasswordCorrect("Secret".toCharArray(), salt, 10, hash));
+    }
+
+    @Test
+    public void testHmac() {
+        byte[] salt = PasswordHasher.getNextSalt();
+        byte[] hash = PasswordHasher.hash("secret".toCharArray(), salt, PasswordHasher.HMAC);
+
+        Assert.assertEquals(32, hash.length);
+        Assert.assertTrue(PasswordHasher.isPasswordCorrect("secret".toCharArray(), salt, PasswordHasher.HMAC, hash));
+        Assert.assertFalse(PasswordHasher.isPasswordCorrect("secret".toCharArray(), PasswordHasher.getNextSalt(), PasswordHasher.HMAC, hash));
+        Assert.assertFalse(PasswordHasher.isPasswordCorrect("secret!".toCharArray(), salt, PasswordHasher.HMAC, hash));
+    }
+
+    @Test
+    public void testPasswordIsLeftUntouched() {
+        char[] password = "secret".toCharArray();
+        byte[] salt = PasswordHasher.getNextSalt();
+
+        PasswordHasher.isPasswordCorrect(password, salt, PasswordHasher.hash(password, salt));
+        PasswordHasher.hash(password, salt, PasswordHasher.HMAC);
+        PasswordHasher.digest(password);
+
+        Assert.assertArrayEquals("secret".toCharArray(), password);
+    }
+}
@@ -0,0 +1,98 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.nexus.security.role.Role;
+
+import java.util.Collections;
+import java.util.Properties;
+
+public class RoleCatalogTest {
+
+    private CrowdStubServer crowd;
+    private CachingNexusCrowdClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        crowd = new CrowdStubServer().withGroups(20);
+    }
+
+    @After
+    public void tearDown() {
+        client.shutdown();
+        crowd.close();
+    }
+
+    @Test
+    public void testRolesAreAnsweredFromMemory() {
+        RoleCatalog catalog = catalog("true");
+        Assert.assertEquals(20, catalog.listRoles().size());
+        Assert.assertTrue(catalog.isReady());
+        int requests = crowd.getRequestCount();
+
+        Assert.assertEquals(20, catalog.listRoles().size());
+        Assert.assertEquals("group3", catalog.getRole("group3").getRoleId());
+        Assert.assertEquals("group3", catalog.getRole("GROUP3").getRoleId());
+        Assert.assertEquals(requests, crowd.getRequestCount());
+    }
+
+    @Test
+    public void testCopiesAreHandedOut() {
+        RoleCatalog catalog = catalog("true");
+        catalog.listRoles().forEach(r -> r.setDescription("changed"));
+        catalog.getRole("group3").setName("changed");
+        catalog.getRole("group3").setPrivileges(Collections.singleton("nx-all"));
+
+        Role role = catalog.getRole("group3");
+        Assert.assertEquals("group3", role.getName());
+        Assert.assertNotEquals("changed", role.getDescription());
+        Assert.assertTrue(role.getPrivileges() == null || role.getPrivileges().isEmpty());
+        Assert.assertTrue(catalog.listRoles().stream().noneMatch(r -> "changed".equals(r.getDescription())));
+    }
+
+    @Test
+    public void testMissingRoleIsFetchedOnceAndCached() {
+        RoleCatalog catalog = catalog("true");
+        catalog.listRoles();
+        crowd.withGroups(30);
+        int requests = crowd.getRequestCount();
+
+        Assert.assertEquals("group25", catalog.getRole("group25").getRoleId());
+        Assert.assertEquals(requests + 1, crowd.getRequestCount());
+        Assert.assertEquals("group25", catalog.getRole("group25").getRoleId());
+        Assert.assertEquals(requests + 1, crowd.getRequestCount());
+        Assert.assertNull(catalog.getRole("group99"));
+    }
+
+    @Test
+    public void testColdCatalogLoadsInBackground() throws InterruptedException {
+        RoleCatalog catalog = catalog("true");
+        Assert.assertEquals("group3", catalog.getRole("group3").getRoleId());
+        for (int i = 0; i < 100 && !catalog.isReady(); i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(catalog.isReady());
+    }
+
+    @Test
+    public void testDisabled() {
+        RoleCatalog catalog = catalog("false");
+        catalog.listRoles();
+        int requests = crowd.getRequestCount();
+        catalog.listRoles();
+        Assert.assertFalse(catalog.isReady());
+        Assert.assertTrue(crowd.getRequestCount() > requests);
+    }
+
+    private RoleCatalog catalog(String enabled) {
+        Properties p = crowd.properties();
+        p.setProperty("roles.catalog.enabled", enabled);
+        CrowdProperties props = new CrowdProperties(p);
+        CrowdMetrics metrics = new CrowdMetrics(new MetricRegistry());
+        client = new CachingNexusCrowdClient(props, new CacheProvider(props, metrics), metrics);
+        return new RoleCatalog(client, props, metrics);
+    }
+}
@@ -0,0 +1,73 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testSequentialCallsAreNotShared() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        AtomicInteger calls = new AtomicInteger();
+
+        Assert.assertEquals(1, (int) singleFlight.execute("k", () -> CompletableFuture.completedFuture(calls.incrementAndGet())).get());
+        Assert.assertEquals(2, (int) singleFlight.execute("k", () -> CompletableFuture.completedFuture(calls.incrementAndGet())).get());
+        Assert.assertEquals(0, singleFlight.getCollapsedCount());
+    }
+
+    @Test
+    public void testConcurrentCallersShareResult() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        CompletableFuture<String> call = new CompletableFuture<>();
+
+        CompletableFuture<String> first = singleFlight.execute("k", () -> call);
+        CompletableFuture<String> second = singleFlight.execute("k", () -> CompletableFuture.completedFuture("not called"));
+        // other keys are not affected
+        Assert.assertEquals("other", singleFlight.execute("other", () -> CompletableFuture.completedFuture("other")).get());
+        // a caller giving up does not affect the others
+        second.cancel(false);
+        call.complete("shared");
+
+        Assert.assertEquals("shared", first.get());
+        Assert.assertEquals(1, singleFlight.getCollapsedCount());
+        Assert.assertEquals(2, singleFlight.getExecutedCount());
+    }
+
+    @Test
+    public void testConcurrentCallersShareException() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        CompletableFuture<String> call = new CompletableFuture<>();
+
+        CompletableFuture<String> first = singleFlight.execute("k", () -> call);
+        CompletableFuture<String> second = singleFlight.execute("k", () -> call);
+        call.completeExceptionally(new IllegalStateException("crowd down"));
+
+        assertFailsWith(first, IllegalStateException.class);
+        assertFailsWith(second, IllegalStateException.class);
+        // the failure is not remembered
+        Assert.assertEquals("up", singleFlight.execute("k", () -> CompletableFuture.completedFuture("up")).get());
+    }
+
+    @Test
+    public void testCallThrowing() {
+        SingleFlight singleFlight = new SingleFlight();
+        assertFailsWith(singleFlight.execute("k", () -> {
+            throw new IllegalStateException("crowd down");
+        }), IllegalStateException.class);
+    }
+
+    private static void assertFailsWith(CompletableFuture<?> future, Class<? extends Exception> type) {
+        try {
+            future.get();
+            Assert.fail("expected " + type.getSimpleName());
+        } catch (ExecutionException e) {
+            Assert.assertTrue(type.isInstance(e.getCause()));
+        } catch (InterruptedException e) {
+            Assert.fail("interrupted");
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.pingunaut.nexus3.crowd.plugin.internal;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.nexus.security.user.User;
+import org.sonatype.nexus.security.user.UserSearchCriteria;
+import org.sonatype.nexus.security.user.UserStatus;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+public class UserSearchIndexTest {
+
+    private CrowdStubServer crowd;
+    private CachingNexusCrowdClient client;
+    private UserSearchIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        crowd = new CrowdStubServer().withUsers(150);
+        Properties p = crowd.properties();
+        p.setProperty("search.index.enabled", "true");
+        p.setProperty("search.index.maxresults", "20");
+        CrowdProperties props = new CrowdProperties(p);
+        CrowdMetrics metrics = new CrowdMetrics(new MetricRegistry());
+        client = new CachingNexusCrowdClient(props, new CacheProvider(props, metrics), metrics);
+        index = new UserSearchIndex(client, props, metrics);
+    }
+
+    @After
+    public void tearDown() {
+        client.shutdown();
+        crowd.close();
+    }
+
+    @Test
+    public void testColdIndexFallsBackAndLoads() throws InterruptedException {
+        Assert.assertNull(index.search(new UserSearchCriteria("user1")));
+        awaitReady();
+        int requests = crowd.getRequestCount();
+
+        Assert.assertEquals(usernames("user1", "user10", "user11", "user12", "user13", "user14", "user15", "user16",
+                "user17", "user18", "user19", "user100", "user101", "user102", "user103", "user104", "user105",
+                "user106", "user107", "user108").size(), index.search(new UserSearchCriteria("user1")).size());
+        Assert.assertEquals(usernames("user42"), usernames(index.search(new UserSearchCriteria("USER42"))));
+        Assert.assertEquals(requests, crowd.getRequestCount());
+    }
+
+    @Test
+    public void testSearchesNamesAndEmail() throws InterruptedException {
+        index.reload();
+        awaitReady();
+        Assert.assertEquals(usernames("user7"), usernames(index.search(new UserSearchCriteria("first7 l"))));
+        Assert.assertEquals(usernames("user149"), usernames(index.search(new UserSearchCriteria("last149"))));
+        Assert.assertEquals(usernames("user7"), usernames(index.search(new UserSearchCriteria("user7@"))));
+        UserSearchCriteria byEmail = new UserSearchCriteria();
+        byEmail.setEmail("user14");
+        Assert.assertEquals(usernames("user14", "user140", "user141", "user142", "user143", "user144", "user145",
+                "user146", "user147", "user148", "user149"), usernames(index.search(byEmail)));
+        Assert.assertEquals(20, index.search(new UserSearchCriteria()).size());
+        Assert.assertTrue(index.search(new UserSearchCriteria("nobody")).isEmpty());
+    }
+
+    @Test
+    public void testInactiveUsersAreNotIndexed() {
+        User active = user("alice", UserStatus.active);
+        User disabled = user("alina", UserStatus.disabled);
+        UserSearchIndex.Snapshot snapshot = new UserSearchIndex.Snapshot(Arrays.asList(active, disabled), 0);
+        Assert.assertEquals(usernames("alice"), usernames(snapshot.search("ali", "", 10)));
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        CrowdProperties props = new CrowdProperties(crowd.properties());
+        UserSearchIndex disabled = new UserSearchIndex(client, props, new CrowdMetrics(new MetricRegistry()));
+        Assert.assertNull(disabled.search(new UserSearchCriteria("user1")));
+        Assert.assertFalse(disabled.isReady());
+        Assert.assertEquals(0, crowd.getRequestCount());
+    }
+
+    private void awaitReady() throws InterruptedException {
+        for (int i = 0; i < 100 && !index.isReady(); i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(index.isReady());
+    }
+
+    private static User user(String name, UserStatus status) {
+        User u = new User();
+        u.setUserId(name);
+        u.setStatus(status);
+        return u;
+    }
+
+    private static Set<String> usernames(String... names) {
+        return new HashSet<>(Arrays.asList(names));
+    }
+
+    private static Set<String> usernames(Set<User> users) {
+        return users.stream().map(User::getUserId).collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,83 @@
+package com.pingunaut.nexus3.crowd.plugin.internal.entity;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CrowdMembershipsResultTest {
+
+	private CrowdMembershipsResult memberships;
+
+	@Before
+	public void setUp() {
+		// devs -> engineering -> staff, ops -> staff
+		memberships = new CrowdMembershipsResult();
+		memberships.addGroupMembership("engineering", "devs");
+		memberships.addGroupMembership("staff", "engineering");
+		memberships.addGroupMembership("staff", "ops");
+		memberships.addUserMembership("devs", "alice");
+		memberships.addUserMembership("devs", "bob");
+		memberships.addUserMembership("ops", "bob");
+		memberships.addUserMembership("ops", "carol");
+	}
+
+	@Test
+	public void testNestedGroups() {
+		assertThat(memberships.getNestedGroups("alice"), containsInAnyOrder("devs", "engineering", "staff"));
+		assertThat(memberships.getNestedGroups("bob"), containsInAnyOrder("devs", "engineering", "staff", "ops"));
+		assertThat(memberships.getNestedGroups("carol"), containsInAnyOrder("ops", "staff"));
+	}
+
+	@Test
+	public void testClosuresAreShared() {
+		memberships.addUserMembership("devs", "dave");
+		assertSame(memberships.getNestedGroups("alice"), memberships.getNestedGroups("dave"));
+	}
+
+	@Test
+	public void testUsernamesAreCaseInsensitive() {
+		memberships.addUserMembership("ops", "Alice");
+		assertThat(memberships.getNestedGroups("ALICE"), containsInAnyOrder("devs", "engineering", "staff", "ops"));
+
+		memberships.setUserMemberships("BOB", Collections.singleton("ops"));
+		assertThat(memberships.getNestedGroups("bob"), containsInAnyOrder("ops", "staff"));
+
+		memberships.removeUser("Carol");
+		assertThat(memberships.getNestedGroups("carol"), empty());
+	}
+
+	@Test
+	public void testCycles() {
+		memberships.addGroupMembership("devs", "staff");
+		assertThat(memberships.getNestedGroups("alice"), containsInAnyOrder("devs", "engineering", "staff"));
+		assertThat(memberships.getNestedGroups("carol"), containsInAnyOrder("ops", "staff", "devs", "engineering"));
+	}
+
+	@Test
+	public void testChangesForgetAffectedGroupsOnly() {
+		Set<String> alice = memberships.getNestedGroups("alice");
+		Set<String> carol = memberships.getNestedGroups("carol");
+
+		memberships.addGroupMembership("admins", "engineering");
+		assertThat(memberships.getNestedGroups("alice"), containsInAnyOrder("devs", "engineering", "staff", "admins"));
+		assertNotSame(alice, memberships.getNestedGroups("alice"));
+		assertSame(carol, memberships.getNestedGroups("carol"));
+
+		memberships.removeGroupMembership("staff", "ops");
+		assertThat(memberships.getNestedGroups("carol"), containsInAnyOrder("ops"));
+
+		memberships.setGroupMemberships("devs", Collections.emptySet());
+		assertThat(memberships.getNestedGroups("alice"), containsInAnyOrder("devs"));
+
+		memberships.removeGroup("admins");
+		assertThat(memberships.getNestedGroups("bob"), containsInAnyOrder("devs", "ops"));
+	}
+}
@@ -1,6 +1,9 @@
 package com.pingunaut.nexus3.crowd.plugin.internal.entity.mapper;
 
 import com.pingunaut.nexus3.crowd.plugin.internal.CrowdUserManager;
+import com.pingunaut.nexus3.crowd.plugin.internal.entity.CrowdEvents;
+import com.pingunaut.nexus3.crowd.plugin.internal.entity.CrowdMembershipsResult;
+import com.pingunaut.nexus3.crowd.plugin.internal.entity.CrowdSession;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
@@ -82,6 +85,19 @@ public class CrowdMapperTest {
 		assertThat(roleStrings, empty());
 	}
 
+	@Test
+	public void testToRoleStringsWithServerError() {
+		HttpResponse response = mock(HttpResponse.class);
+		StatusLine statusLine = mock(StatusLine.class);
+		HttpEntity httpEntity = new StringEntity("Internal Server Error", ContentType.TEXT_PLAIN);
+
+		when(response.getStatusLine()).thenReturn(statusLine);
+		when(response.getEntity()).thenReturn(httpEntity);
+		when(statusLine.getStatusCode()).thenReturn(500);
+
+		assertNull(CrowdMapper.toRoleStrings(response));
+	}
+
 	@Test
 	public void testToUser() {
 		HttpResponse response = mock(HttpResponse.class);
@@ -173,6 +189,39 @@ public class CrowdMapperTest {
 		assertThat(users, hasItems(u1, u2));
 	}
 
+	@Test
+	public void testToUsersSkipsUnknownValues() {
+		HttpResponse response = mock(HttpResponse.class);
+		StatusLine statusLine = mock(StatusLine.class);
+		HttpEntity httpEntity = new StringEntity("{\"expand\":\"user\",\"users\":[{\"link\":{\"href\":\"http://crowd/user?username=greg\",\"rel\":\"self\"},"
+				+ "\"name\":\"greg\",\"attributes\":{\"attributes\":[{\"name\":\"a\",\"values\":[\"1\",\"2\"]}]},\"active\":true,\"email\":null}]}", ContentType.APPLICATION_JSON);
+
+		when(response.getStatusLine()).thenReturn(statusLine);
+		when(response.getEntity()).thenReturn(httpEntity);
+		when(statusLine.getStatusCode()).thenReturn(200);
+
+		Set<User> users = CrowdMapper.toUsers(response);
+
+		assertThat(users, hasSize(1));
+		User user = users.iterator().next();
+		assertEquals("greg", user.getUserId());
+		assertNull(user.getEmailAddress());
+		assertEquals(UserStatus.active, user.getStatus());
+	}
+
+	@Test
+	public void testToUsersMalformed() {
+		HttpResponse response = mock(HttpResponse.class);
+		StatusLine statusLine = mock(StatusLine.class);
+		HttpEntity httpEntity = new StringEntity("{\"expand\":\"user\",\"users\":[{\"name\":\"greg\",", ContentType.APPLICATION_JSON);
+
+		when(response.getStatusLine()).thenReturn(statusLine);
+		when(response.getEntity()).thenReturn(httpEntity);
+		when(statusLine.getStatusCode()).thenReturn(200);
+
+		assertThat(CrowdMapper.toUsers(response), empty());
+	}
+
 	@Test
 	public void testToUsersUnauthorized() {
 		HttpResponse response = mock(HttpResponse.class);
@@ -218,4 +267,115 @@ public class CrowdMapperTest {
 
 		assertThat(CrowdMapper.toRoles(response), empty());
 	}
+
+	@Test
+	public void testToMemberships() {
+		HttpResponse response = mock(HttpResponse.class);
+		StatusLine statusLine = mock(StatusLine.class);
+		HttpEntity httpEntity = new StringEntity("<?xml version=\"1.0\" encoding=\"UTF-8\"?><memberships>"
+				+ "<membership group=\"nx-admin\"><users><user name=\"greg\"/></users><groups><group name=\"devs\"/></groups></membership>"
+				+ "<membership group=\"devs\"><users><user name=\"adam\"/></users><groups/></membership>"
+				+ "<membership group=\"empty\"><users/><groups/></membership>"
+				+ "</memberships>", ContentType.APPLICATION_XML);
+
+		when(response.getStatusLine()).thenReturn(statusLine);
+		when(response.getEntity()).thenReturn(httpEntity);
+		when(statusLine.getStatusCode()).thenReturn(200);
+
+		CrowdMembershipsResult memberships = CrowdMapper.toMemberships(response);
+
+		assertNotNull(memberships);
+		assertThat(memberships.getUsernames(), containsInAnyOrder("greg", "adam"));
+		assertThat(memberships.getNestedGroups("greg"), containsInAnyOrder("nx-admin"));
+		assertThat(memberships.getNestedGroups("adam"), containsInAnyOrder("devs", "nx-admin"));
+		assertThat(memberships.getNestedGroups("nobody"), empty());
+	}
+
+	@Test
+	public void testToMembershipsUnauthorized() {
+		HttpResponse response = mock(HttpResponse.class);
+		StatusLine statusLine = mock(StatusLine.class);
+		HttpEntity httpEntity = new StringEntity("Application failed to authenticate", ContentType.TEXT_PLAIN);
+
+		when(response.getStatusLine()).thenReturn(statusLine);
+		when(response.getEntity()).thenReturn(httpEntity);
+		when(statusLine.getStatusCode()).thenReturn(401);
+
+		assertNull(CrowdMapper.toMemberships(response));
+	}
+
+	@Test
+	public void testToEvents() {
+		HttpResponse response = mock(HttpResponse.class);
+		StatusLine statusLine = mock(StatusLine.class);
+		HttpEntity httpEntity = new StringEntity("{\"newEventToken\":\"t2\",\"incrementalSynchronisationAvailable\":true,\"events\":["
+				+ "{\"operation\":\"CREATED\",\"user\":{\"name\":\"greg\",\"active\":true}},"
+				+ "{\"operation\":\"DELETED\",\"group\":{\"name\":\"old\"}},"
+				+ "{\"operation\":\"CREATED\",\"childUser\":{\"name\":\"greg\"},\"parentGroups\":{\"groups\":[{\"name\":\"devs\"}]}},"
+				+ "{\"operation\":\"UPDATED\",\"group\":{\"name\":\"devs\"},\"parentGroups\":[{\"name\":\"nx-admin\"}],\"childGroups\":[]}"
+				+ "]}", ContentType.APPLICATION_JSON);
+
+		when(response.getStatusLine()).thenReturn(statusLine);
+		when(response.getEntity()).thenReturn(httpEntity);
+		when(statusLine.getStatusCode()).thenReturn(200);
+
+		CrowdEvents events = CrowdMapper.toEvents(response);
+
+		assertNotNull(events);
+		assertEquals("t2", events.newEventToken);
+		assertTrue(events.incrementalSynchronisationAvailable);
+		assertEquals(4, events.events.size());
+		assertEquals("greg", events.events.get(0).user.getUserId());
+		assertEquals(CrowdEvents.Operation.DELETED, events.events.get(1).operation);
+		assertEquals("old", events.events.get(1).group.getRoleId());
+		assertEquals("greg", events.events.get(2).childUser);
+		assertThat(events.events.get(2).parentGroups, containsInAnyOrder("devs"));
+		assertNull(events.events.get(3).group);
+		assertEquals("devs", events.events.get(3).childGroup);
+		assertThat(events.events.get(3).parentGroups, containsInAnyOrder("nx-admin"));
+		assertThat(events.events.get(3).childGroups, empty());
+	}
+
+	@Test
+	public void testToEventsWithExpiredToken() {
+		HttpResponse response = mock(HttpResponse.class);
+		StatusLine statusLine = mock(StatusLine.class);
+		HttpEntity httpEntity = new StringEntity("{\"reason\":\"EVENT_TOKEN_EXPIRED\"}", ContentType.APPLICATION_JSON);
+
+		when(response.getStatusLine()).thenReturn(statusLine);
+		when(response.getEntity()).thenReturn(httpEntity);
+		when(statusLine.getStatusCode()).thenReturn(400);
+
+		assertNull(CrowdMapper.toEvents(response));
+	}
+
+	@Test
+	public void testToSession() {
+		HttpResponse response = mock(HttpResponse.class);
+		StatusLine statusLine = mock(StatusLine.class);
+		HttpEntity httpEntity = new StringEntity("{\"expand\":\"user\",\"token\":\"abc\",\"user\":{\"name\":\"u1\"},"
+				+ "\"created-date\":1500000000000,\"expiry-date\":1500000600000}", ContentType.APPLICATION_JSON);
+
+		when(response.getStatusLine()).thenReturn(statusLine);
+		when(response.getEntity()).thenReturn(httpEntity);
+		when(statusLine.getStatusCode()).thenReturn(201);
+
+		CrowdSession session = CrowdMapper.toSession(response);
+		assertEquals("abc", session.token);
+		assertEquals("u1", session.username);
+		assertEquals(1500000600000L, session.expiryDate);
+	}
+
+	@Test
+	public void testToSessionWithInvalidToken() {
+		HttpResponse response = mock(HttpResponse.class);
+		StatusLine statusLine = mock(StatusLine.class);
+		HttpEntity httpEntity = new StringEntity("{\"reason\":\"INVALID_SSO_TOKEN\"}", ContentType.APPLICATION_JSON);
+
+		when(response.getStatusLine()).thenReturn(statusLine);
+		when(response.getEntity()).thenReturn(httpEntity);
+		when(statusLine.getStatusCode()).thenReturn(404);
+
+		assertNull(CrowdMapper.toSession(response));
+	}
 }